@@ -2,10 +2,13 @@ package it.polito.ai.es2;
 
 import it.polito.ai.es2.services.interfaces.TeamService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+// Off unless myprop.teams.cleanup.enabled=true: scheduling is enabled for the background jobs of the services
 @Component
+@ConditionalOnProperty(name = "myprop.teams.cleanup.enabled", havingValue = "true")
 public class ScheduledTasks {
   @Autowired
   private TeamService teamService;
@@ -1,19 +1,35 @@
 package it.polito.ai.es2.controllers;
 
+import it.polito.ai.es2.dtos.ImageBatchDTO;
+import it.polito.ai.es2.dtos.ImageCacheStatsDTO;
 import it.polito.ai.es2.dtos.ImageDTO;
+import it.polito.ai.es2.dtos.ImageGcStatsDTO;
+import it.polito.ai.es2.dtos.ImageStorageStatsDTO;
+import it.polito.ai.es2.dtos.ImageUploadDTO;
 import it.polito.ai.es2.services.interfaces.CourseService;
 import it.polito.ai.es2.services.interfaces.ImageService;
 import lombok.extern.java.Log;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.http.MediaType;
-import org.springframework.http.ResponseEntity;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.*;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.servlet.ServletContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
+import javax.validation.constraints.PositiveOrZero;
 import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping(path = "/api/images")
@@ -26,25 +42,164 @@ public class APIImages_RestController {
   private CourseService courseService;
   @Autowired
   ServletContext servletContext;
+  @Value("${myprop.images.cache.max-age:3600}")
+  long cacheMaxAge; // seconds, then clients revalidate with If-None-Match / If-Modified-Since
 
   @PostMapping()
   public ImageDTO uploadImage(@RequestParam("imageFile") @NotNull MultipartFile file) {
     return imageService.uploadImage(file);
   }
 
+  /**
+   * Metadata of many images at once, in the requested order. Example: http://localhost:8080/api/images?ids=3,1,7
+   */
+  @GetMapping()
+  public ImageBatchDTO getImagesInfo(@RequestParam("ids") @NotNull List<Long> ids) {
+    return imageService.getImagesInfo(ids);
+  }
+
+  /**
+   * Chunked, resumable upload of large files: init, PUT of the chunks (any order, retried chunks overwrite),
+   * status with the missing ranges, commit.
+   * <p>Example: POST http://localhost:8080/api/images/uploads?name=report.pdf&type=application/pdf&size=73400320
+   */
+  @PostMapping("/uploads")
+  public ImageUploadDTO initUpload(@RequestParam("name") @NotBlank String name, @RequestParam("type") @NotBlank String type,
+                                   @RequestParam("size") @Positive long size) {
+    return imageService.initUpload(name, type, size);
+  }
+
+  /**
+   * Body: raw bytes of the chunk, written at offset. Streamed to the staging file, not buffered in memory
+   */
+  @PutMapping("/uploads/{uploadId}")
+  public ImageUploadDTO writeUploadChunk(@PathVariable("uploadId") String uploadId,
+                                         @RequestParam("offset") @PositiveOrZero long offset,
+                                         HttpServletRequest request) throws IOException {
+    return imageService.writeUploadChunk(uploadId, offset, request.getInputStream());
+  }
+
+  @GetMapping("/uploads/{uploadId}")
+  public ImageUploadDTO getUpload(@PathVariable("uploadId") String uploadId) {
+    return imageService.getUpload(uploadId);
+  }
+
+  @PostMapping("/uploads/{uploadId}/commit")
+  public ImageDTO commitUpload(@PathVariable("uploadId") String uploadId) {
+    return imageService.commitUpload(uploadId);
+  }
+
+  @DeleteMapping("/uploads/{uploadId}")
+  public void abortUpload(@PathVariable("uploadId") String uploadId) {
+    imageService.abortUpload(uploadId);
+  }
+
+  /**
+   * Conditional GET: a metadata only lookup answers 304 Not Modified without reading the content
+   */
   @GetMapping(path = {"/{imageId}"})
-  public ImageDTO getImage(@PathVariable("imageId") @NotNull Long imageId) {
-    return imageService.getImage(imageId);
-  }
-
-  // Example: http://localhost:8080/api/images/direct/1
-  @GetMapping
-  @RequestMapping(value = "/direct/{imageId}", method = RequestMethod.GET, produces = MediaType.IMAGE_JPEG_VALUE)
-  public ResponseEntity<byte[]> getDirectLinkImage(@PathVariable Long imageId) throws IOException {
-    byte[] bytes = imageService.getBytesImage(Long.valueOf(imageId));
-    return ResponseEntity
-        .ok()
-        .contentType(MediaType.IMAGE_JPEG)
-        .body(bytes);
+  public ResponseEntity<ImageDTO> getImage(@PathVariable("imageId") @NotNull Long imageId, WebRequest request) {
+    ImageDTO imageInfo = imageService.getImageInfo(imageId);
+    // The json also carries the metadata: the tag changes with the content and with every update of the row
+    String etag = "\"" + contentTag(imageInfo) + "-" + lastModified(imageInfo) + "\"";
+    if (request.checkNotModified(etag, lastModified(imageInfo)))
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED).cacheControl(cacheControl()).build();
+    return ResponseEntity.ok().cacheControl(cacheControl()).body(imageService.getImage(imageInfo));
+  }
+
+  /**
+   * Example: http://localhost:8080/api/images/direct/1
+   * <p>The image is streamed from storage to the response. Supports a single byte range (Range header, 206 Partial
+   * Content, honouring If-Range); multiple ranges are answered with the whole image.
+   * <p>Conditional GET: strong ETag (content hash) and Last-Modified, 304 Not Modified from a metadata only lookup.
+   * <p>Thumbnail: http://localhost:8080/api/images/direct/1?size=128 returns the smallest thumbnail covering 128 pixels.
+   * While it is being generated the original is returned, with no-cache so that clients pick up the thumbnail later.
+   * When no thumbnail will cover the size (e.g. a smaller original) the original is cached like any other image.
+   */
+  @GetMapping("/direct/{imageId}")
+  public void getDirectLinkImage(@PathVariable("imageId") Long requestedId,
+                                 @RequestParam(value = "size", required = false) @Positive Integer thumbnailSize,
+                                 @RequestHeader(value = HttpHeaders.RANGE, required = false) String rangeHeader,
+                                 @RequestHeader(value = HttpHeaders.IF_RANGE, required = false) String ifRange,
+                                 WebRequest request, HttpServletResponse response) throws IOException {
+    Long resolvedId = thumbnailSize == null ? requestedId : imageService.resolveThumbnail(requestedId, thumbnailSize);
+    boolean pending = resolvedId == null; // thumbnails not rendered yet
+    Long imageId = pending ? requestedId : resolvedId;
+    ImageDTO imageInfo = imageService.getImageInfo(imageId);
+    String etag = "\"" + contentTag(imageInfo) + "\"";
+    response.setHeader(HttpHeaders.CACHE_CONTROL, (pending ? CacheControl.noCache() : cacheControl()).getHeaderValue());
+    if (request.checkNotModified(etag, lastModified(imageInfo)))
+      return;
+    long size = imageInfo.getOriginalSize();
+    long start = 0;
+    long end = size - 1;
+    List<HttpRange> ranges = ifRangeMatches(ifRange, etag, lastModified(imageInfo)) ? parseRanges(rangeHeader) : List.of();
+    if (ranges.size() == 1) {
+      try {
+        start = ranges.get(0).getRangeStart(size);
+        end = ranges.get(0).getRangeEnd(size);
+      } catch (IllegalArgumentException e) {
+        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+        response.sendError(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+        return;
+      }
+      response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+      response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + size);
+    }
+    response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+    response.setContentType(imageInfo.getType() != null ? imageInfo.getType() : MediaType.IMAGE_JPEG_VALUE);
+    response.setContentLengthLong(end - start + 1);
+    imageService.writeImage(imageId, start, end - start + 1, response.getOutputStream());
+  }
+
+  @GetMapping("/cache/stats")
+  public ImageCacheStatsDTO getCacheStats() {
+    return imageService.getCacheStats();
+  }
+
+  @GetMapping("/gc/stats")
+  public ImageGcStatsDTO getGcStats() {
+    return imageService.getGcStats();
+  }
+
+  @GetMapping("/storage/stats")
+  public ImageStorageStatsDTO getStorageStats() {
+    return imageService.getStorageStats();
+  }
+
+  // Content hash; images uploaded before the content addressed store are identified by id and modification time
+  private String contentTag(ImageDTO imageInfo) {
+    return imageInfo.getContentHash() != null ? imageInfo.getContentHash() : imageInfo.getId() + "-" + lastModified(imageInfo);
+  }
+
+  private long lastModified(ImageDTO imageInfo) {
+    return imageInfo.getModifyDate() != null ? imageInfo.getModifyDate().getTime() : -1;
+  }
+
+  private CacheControl cacheControl() {
+    return CacheControl.maxAge(cacheMaxAge, TimeUnit.SECONDS).cachePublic();
+  }
+
+  // If-Range with a strong ETag or an HTTP date (second precision). When it does not match, the whole image is sent
+  private boolean ifRangeMatches(String ifRange, String etag, long lastModified) {
+    if (ifRange == null)
+      return true;
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+      return ifRange.equals(etag);
+    try {
+      return ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond() == lastModified / 1000;
+    } catch (DateTimeParseException e) {
+      return false;
+    }
+  }
+
+  // Malformed Range headers are ignored (RFC 7233), the whole image is returned
+  private List<HttpRange> parseRanges(String rangeHeader) {
+    try {
+      return HttpRange.parseRanges(rangeHeader);
+    } catch (IllegalArgumentException e) {
+      log.warning("Ignoring invalid Range header: " + rangeHeader);
+      return List.of();
+    }
   }
 }
@@ -1,13 +1,26 @@
 package it.polito.ai.es2.controllers;
 
+import it.polito.ai.es2.dtos.AdmissionStatsDTO;
+import it.polito.ai.es2.dtos.CourseUsageDTO;
+import it.polito.ai.es2.dtos.PlacementPlanDTO;
+import it.polito.ai.es2.dtos.PlacementStatusDTO;
+import it.polito.ai.es2.dtos.TeamMetricsDTO;
+import it.polito.ai.es2.dtos.VmBulkRequestDTO;
 import it.polito.ai.es2.dtos.VmDTO;
+import it.polito.ai.es2.dtos.VmDemandDTO;
+import it.polito.ai.es2.dtos.VmMetricsDTO;
+import it.polito.ai.es2.dtos.VmOperationResultDTO;
+import it.polito.ai.es2.dtos.VmSnapshotDTO;
 import it.polito.ai.es2.services.interfaces.VLService;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.validation.Valid;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
 import java.util.List;
 
 @RestController
@@ -18,8 +31,8 @@ public class APIVms_RestController {
   private VLService vlService;
 
   @PostMapping
-  public void createVm(@Valid @RequestBody VmDTO vm) {
-    vlService.createVm(vm);
+  public VmDTO createVm(@Valid @RequestBody VmDTO vm) {
+    return vlService.createVm(vm);
   }
   @PutMapping
   public void editVm(@Valid @RequestBody VmDTO vm) {
@@ -36,17 +49,131 @@ public class APIVms_RestController {
   }
 
   @PutMapping("/vm/{vmId}/enable")
-  public void enableVm(@PathVariable @NotNull Long vmId) {
-    vlService.changeStatusVm(vmId, true);
+  public VmDTO enableVm(@PathVariable @NotNull Long vmId) {
+    return vlService.changeStatusVm(vmId, true);
   }
 
   @PutMapping("/vm/{vmId}/disable")
-  public void disableVm(@PathVariable @NotNull Long vmId) {
-    vlService.changeStatusVm(vmId, false);
+  public VmDTO disableVm(@PathVariable @NotNull Long vmId) {
+    return vlService.changeStatusVm(vmId, false);
+  }
+
+  /**
+   * Live console, server-sent events: a keyframe, then the changed tiles
+   */
+  @GetMapping(value = "/vm/{vmId}/console", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+  public SseEmitter streamConsole(@PathVariable @NotNull Long vmId, @RequestParam(value = "fps", required = false) @Positive Integer fps) {
+    return vlService.streamConsole(vmId, fps);
+  }
+
+  /**
+   * Keeps a running VM from being stopped as idle, e.g. called periodically by a client in use
+   */
+  @PutMapping("/vm/{vmId}/keepalive")
+  public void touchVm(@PathVariable @NotNull Long vmId) {
+    vlService.touchVm(vmId);
   }
 
   @DeleteMapping("/vm/{vmId}")
   public void deleteVm(@PathVariable @NotNull Long vmId) {
     vlService.deleteVm(vmId);
   }
+
+  @GetMapping("/vm/{vmId}/snapshots")
+  public List<VmSnapshotDTO> getVmSnapshots(@PathVariable @NotNull Long vmId) {
+    return vlService.getVmSnapshots(vmId);
+  }
+
+  /**
+   * Snapshot of a stopped VM: copy-on-write, only the name of the body is used
+   */
+  @PostMapping("/vm/{vmId}/snapshots")
+  public VmSnapshotDTO snapshotVm(@PathVariable @NotNull Long vmId, @Valid @RequestBody VmSnapshotDTO snapshot) {
+    return vlService.snapshotVm(vmId, snapshot.getName());
+  }
+
+  @PutMapping("/vm/{vmId}/snapshots/{snapshotId}/restore")
+  public VmDTO restoreVmSnapshot(@PathVariable @NotNull Long vmId, @PathVariable @NotNull Long snapshotId) {
+    return vlService.restoreVmSnapshot(vmId, snapshotId);
+  }
+
+  @DeleteMapping("/vm/{vmId}/snapshots/{snapshotId}")
+  public void deleteVmSnapshot(@PathVariable @NotNull Long vmId, @PathVariable @NotNull Long snapshotId) {
+    vlService.deleteVmSnapshot(vmId, snapshotId);
+  }
+
+  /**
+   * New VM sharing the disk of a stopped VM, or of one of its snapshots
+   */
+  @PostMapping("/vm/{vmId}/clone")
+  public VmDTO cloneVm(@PathVariable @NotNull Long vmId, @RequestParam(value = "snapshotId", required = false) Long snapshotId) {
+    return vlService.cloneVm(vmId, snapshotId);
+  }
+
+  /**
+   * Start, stop or delete all the VMs of a team, of a course or of a list, see {@link VmBulkRequestDTO}
+   */
+  @PostMapping("/bulk")
+  public List<VmOperationResultDTO> bulkVms(@Valid @RequestBody VmBulkRequestDTO request) {
+    return vlService.bulkVms(request);
+  }
+
+  /**
+   * Resource usage of a VM: raw samples, minutes or hours, between from and to (epoch millis, default: a recent window)
+   */
+  @GetMapping("/vm/{vmId}/metrics")
+  public VmMetricsDTO getVmMetrics(@PathVariable @NotNull Long vmId,
+                                   @RequestParam(value = "resolution", defaultValue = "MINUTE") VmMetricsDTO.Resolution resolution,
+                                   @RequestParam(value = "from", required = false) Long from,
+                                   @RequestParam(value = "to", required = false) Long to) {
+    return vlService.getVmMetrics(vmId, resolution, from, to);
+  }
+
+  @GetMapping("/metrics/team/{teamId}")
+  public TeamMetricsDTO getTeamMetrics(@PathVariable @NotNull Long teamId,
+                                       @RequestParam(value = "resolution", defaultValue = "MINUTE") VmMetricsDTO.Resolution resolution,
+                                       @RequestParam(value = "from", required = false) Long from,
+                                       @RequestParam(value = "to", required = false) Long to) {
+    return vlService.getTeamMetrics(teamId, resolution, from, to);
+  }
+
+  @GetMapping("/metrics/course/{courseId}")
+  public List<TeamMetricsDTO> getCourseMetrics(@PathVariable @NotNull String courseId,
+                                               @RequestParam(value = "resolution", defaultValue = "MINUTE") VmMetricsDTO.Resolution resolution,
+                                               @RequestParam(value = "from", required = false) Long from,
+                                               @RequestParam(value = "to", required = false) Long to) {
+    return vlService.getCourseMetrics(courseId, resolution, from, to);
+  }
+
+  /**
+   * Resources used by the VMs of all the teams of the course, with the course budget
+   */
+  @GetMapping("/usage/course/{courseId}")
+  public CourseUsageDTO getCourseUsage(@PathVariable @NotNull String courseId) {
+    return vlService.getCourseUsage(courseId);
+  }
+
+  /**
+   * Starts in progress and queued, per course, with the wait times
+   */
+  @GetMapping("/admission")
+  public AdmissionStatsDTO getAdmissionStats() {
+    return vlService.getAdmissionStats();
+  }
+
+  /**
+   * Hosts, their free resources and, when the free capacity is fragmented, migrations that would empty some hosts
+   */
+  @GetMapping("/placement")
+  public PlacementStatusDTO getPlacement() {
+    return vlService.getPlacement();
+  }
+
+  /**
+   * Would this demand fit the (empty) host pool? First-fit-decreasing, nothing is reserved
+   */
+  @PostMapping("/placement/simulate")
+  public PlacementPlanDTO simulatePlacement(@RequestBody @NotNull List<@Valid VmDemandDTO> demand) {
+    return vlService.simulatePlacement(demand);
+  }
 }
@@ -0,0 +1,17 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class AdmissionStatsDTO {
+  private int active;      // starts in progress
+  private int queued;
+  private long admitted;   // since the server start
+  private long timedOut;   // admitted starts never released, slot taken back
+  private long avgWaitMs;  // in the queue, moving average
+  private long maxWaitMs;
+  private long avgStartMs; // from admission to release, moving average (used for the ETA)
+  private List<CourseAdmissionDTO> courses; // only the courses with starts in progress or queued
+}
@@ -0,0 +1,70 @@
+package it.polito.ai.es2.dtos;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Base64;
+
+/**
+ * Writes an {@link ImageContent} as a base64 json string, encoding the content while it is produced: the image is
+ * never materialized (neither the bytes nor the String), memory is one fixed size buffer.
+ * <p>Base64 needs no json escaping, so the encoded chunks are written raw between the quotes. If the content fails
+ * midway the response is truncated (the status has already been sent).
+ */
+public class Base64ContentSerializer extends StdSerializer<ImageContent> {
+  private static final int CHUNK_SIZE = 8192;
+
+  public Base64ContentSerializer() {
+    super(ImageContent.class);
+  }
+
+  @Override
+  public void serialize(ImageContent content, JsonGenerator generator, SerializerProvider provider) throws IOException {
+    generator.writeRawValue("\""); // value separators are handled as for any other value
+    try (OutputStream outputStream = Base64.getEncoder().wrap(new RawOutputStream(generator))) {
+      content.writeTo(outputStream);
+    }
+    generator.writeRaw('"');
+  }
+
+  // Ascii bytes to raw generator chars, in fixed size chunks. Closing it does not close the generator
+  private static class RawOutputStream extends OutputStream {
+    private final JsonGenerator generator;
+    private final char[] chunk = new char[CHUNK_SIZE];
+    private int count;
+
+    RawOutputStream(JsonGenerator generator) {
+      this.generator = generator;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (count == chunk.length)
+        flush();
+      chunk[count++] = (char) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      for (int i = off; i < off + len; i++) {
+        if (count == chunk.length)
+          flush();
+        chunk[count++] = (char) b[i];
+      }
+    }
+
+    @Override
+    public void flush() throws IOException {
+      generator.writeRaw(chunk, 0, count);
+      count = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+@Data
+public class CourseAdmissionDTO {
+  private String courseId;
+  private int active;
+  private int limit;
+  private int queued;
+  private int teams; // with queued starts
+  private long oldestWaitMs;
+}
@@ -25,5 +25,8 @@ public class CourseDTO extends RepresentationModel<CourseDTO> {
   private int maxSizeTeam;
   private boolean enabled;
   private String vmModelPath;
+  private int vmIdleMinutes; // 0: server default, negative: never stopped
+  @PositiveOrZero
+  private int maxVcpu, maxDisk, maxRam, maxRunningVm, maxTotVm; // VM budget of the course, 0: no limit
 }
 
@@ -0,0 +1,18 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+@Data
+public class CourseUsageDTO {
+  private String courseId;
+  private int usedVcpu; // sums over the teams of the course
+  private int usedRam;
+  private int usedDisk;
+  private int runningVm;
+  private int totVm;
+  private int maxVcpu; // course budget, 0: no limit
+  private int maxRam;
+  private int maxDisk;
+  private int maxRunningVm;
+  private int maxTotVm;
+}
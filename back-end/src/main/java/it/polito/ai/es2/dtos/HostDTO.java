@@ -0,0 +1,15 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+@Data
+public class HostDTO {
+  private String name;
+  private int vcpu;
+  private int ram;
+  private int disk;
+  private int freeVcpu;
+  private int freeRam;
+  private int freeDisk;
+  private int vms;
+}
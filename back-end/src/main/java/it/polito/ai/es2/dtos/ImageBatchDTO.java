@@ -0,0 +1,11 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ImageBatchDTO {
+  private List<ImageDTO> images; // in the order of the requested ids, without the missing ones
+  private List<Long> missing;
+}
@@ -0,0 +1,16 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+@Data
+public class ImageCacheStatsDTO {
+  private long capacityBytes;
+  private long usedBytes;
+  private int entries;
+  private long hits;
+  private long misses;
+  private double hitRatio;
+  private long evictions;
+  private long rejections; // not admitted: colder than the entries they would evict
+  private long invalidations;
+}
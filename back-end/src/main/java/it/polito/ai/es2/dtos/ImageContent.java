@@ -0,0 +1,12 @@
+package it.polito.ai.es2.dtos;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Content of an image, written on demand (while the response is serialized) instead of being held in memory
+ */
+@FunctionalInterface
+public interface ImageContent {
+  void writeTo(OutputStream outputStream) throws IOException;
+}
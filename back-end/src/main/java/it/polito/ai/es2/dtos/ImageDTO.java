@@ -1,5 +1,7 @@
 package it.polito.ai.es2.dtos;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import lombok.Data;
 import org.springframework.hateoas.RepresentationModel;
 
@@ -20,6 +22,10 @@ public class ImageDTO extends RepresentationModel<ImageDTO> {
   private Timestamp createDate; // LocalDateTime
   private Timestamp modifyDate;
   private String directLink;
+  private Long originalSize;
+  private String contentHash; // SHA-256 of the content
   @Transient
-  private String imageStringBase64;
+  @JsonProperty(value = "imageStringBase64", access = JsonProperty.Access.READ_ONLY)
+  @JsonSerialize(using = Base64ContentSerializer.class)
+  private ImageContent content; // base64 encoded while the json is written, ignored in request bodies
 }
@@ -0,0 +1,15 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+@Data
+public class ImageGcStatsDTO {
+  private boolean enabled;
+  private long sweeps;          // completed passes over the whole table
+  private long cursor;          // last image id checked by the current pass
+  private long scanned;
+  private long deleted;
+  private long failed;          // images of the chunks whose delete failed, skipped until the next pass
+  private long reclaimedBytes;  // stored bytes of the database blobs deleted (approximated), after commit
+  private long lastSweepMillis; // duration of the last completed pass
+}
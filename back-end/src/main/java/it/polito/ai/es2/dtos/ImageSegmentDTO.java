@@ -0,0 +1,12 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+@Data
+public class ImageSegmentDTO {
+  private int segment;
+  private boolean active;  // still receiving appends
+  private long size;       // bytes of the segment file
+  private long liveBytes;  // referenced by a blob
+  private long deadBytes;  // of deleted blobs (or rolled back writes), reclaimable only by a compaction
+}
@@ -0,0 +1,12 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ImageStorageStatsDTO {
+  private long totalBytes;
+  private long deadBytes;
+  private List<ImageSegmentDTO> segments; // file system storage only, empty if it was never used
+}
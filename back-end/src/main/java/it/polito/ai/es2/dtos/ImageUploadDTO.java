@@ -0,0 +1,15 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class ImageUploadDTO {
+  private String id;
+  private String name;
+  private String type;
+  private long size;
+  private long received;      // bytes stored so far
+  private List<long[]> missing; // [start, end] inclusive byte ranges still to send
+}
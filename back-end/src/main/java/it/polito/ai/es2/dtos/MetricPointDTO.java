@@ -0,0 +1,16 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MetricPointDTO {
+  private long time; // epoch millis, start of the period
+  private float avgVcpu;
+  private float maxVcpu;
+  private float avgRam;
+  private float maxRam;
+}
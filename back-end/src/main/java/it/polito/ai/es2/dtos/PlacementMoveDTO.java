@@ -0,0 +1,14 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PlacementMoveDTO {
+  private Long vmId;
+  private String from;
+  private String to;
+}
@@ -0,0 +1,16 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class PlacementPlanDTO {
+  private int requested;
+  private int placed;
+  private int rejected;
+  private int hostsUsed;
+  private double fragmentation;
+  private List<HostDTO> hosts; // as after the placement
+  private long elapsedMicros;  // placement time only
+}
@@ -0,0 +1,13 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class PlacementStatusDTO {
+  private List<HostDTO> hosts;
+  private int placedVms;
+  private double fragmentation;       // 1 - hosts needed if perfectly packed / hosts in use
+  private List<PlacementMoveDTO> hints; // migrations that would empty whole hosts, when fragmentation is high
+}
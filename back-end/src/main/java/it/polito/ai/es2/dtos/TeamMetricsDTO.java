@@ -0,0 +1,14 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class TeamMetricsDTO {
+  private Long teamId;
+  private int maxVcpu; // team quotas, to compare with the usage
+  private int maxRam;
+  private int resolution;
+  private List<MetricPointDTO> points; // sums over the VMs of the team (max: sum of the maxima, an upper bound)
+}
@@ -0,0 +1,27 @@
+package it.polito.ai.es2.dtos;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.Data;
+
+import javax.validation.constraints.AssertTrue;
+import javax.validation.constraints.NotNull;
+import java.util.List;
+
+@Data
+public class VmBulkRequestDTO {
+  public enum Operation {START, STOP, DELETE}
+
+  @NotNull
+  private Operation operation;
+  // Exactly one of: all the VMs of a team, all the VMs of a course, the listed VMs
+  private Long teamId;
+  private String courseId;
+  private List<Long> vmIds;
+
+  @JsonIgnore
+  @AssertTrue(message = "exactly one of teamId, courseId and vmIds is required")
+  public boolean isSelectorValid() {
+    int selectors = (teamId != null ? 1 : 0) + (courseId != null && !courseId.isBlank() ? 1 : 0) + (vmIds != null ? 1 : 0);
+    return selectors == 1;
+  }
+}
@@ -1,10 +1,12 @@
 package it.polito.ai.es2.dtos;
 
+import it.polito.ai.es2.entities.VM;
 import lombok.Data;
 import org.springframework.hateoas.RepresentationModel;
 
 import javax.persistence.Transient;
 import javax.validation.constraints.PositiveOrZero;
+import java.sql.Timestamp;
 import java.util.List;
 
 @Data
@@ -17,6 +19,12 @@ public class VmDTO extends RepresentationModel<VmDTO> {
   @PositiveOrZero
   private int ram;
   private boolean active;
+  private VM.State state; // actual state, may still be pending (STARTING, STOPPING) after a change of active
+  private Timestamp stateChangedDate;
+  @Transient
+  private Integer queuePosition; // when the start waits for a free slot of the course (state QUEUED)
+  @Transient
+  private Long queueEtaMs;
   @Transient
   private Long teamId; // needed for vm creation
   @Transient
@@ -0,0 +1,20 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Positive;
+import javax.validation.constraints.PositiveOrZero;
+
+@Data
+public class VmDemandDTO {
+  @Positive
+  @Max(10000)
+  private int count = 1; // identical VMs, the total of a demand is capped by myprop.vms.placement.max-simulated-vms
+  @PositiveOrZero
+  private int vcpu;
+  @PositiveOrZero
+  private int ram;
+  @PositiveOrZero
+  private int disk;
+}
@@ -0,0 +1,15 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class VmMetricsDTO {
+  public enum Resolution {RAW, MINUTE, HOUR}
+
+  private Long vmId;
+  private Long teamId;
+  private int resolution; // seconds per point
+  private List<MetricPointDTO> points;
+}
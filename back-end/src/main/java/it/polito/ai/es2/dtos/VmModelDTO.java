@@ -0,0 +1,25 @@
+package it.polito.ai.es2.dtos;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.Builder;
+import lombok.Value;
+import lombok.extern.jackson.Jacksonized;
+
+/**
+ * Course VM model, parsed from the file at Course.vmModelPath. Immutable: shared by all the courses using the same file.
+ * Zero values mean no default / no limit.
+ */
+@Value
+@Builder
+@Jacksonized
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class VmModelDTO {
+  String osType;
+  int vcpu;
+  int ram;
+  int disk;
+  int maxVcpu;
+  int maxRam;
+  int maxDisk;
+  String baseImage;
+}
@@ -0,0 +1,16 @@
+package it.polito.ai.es2.dtos;
+
+import it.polito.ai.es2.entities.VM;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class VmOperationResultDTO {
+  private Long vmId;
+  private boolean success;
+  private VM.State state; // pending state after the operation, null if deleted or failed
+  private String error;
+}
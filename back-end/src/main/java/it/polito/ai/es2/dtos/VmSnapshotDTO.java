@@ -0,0 +1,16 @@
+package it.polito.ai.es2.dtos;
+
+import lombok.Data;
+
+import javax.validation.constraints.NotBlank;
+import java.sql.Timestamp;
+
+@Data
+public class VmSnapshotDTO {
+  private Long id;
+  @NotBlank
+  private String name;
+  private Long vmId;
+  private Timestamp createdDate;
+  private int depth; // layers below the snapshot: reads of a deep chain are slower, see myprop.vms.snapshots.max-depth
+}
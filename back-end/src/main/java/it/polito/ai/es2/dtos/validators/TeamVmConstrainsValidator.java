@@ -6,6 +6,10 @@ import it.polito.ai.es2.entities.VM;
 import javax.validation.ConstraintValidator;
 import javax.validation.ConstraintValidatorContext;
 
+/**
+ * A single VM must fit in the limits of its team. The sum over all the VMs of the team is enforced atomically by the
+ * team usage counters (VmResourceAccounting), without loading the VMs of the team.
+ */
 public class TeamVmConstrainsValidator implements ConstraintValidator<TeamVmConstrains, VM> {
   @Override
   public void initialize(TeamVmConstrains constraintAnnotation) {
@@ -16,33 +20,21 @@ public class TeamVmConstrainsValidator implements ConstraintValidator<TeamVmCons
     Team t = vm.getTeam();
     if (t == null)
       return true;
-    int countVcput = 0;
-    int countDisk = 0;
-    int countRam = 0;
-    int countRunningVM = 0;
-    int countTotVM = 0;
-    for (VM v : vm.getTeam().getVms()) {
-      countVcput += v.getVcpu();
-      countRam += v.getRam();
-      countDisk += v.getDisk();
-      countRunningVM += v.isActive() ? 1 : 0;
-      countTotVM += 1;
-    }
     StringBuilder sb = new StringBuilder();
-    if (countVcput > t.getMaxVcpu()) {
-      sb.append(countVcput + " is bigger than team max vcpu " + t.getMaxVcpu() + " \n");
+    if (vm.getVcpu() > t.getMaxVcpu()) {
+      sb.append(vm.getVcpu() + " is bigger than team max vcpu " + t.getMaxVcpu() + " \n");
     }
-    if (countDisk > t.getMaxDisk()) {
-      sb.append(countDisk + " is bigger than team max disk " + t.getMaxDisk() + " \n");
+    if (vm.getDisk() > t.getMaxDisk()) {
+      sb.append(vm.getDisk() + " is bigger than team max disk " + t.getMaxDisk() + " \n");
     }
-    if (countRam > t.getMaxRam()) {
-      sb.append(countRam + " is bigger than team max ram " + t.getMaxRam() + " \n");
+    if (vm.getRam() > t.getMaxRam()) {
+      sb.append(vm.getRam() + " is bigger than team max ram " + t.getMaxRam() + " \n");
     }
-    if (countRunningVM > t.getMaxRunningVm()) {
-      sb.append("Max running VM limit reached: " + countRunningVM + "/" + t.getMaxRunningVm() + " \n");
+    if (vm.isActive() && t.getMaxRunningVm() < 1) {
+      sb.append("Max running VM limit reached: 1/" + t.getMaxRunningVm() + " \n");
     }
-    if (countTotVM > t.getMaxTotVm()) {
-      sb.append("Max VM limit reached: " + countTotVM + "/" + t.getMaxTotVm() + " \n");
+    if (t.getMaxTotVm() < 1) {
+      sb.append("Max VM limit reached: 1/" + t.getMaxTotVm() + " \n");
     }
     if (sb.length() > 0) {
       context.disableDefaultConstraintViolation();
@@ -51,4 +43,4 @@ public class TeamVmConstrainsValidator implements ConstraintValidator<TeamVmCons
     }
     return true;
   }
-}
\ No newline at end of file
+}
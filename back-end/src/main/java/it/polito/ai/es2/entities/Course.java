@@ -26,6 +26,15 @@ public class Course {
   private int maxSizeTeam;
   private boolean enabled;
   private String vmModelPath;
+  private int vmIdleMinutes; // running VMs idle longer are stopped (VmIdleScheduler): 0 server default, negative never
+  // VM budget of the whole course, over all its teams: 0 means no limit
+  @PositiveOrZero
+  private int maxVcpu, maxDisk, maxRam, maxRunningVm, maxTotVm;
+  // Sum of the usage of the teams, changed by VmResourceAccounting in the same statement as the team counters, never
+  // written by an update of the entity
+  @PositiveOrZero
+  @Column(updatable = false)
+  private int usedVcpu, usedDisk, usedRam, runningVm, totVm;
 
   @ManyToMany(cascade = {CascadeType.MERGE, CascadeType.PERSIST})
   @JoinTable(name = "course_student") // otherwise jpa-ql console wont find it
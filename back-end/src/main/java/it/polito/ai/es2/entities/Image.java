@@ -10,10 +10,14 @@ import javax.persistence.*;
 import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.PositiveOrZero;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+
 @Getter
 @Setter
 @EqualsAndHashCode(onlyExplicitlyIncluded = true)
 @Entity(name = "image")
+@EntityListeners(ImageEntityListener.class)
 public class Image {
   @Id
   @GeneratedValue
@@ -31,9 +35,23 @@ public class Image {
   @UpdateTimestamp
   private Timestamp modifyDate;
   private String directLink;
+  private Long originalSize;   // bytes before compression, null for images uploaded before it was tracked
   @Lob
   @Basic(fetch = FetchType.LAZY)
-  private byte[] picBytes;
+  private byte[] picBytes;     // only images uploaded before the content addressed store, otherwise in blob
+
+  @ManyToOne(fetch = FetchType.LAZY)
+  @JoinColumn
+  private ImageBlob blob;
+
+  // Thumbnails are images too, rendered in background from the original (see ImageThumbnailGenerator)
+  @ManyToOne(fetch = FetchType.LAZY)
+  @JoinColumn
+  private Image thumbnailOf;
+  private Integer thumbnailSize; // max(width, height) in pixels, null for originals
+  private Integer pixelSize; // max(width, height) of an original whose thumbnails are all rendered, null until then, 0 if it cannot be decoded
+  @OneToMany(mappedBy = "thumbnailOf", cascade = CascadeType.REMOVE)
+  private List<Image> thumbnails = new ArrayList<>();
 
   @OneToOne(mappedBy = "profilePhoto")
   private Student student;
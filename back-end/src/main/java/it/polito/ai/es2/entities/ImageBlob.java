@@ -0,0 +1,39 @@
+package it.polito.ai.es2.entities;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.hibernate.annotations.CreationTimestamp;
+
+import javax.persistence.*;
+import javax.validation.constraints.PositiveOrZero;
+import java.sql.Timestamp;
+
+/**
+ * Content addressed storage of image bytes, shared by all the {@link Image} rows with the same content.
+ * Rows are created by the first upload of a content and deleted when the last referencing image is removed
+ * (see {@link ImageChangedEvent}).
+ */
+@Getter
+@Setter
+@Entity
+public class ImageBlob {
+  public enum Storage {DATABASE, FILE_SYSTEM}
+
+  public enum Codec {NONE, DEFLATE, DEFLATE_FAST}
+
+  @Id
+  @Column(length = 64)
+  private String id; // hex SHA-256 of the original (uncompressed) bytes
+  @PositiveOrZero
+  private int refCount; // number of Image rows pointing to this blob
+  @CreationTimestamp
+  private Timestamp createDate;
+  private Storage storage = Storage.DATABASE; // backend holding the content, see ImageStorage
+  private Integer segment;       // FILE_SYSTEM: segment file number
+  private Long segmentOffset;    // FILE_SYSTEM: position of the content inside the segment
+  private Long storedLength;     // bytes stored (after the codec)
+  private Codec codec = Codec.DEFLATE; // how the stored bytes are encoded, see ImageCodecs
+  @Lob
+  @Basic(fetch = FetchType.LAZY)
+  private byte[] picBytes;       // DATABASE: stored content
+}
@@ -0,0 +1,16 @@
+package it.polito.ai.es2.entities;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Published by {@link ImageEntityListener} during the flush that updates or removes an image, in its transaction.
+ * Handled by the service layer (see it.polito.ai.es2.services.ImageBlobStore).
+ */
+@Getter
+@AllArgsConstructor
+public class ImageChangedEvent {
+  private final Long imageId;
+  private final String blobId; // blob released by a removal, null for updates and images without blob
+  private final boolean removed;
+}
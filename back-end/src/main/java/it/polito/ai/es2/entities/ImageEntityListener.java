@@ -0,0 +1,29 @@
+package it.polito.ai.es2.entities;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
+
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+/**
+ * Instantiated by Hibernate through the Spring bean container, so dependencies are injected.
+ * <p>Only publishes an {@link ImageChangedEvent}: the listeners run synchronously, during the flush, and must not use
+ * the persistence context.
+ */
+public class ImageEntityListener {
+  @Autowired
+  private ApplicationEventPublisher eventPublisher;
+
+  @PostRemove
+  public void postRemove(Image image) {
+    ImageBlob blob = image.getBlob();
+    String blobId = blob == null ? null : blob.getId(); // does not initialize the lazy proxy
+    eventPublisher.publishEvent(new ImageChangedEvent(image.getId(), blobId, true));
+  }
+
+  @PostUpdate
+  public void postUpdate(Image image) {
+    eventPublisher.publishEvent(new ImageChangedEvent(image.getId(), null, false));
+  }
+}
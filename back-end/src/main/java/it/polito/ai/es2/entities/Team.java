@@ -24,6 +24,11 @@ public class Team {
   private boolean disabled = false;
   @PositiveOrZero
   private int maxVcpu, maxDisk, maxRam, maxRunningVm, maxTotVm; // sum of enabled and disabled
+  // Current usage of the team VMs. Changed only by the conditional bulk updates of VmResourceAccounting, never
+  // written by an update of the entity (a stale instance would overwrite concurrent changes)
+  @PositiveOrZero
+  @Column(updatable = false)
+  private int usedVcpu, usedDisk, usedRam, runningVm, totVm;
   @CreationTimestamp
   private Timestamp createdDate;
 
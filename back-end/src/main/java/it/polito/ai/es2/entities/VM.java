@@ -5,6 +5,7 @@ import lombok.Data;
 
 import javax.persistence.*;
 import javax.validation.constraints.PositiveOrZero;
+import java.sql.Timestamp;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -12,6 +13,8 @@ import java.util.List;
 @Entity
 @TeamVmConstrains
 public class VM {
+  public enum State {CREATING, STARTING, RUNNING, STOPPING, STOPPED, FAILED, QUEUED} // stored as ordinal: append only
+
   @Id
   @GeneratedValue
   private Long id;
@@ -21,12 +24,18 @@ public class VM {
   private int disk;
   @PositiveOrZero
   private int ram;
-  private boolean active = false;
+  private boolean active = false; // desired state: the actual one is state
+  // Actual state on the VM backend, written only by VMRepository.updateState (see VmLifecycleEngine)
+  @Column(updatable = false)
+  private State state;
+  @Column(updatable = false)
+  private Timestamp stateChangedDate;
 // --> vmModel saved in course
 
-  @ManyToOne(optional = false)
-  @JoinColumn(nullable = false)
-  private Team team; // --> course
+  @ManyToOne
+  @JoinColumn
+  private Team team; // --> course. Null only for the shells of the warm pool (VmWarmPool)
+  private String poolModel; // warm pool shell: course VM model it was built for; null once claimed
 
   @ManyToOne()
   @JoinColumn
@@ -40,6 +49,10 @@ public class VM {
   @JoinColumn
   private Image imageVm;
 
+  @ManyToOne(fetch = FetchType.LAZY)
+  @JoinColumn
+  private VmDiskLayer diskLayer; // writable overlay, null for the VMs created before disk layers
+
   public void addSetTeam(Team x) {
     if (team != null)
       throw new RuntimeException("JPA-Team: overriding a OneToOne or ManyToOne field might be an error");
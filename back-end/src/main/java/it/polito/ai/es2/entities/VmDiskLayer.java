@@ -0,0 +1,27 @@
+package it.polito.ai.es2.entities;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.persistence.*;
+import java.sql.Timestamp;
+
+/**
+ * Copy-on-write disk layer: the blocks written on top of the parent layer. The layer of VM.diskLayer is the writable
+ * overlay of the VM; a layer that is the parent of another or is referenced by a snapshot is immutable and may be
+ * shared by many VMs (clones). Layers nothing references are deleted by VmDiskLayerCollector.
+ */
+@Getter
+@Setter
+@Entity
+public class VmDiskLayer {
+  @Id
+  @GeneratedValue
+  private Long id;
+  @ManyToOne(fetch = FetchType.LAZY)
+  @JoinColumn
+  private VmDiskLayer parent; // null: base layer
+  private int depth; // number of ancestors
+  @Column(nullable = false)
+  private Timestamp createdDate;
+}
@@ -0,0 +1,38 @@
+package it.polito.ai.es2.entities;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.IdClass;
+import java.io.Serializable;
+
+/**
+ * Rolled up resource usage of a VM: one row per VM, resolution and block (an hour of minutes or a day of hours).
+ * data holds, for each period of the block, average and maximum vcpu used and average and maximum ram used, as big
+ * endian floats (16 bytes per period, NaN if there were no samples). Written by VmMetricsStore.
+ */
+@Getter
+@Setter
+@Entity
+@IdClass(VmMetricsBlock.Key.class)
+public class VmMetricsBlock {
+  @Id
+  private Long vmId;
+  @Id
+  private int resolution; // seconds per period: 60 or 3600
+  @Id
+  private long periodStart; // epoch seconds of the first period of the block
+  @Column(nullable = false, length = 1536)
+  private byte[] data;
+
+  @Data
+  public static class Key implements Serializable {
+    private Long vmId;
+    private int resolution;
+    private long periodStart;
+  }
+}
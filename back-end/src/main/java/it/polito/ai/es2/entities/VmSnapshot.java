@@ -0,0 +1,30 @@
+package it.polito.ai.es2.entities;
+
+import lombok.Getter;
+import lombok.Setter;
+
+import javax.persistence.*;
+import javax.validation.constraints.NotBlank;
+import java.sql.Timestamp;
+
+/**
+ * Point in time disk of a VM: the layer that was its writable overlay when the snapshot was taken, sealed since then
+ */
+@Getter
+@Setter
+@Entity
+public class VmSnapshot {
+  @Id
+  @GeneratedValue
+  private Long id;
+  @NotBlank
+  private String name;
+  @ManyToOne(optional = false)
+  @JoinColumn(nullable = false)
+  private VM vm;
+  @ManyToOne(optional = false)
+  @JoinColumn(nullable = false)
+  private VmDiskLayer layer;
+  @Column(nullable = false)
+  private Timestamp createdDate;
+}
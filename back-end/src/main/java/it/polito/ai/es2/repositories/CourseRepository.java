@@ -8,6 +8,7 @@ import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
+import java.util.Optional;
 
 @Repository
 public interface CourseRepository extends JpaRepository<Course, String>, CourseCustomRepository {
@@ -18,4 +19,18 @@ public interface CourseRepository extends JpaRepository<Course, String>, CourseC
   List<Student> getStudentsNotInTeams(@Param("courseId") String courseId);
 
   // CustomRepository: Integer countTeamsThatViolateCardinality(String courseId, int min, int max);
+
+  // Models of the courses with a warm pool, see VmWarmPool
+  @Query("SELECT DISTINCT c.vmModelPath FROM Course c WHERE c.enabled = true")
+  List<String> findEnabledVmModelPaths();
+
+  // Course id and idle minutes, see VmIdleScheduler
+  @Query("SELECT c.id, c.vmIdleMinutes FROM Course c")
+  List<Object[]> findVmIdleMinutes();
+
+  // One row: read from the database, not from a (possibly stale) managed Course
+  @Query("SELECT c.id AS id, c.usedVcpu AS usedVcpu, c.maxVcpu AS maxVcpu, c.usedRam AS usedRam, c.maxRam AS maxRam, " +
+      "c.usedDisk AS usedDisk, c.maxDisk AS maxDisk, c.runningVm AS runningVm, c.maxRunningVm AS maxRunningVm, " +
+      "c.totVm AS totVm, c.maxTotVm AS maxTotVm FROM Course c WHERE c.id = :courseId")
+  Optional<CourseUsage> findUsageById(@Param("courseId") String courseId);
 }
@@ -0,0 +1,28 @@
+package it.polito.ai.es2.repositories;
+
+/**
+ * VM usage and budget of a course, summed over its teams. A budget of 0 is no limit
+ */
+public interface CourseUsage {
+  String getId();
+
+  int getUsedVcpu();
+
+  int getMaxVcpu();
+
+  int getUsedRam();
+
+  int getMaxRam();
+
+  int getUsedDisk();
+
+  int getMaxDisk();
+
+  int getRunningVm();
+
+  int getMaxRunningVm();
+
+  int getTotVm();
+
+  int getMaxTotVm();
+}
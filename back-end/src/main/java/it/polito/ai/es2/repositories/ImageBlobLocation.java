@@ -0,0 +1,22 @@
+package it.polito.ai.es2.repositories;
+
+import it.polito.ai.es2.entities.ImageBlob;
+
+/**
+ * Where the stored content of a blob lives, without the content itself
+ */
+public interface ImageBlobLocation {
+  String getId();
+
+  ImageBlob.Storage getStorage();
+
+  Integer getSegment();
+
+  Long getSegmentOffset();
+
+  Long getStoredLength();
+
+  ImageBlob.Codec getCodec(); // null for blobs stored before the codec was recorded: DEFLATE
+
+  Long getOriginalSize(); // decompressed size, from the image the location was looked up for
+}
@@ -0,0 +1,38 @@
+package it.polito.ai.es2.repositories;
+
+import it.polito.ai.es2.entities.ImageBlob;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+public interface ImageBlobRepository extends JpaRepository<ImageBlob, String> {
+  // Atomic, does not read the content. Returns 0 if the blob does not exist yet
+  @Modifying
+  @Query("UPDATE ImageBlob b SET b.refCount = b.refCount + 1 WHERE b.id = :id")
+  int incrementRefCount(@Param("id") String id);
+
+  @Query("SELECT b.id AS id, b.storage AS storage, b.segment AS segment, b.segmentOffset AS segmentOffset, " +
+      "b.storedLength AS storedLength, b.codec AS codec, i.originalSize AS originalSize FROM image i JOIN i.blob b WHERE i.id = :imageId")
+  Optional<ImageBlobLocation> findLocationByImageId(@Param("imageId") Long imageId);
+
+  // Keyset pagination on the hash, blobs created before the storage column existed have a null storage
+  @Query("SELECT b.id FROM ImageBlob b WHERE (b.storage = :storage OR b.storage IS NULL) AND b.id > :after ORDER BY b.id")
+  List<String> findIdsByStorageAfter(@Param("storage") ImageBlob.Storage storage, @Param("after") String after, Pageable pageable);
+
+  // Content copied to another storage: the new location replaces the database copy
+  @Modifying
+  @Query("UPDATE ImageBlob b SET b.storage = :storage, b.segment = :segment, b.segmentOffset = :offset, " +
+      "b.storedLength = :length, b.picBytes = NULL WHERE b.id = :id")
+  int updateLocation(@Param("id") String id, @Param("storage") ImageBlob.Storage storage, @Param("segment") Integer segment,
+                     @Param("offset") Long offset, @Param("length") Long length);
+
+  @Query("SELECT b.segment AS segment, SUM(b.storedLength) AS liveBytes FROM ImageBlob b WHERE b.storage = :storage GROUP BY b.segment")
+  List<ImageSegmentUsage> sumStoredLengthBySegment(@Param("storage") ImageBlob.Storage storage);
+}
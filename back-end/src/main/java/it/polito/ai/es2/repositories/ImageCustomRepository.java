@@ -0,0 +1,25 @@
+package it.polito.ai.es2.repositories;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public interface ImageCustomRepository {
+  /**
+   * Opens the stored (compressed) content of an image uploaded before the content addressed store (image.pic_bytes),
+   * without loading the entity. The stream reads the lob in chunks, one query each (on the connection of the current
+   * transaction, if any): memory is one chunk whatever the size. It is only valid inside the consumer.
+   *
+   * @return false if the image does not exist
+   */
+  boolean streamPicBytes(Long imageId, ContentConsumer consumer);
+
+  /**
+   * Same as {@link #streamPicBytes(Long, ContentConsumer)}, for a blob of the database storage (image_blob.pic_bytes)
+   */
+  boolean streamBlobPicBytes(String blobId, ContentConsumer consumer);
+
+  @FunctionalInterface
+  interface ContentConsumer {
+    void accept(InputStream content) throws IOException;
+  }
+}
@@ -0,0 +1,110 @@
+package it.polito.ai.es2.repositories;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+/**
+ * Lobs are read in chunks of myprop.images.storage.db.chunk-size bytes, one SUBSTRING query each: the MariaDB driver
+ * materializes a whole lob column when the row is read, so a single select would put the full content on the heap.
+ * Outside a transaction each chunk takes a pooled connection only for its query, never while the client is written.
+ */
+@Repository
+public class ImageCustomRepositoryImpl implements ImageCustomRepository {
+  @Autowired
+  private JdbcTemplate jdbcTemplate;
+  @Value("${myprop.images.storage.db.chunk-size:1048576}")
+  private int chunkSize;
+
+  @Override
+  public boolean streamPicBytes(Long imageId, ContentConsumer consumer) {
+    return streamLob("image", imageId, consumer);
+  }
+
+  @Override
+  public boolean streamBlobPicBytes(String blobId, ContentConsumer consumer) {
+    return streamLob("image_blob", blobId, consumer);
+  }
+
+  private boolean streamLob(String table, Object id, ContentConsumer consumer) {
+    List<Long> lengths = jdbcTemplate.query("SELECT LENGTH(pic_bytes) FROM " + table + " WHERE id = ?",
+        (rs, row) -> rs.getObject(1) == null ? null : rs.getLong(1), id);
+    if (lengths.isEmpty())
+      return false;
+    if (lengths.get(0) == null) // null lob: nothing to stream
+      return true;
+    try (InputStream content = new LobInputStream(table, id, lengths.get(0))) {
+      consumer.accept(content);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return true;
+  }
+
+  // Fetches the next chunk when the current one is consumed; skip moves the position without reading
+  private class LobInputStream extends InputStream {
+    private final String sql;
+    private final Object id;
+    private final long length;
+    private long position; // of the next byte of the lob
+    private byte[] chunk = new byte[0];
+    private int chunkOffset;
+
+    LobInputStream(String table, Object id, long length) {
+      this.sql = "SELECT SUBSTRING(pic_bytes, ?, ?) FROM " + table + " WHERE id = ?";
+      this.id = id;
+      this.length = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      if (chunkOffset == chunk.length && !fetch())
+        return -1;
+      int n = Math.min(len, chunk.length - chunkOffset);
+      System.arraycopy(chunk, chunkOffset, b, off, n);
+      chunkOffset += n;
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      long buffered = Math.min(Math.max(0, n), chunk.length - chunkOffset);
+      chunkOffset += buffered;
+      long skipped = Math.min(n - buffered, length - position);
+      position += Math.max(0, skipped);
+      return buffered + Math.max(0, skipped);
+    }
+
+    @Override
+    public int available() {
+      return chunk.length - chunkOffset;
+    }
+
+    private boolean fetch() throws IOException {
+      if (position >= length)
+        return false;
+      int size = (int) Math.min(chunkSize, length - position);
+      List<byte[]> rows = jdbcTemplate.query(sql, (rs, row) -> rs.getBytes(1), position + 1, size, id);
+      if (rows.isEmpty() || rows.get(0) == null || rows.get(0).length == 0)
+        throw new IOException("content " + id + " removed while it was read");
+      chunk = rows.get(0);
+      chunkOffset = 0;
+      position += chunk.length;
+      return true;
+    }
+  }
+}
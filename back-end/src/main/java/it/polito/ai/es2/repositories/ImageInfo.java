@@ -0,0 +1,26 @@
+package it.polito.ai.es2.repositories;
+
+import java.sql.Timestamp;
+
+/**
+ * Closed projection of {@link it.polito.ai.es2.entities.Image}: only these columns are selected, picBytes is never read
+ */
+public interface ImageInfo {
+  Long getId();
+
+  String getName();
+
+  String getType();
+
+  int getRevisionCycle();
+
+  Timestamp getCreateDate();
+
+  Timestamp getModifyDate();
+
+  String getDirectLink();
+
+  Long getOriginalSize();
+
+  String getBlobId(); // content hash, null for images uploaded before the content addressed store
+}
@@ -1,10 +1,81 @@
 package it.polito.ai.es2.repositories;
 
 import it.polito.ai.es2.entities.Image;
+import it.polito.ai.es2.entities.ImageBlob;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.sql.Timestamp;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
 @Repository
-public interface ImageRepository extends JpaRepository<Image, Long> {
+public interface ImageRepository extends JpaRepository<Image, Long>, ImageCustomRepository {
 //  Optional<Image> findByName(String id);
+
+  String INFO_SELECT = "SELECT i.id AS id, i.name AS name, i.type AS type, i.revisionCycle AS revisionCycle, i.createDate AS createDate, " +
+      "i.modifyDate AS modifyDate, i.directLink AS directLink, i.originalSize AS originalSize, b.id AS blobId " +
+      "FROM image i LEFT JOIN i.blob b ";
+
+  @Query(INFO_SELECT + "WHERE i.id = :id")
+  Optional<ImageInfo> findInfoById(@Param("id") Long id);
+
+  // One query for many images, in no particular order. No lob column is read (blob_id is the foreign key)
+  @Query(INFO_SELECT + "WHERE i.id IN :ids")
+  List<ImageInfo> findInfoByIdIn(@Param("ids") Collection<Long> ids);
+
+  @Modifying
+  @Query("UPDATE image i SET i.originalSize = :size WHERE i.id = :id")
+  int updateOriginalSize(@Param("id") Long id, @Param("size") Long size);
+
+  // Smallest thumbnail covering the requested size, use with PageRequest.of(0, 1)
+  @Query("SELECT t.id FROM image t WHERE t.thumbnailOf.id = :imageId AND t.thumbnailSize >= :size ORDER BY t.thumbnailSize")
+  List<Long> findThumbnailIds(@Param("imageId") Long imageId, @Param("size") int size, Pageable pageable);
+
+  boolean existsByThumbnailOfIdAndThumbnailSize(Long imageId, Integer thumbnailSize);
+
+  // Thumbnails rendered: see ImageThumbnailStore#setRendered
+  boolean existsByIdAndPixelSizeIsNotNull(Long id);
+
+  // Type of an original whose thumbnails are still to render, empty otherwise
+  @Query("SELECT i.type FROM image i WHERE i.id = :id AND i.thumbnailOf IS NULL AND i.pixelSize IS NULL")
+  Optional<String> findUnrenderedType(@Param("id") Long id);
+
+  @Modifying
+  @Query("UPDATE image i SET i.pixelSize = :pixelSize WHERE i.id = :id")
+  int updatePixelSize(@Param("id") Long id, @Param("pixelSize") Integer pixelSize);
+
+  // Keyset walk of the table, see ImageGarbageCollector
+  @Query("SELECT i.id FROM image i WHERE i.id > :after ORDER BY i.id")
+  List<Long> findIdsAfter(@Param("after") Long after, Pageable pageable);
+
+  // Images created before the given time that no row references. Thumbnails go with their original
+  @Query("SELECT i.id FROM image i WHERE i.id IN :ids AND i.createDate < :before AND i.thumbnailOf IS NULL AND i.submission IS NULL " +
+      "AND NOT EXISTS (SELECT s FROM Student s WHERE s.profilePhoto = i) " +
+      "AND NOT EXISTS (SELECT p FROM Professor p WHERE p.profilePhoto = i) " +
+      "AND NOT EXISTS (SELECT a FROM Assignment a WHERE a.content = i) " +
+      "AND NOT EXISTS (SELECT v FROM VM v WHERE v.imageVm = i)")
+  List<Long> findOrphanIds(@Param("ids") Collection<Long> ids, @Param("before") Timestamp before);
+
+  // Stored bytes of the blobs of a storage that would be deleted with these images (and their thumbnails), approximated:
+  // blobs shared only among them are not counted. Blobs created before the storage column existed are in the database
+  @Query("SELECT COALESCE(SUM(b.storedLength), 0) FROM image i JOIN i.blob b " +
+      "WHERE (i.id IN :ids OR i.thumbnailOf.id IN :ids) AND b.refCount = 1 AND (b.storage = :storage OR b.storage IS NULL)")
+  long sumExclusiveStoredLength(@Param("ids") Collection<Long> ids, @Param("storage") ImageBlob.Storage storage);
+
+  // Images uploaded before the content addressed store, keyset walk (see ImageStorageMigration)
+  @Query("SELECT i.id FROM image i WHERE i.blob IS NULL AND i.picBytes IS NOT NULL AND i.id > :after ORDER BY i.id")
+  List<Long> findLegacyIdsAfter(@Param("after") Long after, Pageable pageable);
+
+  // Flushes first: the blob may have just been saved
+  @Modifying(flushAutomatically = true)
+  @Query("UPDATE image i SET i.blob = :blob, i.picBytes = NULL, i.originalSize = :size WHERE i.id = :id")
+  int attachBlob(@Param("id") Long id, @Param("blob") ImageBlob blob, @Param("size") Long size);
+
+  // CustomRepository: boolean streamPicBytes(Long imageId, ContentConsumer consumer);
 }
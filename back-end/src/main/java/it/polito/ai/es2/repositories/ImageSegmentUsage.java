@@ -0,0 +1,10 @@
+package it.polito.ai.es2.repositories;
+
+/**
+ * Stored bytes of the blobs pointing to a segment of the file system storage
+ */
+public interface ImageSegmentUsage {
+  Integer getSegment();
+
+  Long getLiveBytes();
+}
@@ -2,9 +2,13 @@ package it.polito.ai.es2.repositories;
 
 import it.polito.ai.es2.entities.Team;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
+import java.util.Optional;
 
 @Repository
 public interface TeamRepository extends JpaRepository<Team, Long> {
@@ -19,4 +23,31 @@ public interface TeamRepository extends JpaRepository<Team, Long> {
   List<Team> findAllByActiveIsFalseAndDisabledIsTrueAndCourse_Id(String courseId);
 
   Team findFirstByNameAndActiveIsAndCourse_id(String name, boolean status, String courseId);
+
+  /**
+   * Atomic check and update of the usage of the team and of its course, in one statement: positive deltas are applied
+   * only if every limit of both still holds (a course limit of 0 is no limit), negative deltas (releases) always.
+   * Returns 0 if a limit would be exceeded
+   */
+  @Modifying
+  @Query(value = "UPDATE team t JOIN course c ON c.id = t.course_id SET t.used_vcpu = t.used_vcpu + :vcpu, " +
+      "t.used_ram = t.used_ram + :ram, t.used_disk = t.used_disk + :disk, t.running_vm = t.running_vm + :running, " +
+      "t.tot_vm = t.tot_vm + :total, c.used_vcpu = c.used_vcpu + :vcpu, c.used_ram = c.used_ram + :ram, " +
+      "c.used_disk = c.used_disk + :disk, c.running_vm = c.running_vm + :running, c.tot_vm = c.tot_vm + :total " +
+      "WHERE t.id = :teamId " +
+      "AND (:vcpu <= 0 OR t.used_vcpu + :vcpu <= t.max_vcpu) AND (:ram <= 0 OR t.used_ram + :ram <= t.max_ram) " +
+      "AND (:disk <= 0 OR t.used_disk + :disk <= t.max_disk) AND (:running <= 0 OR t.running_vm + :running <= t.max_running_vm) " +
+      "AND (:total <= 0 OR t.tot_vm + :total <= t.max_tot_vm) " +
+      "AND (:vcpu <= 0 OR c.max_vcpu = 0 OR c.used_vcpu + :vcpu <= c.max_vcpu) AND (:ram <= 0 OR c.max_ram = 0 OR c.used_ram + :ram <= c.max_ram) " +
+      "AND (:disk <= 0 OR c.max_disk = 0 OR c.used_disk + :disk <= c.max_disk) " +
+      "AND (:running <= 0 OR c.max_running_vm = 0 OR c.running_vm + :running <= c.max_running_vm) " +
+      "AND (:total <= 0 OR c.max_tot_vm = 0 OR c.tot_vm + :total <= c.max_tot_vm)", nativeQuery = true)
+  int addUsage(@Param("teamId") Long teamId, @Param("vcpu") int vcpu, @Param("ram") int ram, @Param("disk") int disk,
+               @Param("running") int running, @Param("total") int total);
+
+  // Read from the database, not from a (possibly stale) managed Team
+  @Query("SELECT t.id AS id, t.usedVcpu AS usedVcpu, t.maxVcpu AS maxVcpu, t.usedRam AS usedRam, t.maxRam AS maxRam, " +
+      "t.usedDisk AS usedDisk, t.maxDisk AS maxDisk, t.runningVm AS runningVm, t.maxRunningVm AS maxRunningVm, " +
+      "t.totVm AS totVm, t.maxTotVm AS maxTotVm FROM Team t WHERE t.id = :teamId")
+  Optional<TeamUsage> findUsageById(@Param("teamId") Long teamId);
 }
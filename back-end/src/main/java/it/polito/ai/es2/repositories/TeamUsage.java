@@ -0,0 +1,28 @@
+package it.polito.ai.es2.repositories;
+
+/**
+ * Resource usage and limits of a team
+ */
+public interface TeamUsage {
+  Long getId();
+
+  int getUsedVcpu();
+
+  int getMaxVcpu();
+
+  int getUsedRam();
+
+  int getMaxRam();
+
+  int getUsedDisk();
+
+  int getMaxDisk();
+
+  int getRunningVm();
+
+  int getMaxRunningVm();
+
+  int getTotVm();
+
+  int getMaxTotVm();
+}
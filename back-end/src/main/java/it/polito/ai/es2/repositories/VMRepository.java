@@ -1,9 +1,97 @@
 package it.polito.ai.es2.repositories;
 
+import it.polito.ai.es2.entities.Student;
+import it.polito.ai.es2.entities.Team;
 import it.polito.ai.es2.entities.VM;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.LockModeType;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+
 @Repository
 public interface VMRepository extends JpaRepository<VM, Long> {
+  String STATUS_SELECT = "SELECT v.id AS id, v.active AS active, v.vcpu AS vcpu, v.ram AS ram, v.disk AS disk, v.state AS state, " +
+      "v.stateChangedDate AS stateChangedDate, t.id AS teamId, t.course.id AS courseId, l.id AS diskLayerId FROM VM v LEFT JOIN v.team t LEFT JOIN v.diskLayer l ";
+
+  @Modifying
+  @Query("UPDATE VM v SET v.state = :state, v.stateChangedDate = CURRENT_TIMESTAMP WHERE v.id = :id")
+  int updateState(@Param("id") Long id, @Param("state") VM.State state);
+
+  // Serializes snapshots, clones and restores of a VM
+  @Lock(LockModeType.PESSIMISTIC_WRITE)
+  @Query("SELECT v FROM VM v WHERE v.id = :id")
+  Optional<VM> findByIdForUpdate(@Param("id") Long id);
+
+  @Query(STATUS_SELECT + "WHERE v.id = :id")
+  Optional<VmStatus> findStatusById(@Param("id") Long id);
+
+  @Query(STATUS_SELECT + "WHERE t.id = :teamId")
+  List<VmStatus> findStatusByTeamId(@Param("teamId") Long teamId);
+
+  @Query(STATUS_SELECT + "WHERE t.course.id = :courseId")
+  List<VmStatus> findStatusByCourseId(@Param("courseId") String courseId);
+
+  @Query(STATUS_SELECT + "WHERE v.id IN :ids")
+  List<VmStatus> findStatusByIdIn(@Param("ids") Collection<Long> ids);
+
+  long countByIdIn(Collection<Long> ids);
+
+  @Query("SELECT COUNT(DISTINCT v) FROM VM v LEFT JOIN v.sharedOwners s WHERE v.id IN :ids AND (v.creator.id = :studentId OR s.id = :studentId)")
+  long countOwnedByStudent(@Param("ids") Collection<Long> ids, @Param("studentId") Long studentId);
+
+  // Creator or shared owner, as isVmOwner
+  @Query("SELECT DISTINCT v.id FROM VM v LEFT JOIN v.sharedOwners s WHERE v.id IN :ids AND (v.creator.id = :studentId OR s.id = :studentId)")
+  List<Long> findIdsOwnedByStudent(@Param("ids") Collection<Long> ids, @Param("studentId") Long studentId);
+
+  @Query("SELECT COUNT(DISTINCT v) FROM VM v JOIN v.team t JOIN t.course c JOIN c.professors p WHERE v.id IN :ids AND p.id = :professorId")
+  long countManagedByProfessor(@Param("ids") Collection<Long> ids, @Param("professorId") Long professorId);
+
+  // Set-based start/stop: desired and pending state of many VMs in one statement
+  @Modifying
+  @Query("UPDATE VM v SET v.active = :active, v.state = :state, v.stateChangedDate = CURRENT_TIMESTAMP WHERE v.id IN :ids")
+  int updateActive(@Param("ids") Collection<Long> ids, @Param("active") boolean active, @Param("state") VM.State state);
+
+  // Hibernate removes the shared owner rows too; the screenshots are left to the image garbage collector
+  @Modifying
+  @Query("DELETE FROM VM v WHERE v.id IN :ids")
+  int deleteInBulk(@Param("ids") Collection<Long> ids);
+
+  // VM id and email of creator and shared owners
+  @Query("SELECT v.id, s.email FROM VM v JOIN v.creator s WHERE v.id IN :ids AND s.email IS NOT NULL")
+  List<Object[]> findCreatorEmails(@Param("ids") Collection<Long> ids);
+
+  @Query("SELECT v.id, s.email FROM VM v JOIN v.sharedOwners s WHERE v.id IN :ids AND s.email IS NOT NULL")
+  List<Object[]> findSharedOwnerEmails(@Param("ids") Collection<Long> ids);
+
+  // Warm pool shells of a model, see VmWarmPool
+  @Query("SELECT v.id FROM VM v WHERE v.team IS NULL AND v.poolModel = :model ORDER BY v.id")
+  List<Long> findPoolShells(@Param("model") String model, Pageable pageable);
+
+  // Rows of model and number of shells
+  @Query("SELECT v.poolModel, COUNT(v) FROM VM v WHERE v.team IS NULL AND v.poolModel IS NOT NULL GROUP BY v.poolModel")
+  List<Object[]> countPoolShells();
+
+  // Binds a shell only if nobody claimed it meanwhile
+  @Modifying
+  @Query("UPDATE VM v SET v.team = :team, v.creator = :creator, v.vcpu = :vcpu, v.ram = :ram, v.disk = :disk, v.poolModel = NULL, " +
+      "v.state = :state, v.stateChangedDate = CURRENT_TIMESTAMP WHERE v.id = :id AND v.team IS NULL")
+  int claimShell(@Param("id") Long id, @Param("team") Team team, @Param("creator") Student creator, @Param("vcpu") int vcpu,
+                 @Param("ram") int ram, @Param("disk") int disk, @Param("state") VM.State state);
+
+  @Modifying
+  @Query("DELETE FROM VM v WHERE v.id IN :ids AND v.team IS NULL")
+  int deletePoolShells(@Param("ids") Collection<Long> ids);
+
+  // Keyset walk of the table, see VmLifecycleEngine
+  @Query(STATUS_SELECT + "WHERE v.id > :after ORDER BY v.id")
+  List<VmStatus> findStatusAfter(@Param("after") Long after, Pageable pageable);
 }
@@ -0,0 +1,20 @@
+package it.polito.ai.es2.repositories;
+
+import it.polito.ai.es2.entities.VmDiskLayer;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface VmDiskLayerRepository extends JpaRepository<VmDiskLayer, Long> {
+  // Layers that are neither a VM overlay, nor a snapshot, nor the parent of another layer. The parent ids are read
+  // through a derived table: MariaDB does not allow a subquery on the table being deleted from
+  @Modifying
+  @Query(value = "DELETE FROM vm_disk_layer WHERE id NOT IN (SELECT disk_layer_id FROM vm WHERE disk_layer_id IS NOT NULL) " +
+      "AND id NOT IN (SELECT layer_id FROM vm_snapshot) " +
+      "AND id NOT IN (SELECT parent_id FROM (SELECT parent_id FROM vm_disk_layer WHERE parent_id IS NOT NULL) p) LIMIT :limit",
+      nativeQuery = true)
+  int deleteUnreferenced(@Param("limit") int limit);
+}
@@ -0,0 +1,33 @@
+package it.polito.ai.es2.repositories;
+
+import it.polito.ai.es2.entities.VmMetricsBlock;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface VmMetricsBlockRepository extends JpaRepository<VmMetricsBlock, VmMetricsBlock.Key> {
+  @Query("SELECT b FROM VmMetricsBlock b WHERE b.vmId IN :vmIds AND b.resolution = :resolution " +
+      "AND b.periodStart >= :from AND b.periodStart <= :to")
+  List<VmMetricsBlock> findBlocks(@Param("vmIds") Collection<Long> vmIds, @Param("resolution") int resolution,
+                                  @Param("from") long from, @Param("to") long to);
+
+  @Modifying
+  @Query("DELETE FROM VmMetricsBlock b WHERE b.vmId IN :vmIds")
+  int deleteByVmIdIn(@Param("vmIds") Collection<Long> vmIds);
+
+  // Blocks starting before the given epoch second, at most limit rows per statement
+  @Modifying
+  @Query(value = "DELETE FROM vm_metrics_block WHERE period_start < :before LIMIT :limit", nativeQuery = true)
+  int deleteExpired(@Param("before") long before, @Param("limit") int limit);
+
+  // Blocks of VMs deleted without going through VmMetricsStore#delete (e.g. with their course)
+  @Modifying
+  @Query(value = "DELETE FROM vm_metrics_block WHERE vm_id NOT IN (SELECT id FROM vm) LIMIT :limit", nativeQuery = true)
+  int deleteOrphans(@Param("limit") int limit);
+}
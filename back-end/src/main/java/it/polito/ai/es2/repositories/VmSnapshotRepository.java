@@ -0,0 +1,25 @@
+package it.polito.ai.es2.repositories;
+
+import it.polito.ai.es2.entities.VmSnapshot;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface VmSnapshotRepository extends JpaRepository<VmSnapshot, Long> {
+  @Query("SELECT s FROM VmSnapshot s JOIN FETCH s.layer WHERE s.vm.id = :vmId ORDER BY s.id")
+  List<VmSnapshot> findByVmId(@Param("vmId") Long vmId);
+
+  @Query("SELECT COUNT(s) FROM VmSnapshot s WHERE s.vm.id = :vmId")
+  long countByVmId(@Param("vmId") Long vmId);
+
+  // Before the VMs are deleted: their layers are left to VmDiskLayerCollector
+  @Modifying
+  @Query("DELETE FROM VmSnapshot s WHERE s.vm.id IN :vmIds")
+  int deleteByVmIdIn(@Param("vmIds") Collection<Long> vmIds);
+}
@@ -0,0 +1,30 @@
+package it.polito.ai.es2.repositories;
+
+import it.polito.ai.es2.entities.VM;
+
+import java.sql.Timestamp;
+
+/**
+ * Desired (active) and last known actual state of a VM, with the resources to create it
+ */
+public interface VmStatus {
+  Long getId();
+
+  boolean isActive();
+
+  int getVcpu();
+
+  int getRam();
+
+  int getDisk();
+
+  VM.State getState();
+
+  Timestamp getStateChangedDate();
+
+  Long getTeamId();
+
+  String getCourseId();
+
+  Long getDiskLayerId();
+}
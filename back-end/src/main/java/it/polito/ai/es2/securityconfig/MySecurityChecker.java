@@ -1,5 +1,6 @@
 package it.polito.ai.es2.securityconfig;
 
+import it.polito.ai.es2.dtos.VmBulkRequestDTO;
 import it.polito.ai.es2.dtos.VmDTO;
 import it.polito.ai.es2.entities.*;
 import it.polito.ai.es2.repositories.CourseRepository;
@@ -38,11 +39,12 @@ public class MySecurityChecker {
       return false;
     }
     VM savedVm = vmRepository.findById(vmId).orElse(null);
-    if (savedVm == null)
+    if (savedVm == null || savedVm.getTeam() == null) // warm pool shells belong to nobody
       return false;
     // Changes to SharedOwners are not saved, without neither transactional nor save
     List<Student> owners = new ArrayList<>(savedVm.getSharedOwners());
-    owners.add(savedVm.getCreator());
+    if (savedVm.getCreator() != null)
+      owners.add(savedVm.getCreator());
     return owners.stream().anyMatch(owner -> studentId.equals(owner.getId()));
   }
   public boolean isVmOwner(VmDTO vmDTO, String principal_username) {
@@ -53,15 +55,69 @@ public class MySecurityChecker {
     if (student == null) {
       return false;
     }
-    VM savedVm = vmRepository.findById(vmDTO.getId()).orElse(null);
-    if (savedVm == null)
+    VM savedVm = vmDTO.getId() == null ? null : vmRepository.findById(vmDTO.getId()).orElse(null);
+    if (savedVm == null || savedVm.getTeam() == null) // warm pool shells belong to nobody
       return false;
     // Changes to SharedOwners are not saved, without neither transactional nor save
     List<Student> owners = new ArrayList<>(savedVm.getSharedOwners());
-    owners.add(savedVm.getCreator());
+    if (savedVm.getCreator() != null)
+      owners.add(savedVm.getCreator());
     return owners.stream().anyMatch(owner -> studentId.equals(owner.getId()));
   }
 
+  public boolean isVmTeamMember(Long vmId, String principal_username) {
+    if (vmId == null || principal_username.isBlank())
+      return false;
+    List<Student> students = vmRepository.findById(vmId).map(vm -> vm.getTeam() != null ? vm.getTeam().getStudents() : null).orElse(null);
+    if (students == null)
+      return false;
+    return students.stream().anyMatch(student -> student.getId().toString().equals(principal_username));
+  }
+
+  // Professor: VMs of the teams of their courses. Warm pool shells (no team) belong to nobody
+  public boolean isVmCourseOwner(Long vmId, String principal_username) {
+    if (vmId == null || principal_username.isBlank())
+      return false;
+    String courseId = vmRepository.findById(vmId).map(vm -> vm.getTeam() != null ? vm.getTeam().getCourse().getId() : null).orElse(null);
+    return courseId != null && isCourseOwner(courseId, principal_username);
+  }
+
+  public boolean isTeamCourseOwner(Long teamId, String principal_username) {
+    if (teamId == null || principal_username.isBlank())
+      return false;
+    return teamRepository.findById(teamId).map(team -> isCourseOwner(team.getCourse().getId(), principal_username)).orElse(false);
+  }
+
+  // Student: VMs of one of their teams, or VMs they own
+  public boolean isVmBulkOwner(VmBulkRequestDTO request, String principal_username) {
+    if (request == null || principal_username.isBlank())
+      return false;
+    if (request.getTeamId() != null) // only the VMs the student owns are changed, see VLServiceImpl#bulkVms
+      return isTeamOwner(request.getTeamId(), principal_username);
+    if (request.getVmIds() == null)
+      return false;
+    if (request.getVmIds().isEmpty())
+      return true;
+    Long studentId = Long.valueOf(principal_username);
+    return vmRepository.countOwnedByStudent(request.getVmIds(), studentId) == vmRepository.countByIdIn(request.getVmIds());
+  }
+
+  // Professor: VMs of the teams of their courses
+  public boolean isVmBulkCourseOwner(VmBulkRequestDTO request, String principal_username) {
+    if (request == null || principal_username.isBlank())
+      return false;
+    if (request.getCourseId() != null)
+      return isCourseOwner(request.getCourseId(), principal_username);
+    if (request.getTeamId() != null)
+      return isTeamCourseOwner(request.getTeamId(), principal_username);
+    if (request.getVmIds() == null)
+      return false;
+    if (request.getVmIds().isEmpty())
+      return true;
+    Long professorId = Long.valueOf(principal_username);
+    return vmRepository.countManagedByProfessor(request.getVmIds(), professorId) == vmRepository.countByIdIn(request.getVmIds());
+  }
+
   public boolean isStudentEnrolled(String courseId, String principal_username) {
     Long studentId = Long.valueOf(principal_username);
     if (courseId.isBlank() || principal_username.isBlank())
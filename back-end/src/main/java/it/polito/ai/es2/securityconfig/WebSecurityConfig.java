@@ -71,6 +71,7 @@ public class WebSecurityConfig extends WebSecurityConfigurerAdapter implements W
         .antMatchers("/courses/**").permitAll() //.hasAnyRole("STUDENT", "PROFESSOR")
         .antMatchers("/students/**").authenticated()
         .antMatchers("/teams/**").authenticated()
+        .antMatchers("/api/images/uploads/**").hasAnyRole("STUDENT", "PROFESSOR")
         .antMatchers("/api/images/**").permitAll()
         .antMatchers("/api/users/**").permitAll()
         .antMatchers("/notification/**").permitAll()
@@ -0,0 +1,87 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.entities.ImageBlob;
+import it.polito.ai.es2.repositories.ImageBlobLocation;
+import it.polito.ai.es2.repositories.ImageBlobRepository;
+import it.polito.ai.es2.repositories.ImageCustomRepository.ContentConsumer;
+import it.polito.ai.es2.repositories.ImageRepository;
+import it.polito.ai.es2.services.exceptions.ImageNotFoundException;
+import it.polito.ai.es2.services.interfaces.ImageStorage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Default backend: content in the image_blob.pic_bytes lob, read in chunks of myprop.images.storage.db.chunk-size bytes
+ * (one query each, see {@link it.polito.ai.es2.repositories.ImageCustomRepositoryImpl}) so only a chunk is in memory
+ */
+@Service
+public class DatabaseImageStorage implements ImageStorage {
+  @Autowired
+  ImageRepository imageRepository;
+  @Autowired
+  ImageBlobRepository imageBlobRepository;
+  @Autowired
+  JdbcTemplate jdbcTemplate;
+
+  @Override
+  public ImageBlob.Storage getType() {
+    return ImageBlob.Storage.DATABASE;
+  }
+
+  @Override
+  public void write(ImageBlob blob, byte[] content) {
+    blob.setStorage(ImageBlob.Storage.DATABASE);
+    blob.setStoredLength((long) content.length);
+    blob.setPicBytes(content);
+  }
+
+  // The row is inserted without content, then the lob is streamed with JDBC on the connection of the transaction
+  @Override
+  public void write(ImageBlob blob, Path content) throws IOException {
+    long length = Files.size(content);
+    blob.setStorage(ImageBlob.Storage.DATABASE);
+    blob.setStoredLength(length);
+    blob.setPicBytes(null);
+    imageBlobRepository.saveAndFlush(blob); // not dirty afterwards: the lob is not overwritten by a later flush
+    try (InputStream inputStream = Files.newInputStream(content)) {
+      jdbcTemplate.update("UPDATE image_blob SET pic_bytes = ? WHERE id = ?", ps -> {
+        ps.setBinaryStream(1, inputStream, length);
+        ps.setString(2, blob.getId());
+      });
+    }
+  }
+
+  @Override
+  public void read(ImageBlobLocation location, ContentConsumer consumer) {
+    if (!imageRepository.streamBlobPicBytes(location.getId(), consumer))
+      throw new ImageNotFoundException("content " + location.getId());
+  }
+
+  // No zero-copy path for a lob: plain buffered copy
+  @Override
+  public long transferTo(ImageBlobLocation location, long position, long count, WritableByteChannel target) {
+    long[] transferred = {0};
+    read(location, content -> {
+      for (long skipped = 0, n; skipped < position; skipped += n)
+        if ((n = content.skip(position - skipped)) <= 0)
+          return;
+      OutputStream outputStream = Channels.newOutputStream(target);
+      byte[] buffer = new byte[ImageServiceImpl.STREAM_BUFFER_SIZE];
+      int n;
+      while (transferred[0] < count && (n = content.read(buffer, 0, (int) Math.min(buffer.length, count - transferred[0]))) != -1) {
+        outputStream.write(buffer, 0, n);
+        transferred[0] += n;
+      }
+    });
+    return transferred[0];
+  }
+}
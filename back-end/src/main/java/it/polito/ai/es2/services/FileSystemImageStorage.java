@@ -0,0 +1,288 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.dtos.ImageSegmentDTO;
+import it.polito.ai.es2.dtos.ImageStorageStatsDTO;
+import it.polito.ai.es2.entities.ImageBlob;
+import it.polito.ai.es2.repositories.ImageBlobLocation;
+import it.polito.ai.es2.repositories.ImageBlobRepository;
+import it.polito.ai.es2.repositories.ImageCustomRepository.ContentConsumer;
+import it.polito.ai.es2.repositories.ImageSegmentUsage;
+import it.polito.ai.es2.services.exceptions.ImageException;
+import it.polito.ai.es2.services.interfaces.ImageStorage;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Local file system backend: blobs are appended to segment files (segment-000001.dat, ...) and the image_blob row
+ * only keeps segment, offset and length. Segments are never rewritten: a segment that reached the maximum size is
+ * sealed and read through a single read only mapping, the active one through a mapping of the requested region.
+ * <p>Single node: the directory must not be shared by more than one server instance.
+ * Content of deleted blobs stays in its segment (no compaction yet): {@link #getStats()} reports it per segment.
+ */
+@Service
+@Log
+public class FileSystemImageStorage implements ImageStorage {
+  @Autowired
+  ImageBlobRepository imageBlobRepository;
+  @Value("${myprop.images.storage.fs.dir:image-store}")
+  private String directory;
+  @Value("${myprop.images.storage.fs.segment-size:268435456}")
+  private long segmentSize; // a sealed segment is mapped at once: at most Integer.MAX_VALUE
+  private volatile Path root;
+  private volatile int activeSegment;
+  private FileChannel appendChannel;
+  private final Map<Integer, FileChannel> readChannels = new ConcurrentHashMap<>();
+  private final Map<Integer, MappedByteBuffer> sealedSegments = new ConcurrentHashMap<>();
+
+  @Override
+  public ImageBlob.Storage getType() {
+    return ImageBlob.Storage.FILE_SYSTEM;
+  }
+
+  @Override
+  public synchronized void write(ImageBlob blob, byte[] content) {
+    try {
+      FileChannel channel = reserve(content.length);
+      long offset = channel.size();
+      ByteBuffer buffer = ByteBuffer.wrap(content);
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+      channel.force(false); // content must be durable before the row pointing to it is committed
+      blob.setStorage(ImageBlob.Storage.FILE_SYSTEM);
+      blob.setSegment(activeSegment);
+      blob.setSegmentOffset(offset);
+      blob.setStoredLength((long) content.length);
+    } catch (IOException e) {
+      e.printStackTrace();
+      throw new ImageException("file system storage write failed");
+    }
+  }
+
+  @Override
+  public synchronized void write(ImageBlob blob, Path content) throws IOException {
+    try (FileChannel source = FileChannel.open(content, StandardOpenOption.READ)) {
+      long length = source.size();
+      FileChannel channel = reserve(length);
+      long offset = channel.size();
+      for (long copied = 0; copied < length; ) // file to file, in the kernel when possible
+        copied += source.transferTo(copied, length - copied, channel);
+      channel.force(false);
+      blob.setStorage(ImageBlob.Storage.FILE_SYSTEM);
+      blob.setSegment(activeSegment);
+      blob.setSegmentOffset(offset);
+      blob.setStoredLength(length);
+    }
+  }
+
+  @Override
+  public void read(ImageBlobLocation location, ContentConsumer consumer) {
+    ByteBuffer region = region(location);
+    try {
+      consumer.accept(new ByteBufferInputStream(region));
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  @Override
+  public long transferTo(ImageBlobLocation location, long position, long count, WritableByteChannel target) throws IOException {
+    FileChannel channel = readChannel(location.getSegment());
+    long start = location.getSegmentOffset() + position;
+    long total = Math.max(0, Math.min(count, location.getStoredLength() - position));
+    long transferred = 0;
+    while (transferred < total) {
+      long n = channel.transferTo(start + transferred, total - transferred, target);
+      if (n <= 0)
+        break;
+      transferred += n;
+    }
+    return transferred;
+  }
+
+  /**
+   * Size of every segment file and the part of it still referenced by a blob, summed from the image_blob rows: the
+   * rest is dead. Content written by a transaction not yet committed is counted as dead until the commit.
+   * <p>Does not create the directory if the backend was never used.
+   */
+  public ImageStorageStatsDTO getStats() {
+    Map<Integer, Long> live = imageBlobRepository.sumStoredLengthBySegment(ImageBlob.Storage.FILE_SYSTEM).stream()
+        .filter(u -> u.getSegment() != null)
+        .collect(Collectors.toMap(ImageSegmentUsage::getSegment, ImageSegmentUsage::getLiveBytes));
+    List<ImageSegmentDTO> segments = new ArrayList<>();
+    Path dir = Paths.get(directory);
+    if (Files.isDirectory(dir)) {
+      try (Stream<Path> files = Files.list(dir)) {
+        for (Path file : (Iterable<Path>) files.sorted()::iterator) {
+          String name = file.getFileName().toString();
+          if (!name.matches("segment-\\d{6}\\.dat"))
+            continue;
+          ImageSegmentDTO segment = new ImageSegmentDTO();
+          segment.setSegment(Integer.parseInt(name.substring(8, 14)));
+          segment.setActive(root != null && segment.getSegment() == activeSegment);
+          segment.setSize(Files.size(file));
+          segment.setLiveBytes(live.getOrDefault(segment.getSegment(), 0L));
+          segment.setDeadBytes(Math.max(0, segment.getSize() - segment.getLiveBytes()));
+          segments.add(segment);
+        }
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+    ImageStorageStatsDTO stats = new ImageStorageStatsDTO();
+    stats.setSegments(segments);
+    stats.setTotalBytes(segments.stream().mapToLong(ImageSegmentDTO::getSize).sum());
+    stats.setDeadBytes(segments.stream().mapToLong(ImageSegmentDTO::getDeadBytes).sum());
+    return stats;
+  }
+
+  private ByteBuffer region(ImageBlobLocation location) {
+    int segment = location.getSegment();
+    int offset = Math.toIntExact(location.getSegmentOffset());
+    int length = Math.toIntExact(location.getStoredLength());
+    if (segment < activeSegment()) {
+      ByteBuffer sealed = sealedSegments.computeIfAbsent(segment, s -> map(s, 0, -1)).duplicate();
+      sealed.position(offset).limit(offset + length);
+      return sealed.slice();
+    }
+    return map(segment, offset, length);
+  }
+
+  private MappedByteBuffer map(int segment, long offset, long length) {
+    try {
+      FileChannel channel = readChannel(segment);
+      return channel.map(FileChannel.MapMode.READ_ONLY, offset, length < 0 ? channel.size() : length);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private FileChannel readChannel(int segment) {
+    return readChannels.computeIfAbsent(segment, s -> {
+      try {
+        return FileChannel.open(segmentPath(s), StandardOpenOption.READ);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    });
+  }
+
+  // Append channel of the segment that receives the next length bytes: a full segment is sealed
+  private FileChannel reserve(long length) throws IOException {
+    FileChannel channel = appendChannel();
+    if (channel.size() > 0 && channel.size() + length > segmentSize) {
+      channel.close();
+      activeSegment++;
+      appendChannel = null;
+      channel = appendChannel();
+    }
+    return channel;
+  }
+
+  private FileChannel appendChannel() throws IOException {
+    if (appendChannel == null) {
+      activeSegment();
+      appendChannel = FileChannel.open(segmentPath(activeSegment),
+          StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+    return appendChannel;
+  }
+
+  private int activeSegment() {
+    if (root == null)
+      open();
+    return activeSegment;
+  }
+
+  // Lazy: the directory is created only if the backend is used. After a restart appends continue on the last segment
+  private synchronized void open() {
+    if (root == null) {
+      if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE)
+        throw new ImageException("invalid segment size " + segmentSize);
+      try {
+        Path dir = Paths.get(directory);
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+          activeSegment = files.map(p -> p.getFileName().toString())
+              .filter(name -> name.matches("segment-\\d{6}\\.dat"))
+              .mapToInt(name -> Integer.parseInt(name.substring(8, 14)))
+              .max().orElse(1);
+        }
+        root = dir;
+        log.info("File system image storage in " + dir.toAbsolutePath() + ", active segment " + activeSegment);
+      } catch (IOException e) {
+        e.printStackTrace();
+        throw new ImageException("file system storage not available");
+      }
+    }
+  }
+
+  private Path segmentPath(int segment) {
+    activeSegment();
+    return root.resolve(String.format("segment-%06d.dat", segment));
+  }
+
+  @PreDestroy
+  public synchronized void close() throws IOException {
+    if (appendChannel != null)
+      appendChannel.close();
+    for (FileChannel channel : readChannels.values())
+      channel.close();
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0)
+        return 0;
+      if (!buffer.hasRemaining())
+        return -1;
+      int n = Math.min(len, buffer.remaining());
+      buffer.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public long skip(long n) {
+      int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+      buffer.position(buffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return buffer.remaining();
+    }
+  }
+}
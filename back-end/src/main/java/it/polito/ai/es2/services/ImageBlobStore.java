@@ -0,0 +1,160 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.entities.ImageBlob;
+import it.polito.ai.es2.entities.ImageChangedEvent;
+import it.polito.ai.es2.repositories.ImageBlobRepository;
+import it.polito.ai.es2.services.exceptions.ImageException;
+import it.polito.ai.es2.services.interfaces.ImageStorage;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * Content addressed store of the image blobs, shared by the uploads ({@link ImageServiceImpl}) and the thumbnails
+ * ({@link ImageThumbnailStore}). Must be called in the transaction that saves the image referencing the blob.
+ */
+@Component
+@Log
+public class ImageBlobStore {
+  @Autowired
+  ImageBlobRepository imageBlobRepository;
+  @Autowired
+  List<ImageStorage> imageStorages;
+  @Value("${myprop.images.storage:DATABASE}")
+  ImageBlob.Storage writeStorage; // backend for new blobs
+  @Autowired
+  ImageCodecs imageCodecs;
+  @Autowired
+  JdbcTemplate jdbcTemplate;
+  @Autowired
+  OffHeapImageCache imageCache;
+
+  /**
+   * A content already stored costs one hash and a reference count increment, without a second blob write. Two
+   * concurrent first uploads of the same content may collide on the primary key: the second transaction fails and the
+   * upload can be retried.
+   */
+  public ImageBlob acquire(String contentType, byte[] data) {
+    String hash = sha256(data);
+    if (imageBlobRepository.incrementRefCount(hash) > 0) {
+      log.info("Image content " + hash + " already stored, blob shared");
+      return imageBlobRepository.getOne(hash);
+    }
+    ImageBlob blob = new ImageBlob();
+    blob.setId(hash);
+    blob.setRefCount(1);
+    blob.setCodec(imageCodecs.choose(contentType, data));
+    storage(writeStorage).write(blob, imageCodecs.encode(blob.getCodec(), data));
+    return imageBlobRepository.save(blob);
+  }
+
+  /**
+   * Same as {@link #acquire(String, byte[])} for content staged in a file. The encoded content goes through a
+   * temporary file next to it, unless it is stored raw.
+   */
+  public ImageBlob acquire(String contentType, Path content) throws IOException {
+    return acquire(contentType, content, writeStorage);
+  }
+
+  /**
+   * Same as {@link #acquire(String, Path)}, a new blob is written to the given storage
+   */
+  public ImageBlob acquire(String contentType, Path content, ImageBlob.Storage target) throws IOException {
+    MessageDigest digest = sha256();
+    try (InputStream inputStream = new DigestInputStream(Files.newInputStream(content), digest)) {
+      inputStream.transferTo(OutputStream.nullOutputStream());
+    }
+    String hash = hex(digest.digest());
+    if (imageBlobRepository.incrementRefCount(hash) > 0) {
+      log.info("Image content " + hash + " already stored, blob shared");
+      return imageBlobRepository.getOne(hash);
+    }
+    ImageBlob blob = new ImageBlob();
+    blob.setId(hash);
+    blob.setRefCount(1);
+    blob.setCodec(imageCodecs.choose(contentType, content));
+    if (blob.getCodec() == ImageBlob.Codec.NONE)
+      storage(target).write(blob, content);
+    else {
+      Path encoded = content.resolveSibling(content.getFileName() + ".enc");
+      try {
+        try (OutputStream outputStream = imageCodecs.encoder(blob.getCodec(), Files.newOutputStream(encoded))) {
+          Files.copy(content, outputStream);
+        }
+        storage(target).write(blob, encoded);
+      } finally {
+        Files.deleteIfExists(encoded);
+      }
+    }
+    return imageBlobRepository.save(blob);
+  }
+
+  /**
+   * Releases a reference to the blob, which is deleted together with the last image referencing it.
+   * <p>Plain JDBC on purpose: also called during the flush, when the persistence context must not be used. The
+   * statements run on the connection of the current transaction.
+   */
+  public void release(String blobId) {
+    jdbcTemplate.update("UPDATE image_blob SET ref_count = ref_count - 1 WHERE id = ?", blobId);
+    jdbcTemplate.update("DELETE FROM image_blob WHERE id = ? AND ref_count <= 0", blobId);
+  }
+
+  /**
+   * Every removal of an image, direct or cascaded, releases its blob; every change evicts its cached content
+   */
+  @EventListener
+  public void onImageChanged(ImageChangedEvent event) {
+    if (event.isRemoved() && event.getBlobId() != null)
+      release(event.getBlobId());
+    Long imageId = event.getImageId();
+    imageCache.invalidate(imageId);
+    // Until commit a reader can still refill the entry from the old content
+    if (TransactionSynchronizationManager.isSynchronizationActive())
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          imageCache.invalidate(imageId);
+        }
+      });
+  }
+
+  public ImageStorage storage(ImageBlob.Storage type) {
+    ImageBlob.Storage storageType = type == null ? ImageBlob.Storage.DATABASE : type;
+    return imageStorages.stream().filter(s -> s.getType() == storageType).findFirst()
+        .orElseThrow(() -> new ImageException("no storage backend " + storageType));
+  }
+
+  private static String sha256(byte[] data) {
+    return hex(sha256().digest(data));
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e); // SHA-256 is mandatory in every JVM
+    }
+  }
+
+  private static String hex(byte[] digest) {
+    StringBuilder sb = new StringBuilder(digest.length * 2);
+    for (byte b : digest)
+      sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+    return sb.toString();
+  }
+}
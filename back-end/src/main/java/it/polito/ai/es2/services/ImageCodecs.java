@@ -0,0 +1,175 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.entities.ImageBlob.Codec;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Chooses how the content of a new blob is stored, from the content type and a sample of the data:
+ * <ul>
+ * <li>NONE: formats that are already compressed (jpeg, png, ...) or high entropy data. Stored and served as is</li>
+ * <li>DEFLATE_FAST: deflate at BEST_SPEED for data with moderate redundancy</li>
+ * <li>DEFLATE: deflate at myprop.images.codec.deflate-level for very redundant data (bmp, text, ...)</li>
+ * </ul>
+ */
+@Component
+@Log
+public class ImageCodecs {
+  private static final Set<String> COMPRESSED_TYPES = Set.of("image/jpeg", "image/jpg", "image/png", "image/gif",
+      "image/webp", "application/zip", "application/gzip", "application/x-7z-compressed", "application/x-rar-compressed");
+  private static final int SAMPLE_CHUNKS = 4;
+  private static final int SAMPLE_CHUNK_SIZE = 1024;
+  private static final int MIN_COMPRESSIBLE_SIZE = 128; // below, deflate overhead is not worth it
+  @Value("${myprop.images.codec.deflate-level:6}")
+  int deflateLevel;
+  @Value("${myprop.images.codec.raw-entropy:7.5}")
+  double rawEntropy; // bits per byte, above: stored raw
+  @Value("${myprop.images.codec.fast-entropy:6.0}")
+  double fastEntropy; // bits per byte, above: fast deflate
+
+  public Codec choose(String contentType, byte[] data) {
+    int chunk = sampleChunk(data.length);
+    byte[] sample = new byte[chunk * SAMPLE_CHUNKS];
+    for (int i = 0; i < SAMPLE_CHUNKS; i++)
+      System.arraycopy(data, (int) sampleStart(data.length, i), sample, i * chunk, chunk);
+    return choose(contentType, data.length, sample);
+  }
+
+  /**
+   * Same as {@link #choose(String, byte[])} for content staged in a file: only the sample is read
+   */
+  public Codec choose(String contentType, Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      int chunk = sampleChunk(size);
+      ByteBuffer sample = ByteBuffer.allocate(chunk * SAMPLE_CHUNKS);
+      for (int i = 0; i < SAMPLE_CHUNKS; i++) {
+        long start = sampleStart(size, i) - i * chunk; // file position of sample.position() 0
+        sample.limit((i + 1) * chunk);
+        while (sample.hasRemaining())
+          if (channel.read(sample, start + sample.position()) < 0)
+            break;
+      }
+      return choose(contentType, size, sample.array());
+    }
+  }
+
+  private Codec choose(String contentType, long size, byte[] sample) {
+    if (size < MIN_COMPRESSIBLE_SIZE)
+      return Codec.NONE;
+    if (contentType != null) {
+      String type = contentType.toLowerCase();
+      if (COMPRESSED_TYPES.contains(type) || type.startsWith("video/") || type.startsWith("audio/"))
+        return Codec.NONE;
+    }
+    double entropy = entropy(sample);
+    if (entropy > rawEntropy)
+      return Codec.NONE;
+    return entropy > fastEntropy ? Codec.DEFLATE_FAST : Codec.DEFLATE;
+  }
+
+  public byte[] encode(Codec codec, byte[] data) {
+    switch (codec) {
+      case NONE:
+        return data;
+      case DEFLATE_FAST:
+        return deflate(data, Deflater.BEST_SPEED);
+      default:
+        return deflate(data, deflateLevel);
+    }
+  }
+
+  /**
+   * Encoding stream, for content that does not fit in the heap. Closing it closes the target
+   */
+  public OutputStream encoder(Codec codec, OutputStream target) {
+    if (codec == Codec.NONE)
+      return target;
+    Deflater deflater = new Deflater(codec == Codec.DEFLATE_FAST ? Deflater.BEST_SPEED : deflateLevel);
+    return new DeflaterOutputStream(target, deflater, ImageServiceImpl.STREAM_BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          deflater.end();
+        }
+      }
+    };
+  }
+
+  /**
+   * Stream of the original bytes. Must be closed: it releases the native memory of the inflater
+   */
+  public InputStream decode(Codec codec, InputStream stored) {
+    if (codec == Codec.NONE)
+      return stored;
+    return new InflaterInputStream(stored, new Inflater(), ImageServiceImpl.STREAM_BUFFER_SIZE) {
+      @Override
+      public void close() throws IOException {
+        try {
+          super.close();
+        } finally {
+          inf.end(); // not owned by the InflaterInputStream when passed to the constructor
+        }
+      }
+    };
+  }
+
+  // A few chunks spread over the content
+  private static int sampleChunk(long size) {
+    return (int) Math.min(SAMPLE_CHUNK_SIZE, size / SAMPLE_CHUNKS);
+  }
+
+  private static long sampleStart(long size, int chunk) {
+    return (size - sampleChunk(size)) * chunk / (SAMPLE_CHUNKS - 1);
+  }
+
+  // Shannon entropy, bits per byte
+  private static double entropy(byte[] sample) {
+    int[] counts = new int[256];
+    for (byte b : sample)
+      counts[b & 0xFF]++;
+    double entropy = 0;
+    for (int count : counts) {
+      if (count == 0)
+        continue;
+      double p = (double) count / sample.length;
+      entropy -= p * Math.log(p) / Math.log(2);
+    }
+    return entropy;
+  }
+
+  private static byte[] deflate(byte[] data, int level) {
+    Deflater deflater = new Deflater(level);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.max(64, data.length / 2));
+      byte[] buffer = new byte[ImageServiceImpl.STREAM_BUFFER_SIZE];
+      while (!deflater.finished()) {
+        int count = deflater.deflate(buffer);
+        outputStream.write(buffer, 0, count);
+      }
+      log.info("Deflate level " + level + ": " + data.length + " -> " + outputStream.size() + " bytes");
+      return outputStream.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+}
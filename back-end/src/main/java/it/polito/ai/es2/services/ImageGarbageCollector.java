@@ -0,0 +1,142 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.dtos.ImageGcStatsDTO;
+import it.polito.ai.es2.entities.Image;
+import it.polito.ai.es2.entities.ImageBlob;
+import it.polito.ai.es2.repositories.ImageRepository;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deletes the images that nothing references (not a profile photo, assignment content, submission or VM screenshot)
+ * and that are older than the grace period: uploads never attached, abandoned submissions, failed VM creations.
+ * <p>The table is walked by id in chunks of myprop.images.gc.scan-size, so each query has a bounded cost; the orphans
+ * of a chunk are checked again and deleted in a small transaction of their own, through JPA so that thumbnails and
+ * blob references are released as for any other delete. Scans and deletes are paced (per second limits), the pass
+ * resumes where it stopped and restarts from the beginning when it reaches the end of the table. A chunk whose delete
+ * fails is skipped, its orphans are retried by the next pass.
+ * <p>Blobs of the file system storage are released, their content stays in the segments (no compaction): only the
+ * bytes of the database blobs are counted as reclaimed.
+ */
+@Component
+@Log
+public class ImageGarbageCollector {
+  @Autowired
+  ImageRepository imageRepository;
+  @Autowired
+  TransactionTemplate transactionTemplate;
+  @Value("${myprop.images.gc.enabled:true}")
+  boolean enabled;
+  @Value("${myprop.images.gc.grace-hours:24}")
+  long graceHours;
+  @Value("${myprop.images.gc.scan-size:500}")
+  int scanSize;
+  @Value("${myprop.images.gc.max-scanned-per-second:2000}")
+  double maxScannedPerSecond;
+  @Value("${myprop.images.gc.max-deleted-per-second:10}")
+  double maxDeletedPerSecond;
+  private volatile long cursor;
+  private final AtomicLong sweeps = new AtomicLong();
+  private final AtomicLong scanned = new AtomicLong();
+  private final AtomicLong deleted = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final AtomicLong reclaimedBytes = new AtomicLong();
+  private volatile long sweepStart = System.currentTimeMillis();
+  private volatile long lastSweepMillis;
+
+  /**
+   * A bounded slice of the pass, then the scheduler thread is released until the next run
+   */
+  @Scheduled(initialDelayString = "${myprop.images.gc.initial-delay-ms:60000}", fixedDelayString = "${myprop.images.gc.interval-ms:10000}")
+  public void collect() {
+    if (!enabled)
+      return;
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    try {
+      while (System.nanoTime() < deadline)
+        if (!collectChunk())
+          return;
+    } catch (RuntimeException e) {
+      log.warning("Image garbage collection interrupted at id " + cursor + ": " + e.getMessage());
+    }
+  }
+
+  // false at the end of a pass
+  private boolean collectChunk() {
+    long start = System.nanoTime();
+    List<Long> ids = imageRepository.findIdsAfter(cursor, PageRequest.of(0, scanSize));
+    if (ids.isEmpty()) {
+      lastSweepMillis = System.currentTimeMillis() - sweepStart;
+      log.info("Image garbage collection pass " + sweeps.incrementAndGet() + " done in " + lastSweepMillis + " ms: "
+          + deleted.get() + " images and " + reclaimedBytes.get() + " bytes reclaimed so far");
+      cursor = 0;
+      sweepStart = System.currentTimeMillis();
+      return false;
+    }
+    Timestamp before = new Timestamp(System.currentTimeMillis() - TimeUnit.HOURS.toMillis(graceHours));
+    int removed = 0;
+    try {
+      if (!imageRepository.findOrphanIds(ids, before).isEmpty()) {
+        long[] result = transactionTemplate.execute(status -> {
+          List<Long> orphans = imageRepository.findOrphanIds(ids, before); // again, inside the deleting transaction
+          if (orphans.isEmpty())
+            return new long[]{0, 0};
+          long bytes = imageRepository.sumExclusiveStoredLength(orphans, ImageBlob.Storage.DATABASE);
+          List<Image> images = imageRepository.findAllById(orphans);
+          imageRepository.deleteAll(images);
+          return new long[]{images.size(), bytes};
+        });
+        if (result != null) { // committed
+          removed = (int) result[0];
+          reclaimedBytes.addAndGet(result[1]);
+        }
+        if (removed > 0)
+          log.info("Image garbage collection: " + removed + " orphan images deleted up to id " + ids.get(ids.size() - 1));
+      }
+    } catch (RuntimeException e) {
+      failed.addAndGet(ids.size());
+      log.warning("Image garbage collection: chunk of ids " + ids.get(0) + "-" + ids.get(ids.size() - 1)
+          + " skipped until the next pass: " + e.getMessage());
+    }
+    cursor = ids.get(ids.size() - 1);
+    scanned.addAndGet(ids.size());
+    deleted.addAndGet(removed);
+    pace(start, ids.size() / maxScannedPerSecond + removed / maxDeletedPerSecond);
+    return true;
+  }
+
+  // Sleeps for what remains of the time budget of the chunk
+  private void pace(long start, double seconds) {
+    long remaining = (long) (seconds * 1_000_000_000L) - (System.nanoTime() - start);
+    if (remaining > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  public ImageGcStatsDTO getStats() {
+    ImageGcStatsDTO stats = new ImageGcStatsDTO();
+    stats.setEnabled(enabled);
+    stats.setSweeps(sweeps.get());
+    stats.setCursor(cursor);
+    stats.setScanned(scanned.get());
+    stats.setDeleted(deleted.get());
+    stats.setFailed(failed.get());
+    stats.setReclaimedBytes(reclaimedBytes.get());
+    stats.setLastSweepMillis(lastSweepMillis);
+    return stats;
+  }
+}
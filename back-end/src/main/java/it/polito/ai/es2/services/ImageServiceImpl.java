@@ -1,29 +1,48 @@
 package it.polito.ai.es2.services;
 
+import it.polito.ai.es2.dtos.ImageBatchDTO;
+import it.polito.ai.es2.dtos.ImageCacheStatsDTO;
 import it.polito.ai.es2.dtos.ImageDTO;
+import it.polito.ai.es2.dtos.ImageGcStatsDTO;
+import it.polito.ai.es2.dtos.ImageStorageStatsDTO;
+import it.polito.ai.es2.dtos.ImageUploadDTO;
 import it.polito.ai.es2.entities.Image;
+import it.polito.ai.es2.entities.ImageBlob;
 import it.polito.ai.es2.repositories.*;
+import it.polito.ai.es2.repositories.ImageCustomRepository.ContentConsumer;
 import it.polito.ai.es2.services.exceptions.ImageException;
 import it.polito.ai.es2.services.exceptions.ImageNotFoundException;
 import it.polito.ai.es2.services.interfaces.ImageService;
+import it.polito.ai.es2.services.interfaces.ImageStorage;
 import it.polito.ai.es2.services.interfaces.NotificationService;
 import lombok.extern.java.Log;
 import org.modelmapper.ModelMapper;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
+import javax.validation.constraints.PositiveOrZero;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Base64;
-import java.util.Optional;
-import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.util.*;
 
 /**
  * Descrizione classe<p>Politica di sovrascrittura adottata: in quasi tutti i metodi add, se un id era già presente nel database non sovrascrivo i dati
@@ -36,6 +55,8 @@ import java.util.zip.Inflater;
 @Validated
 @PreAuthorize("permitAll()")
 public class ImageServiceImpl extends CommonURL implements ImageService {
+  // Per-request buffer used when streaming: memory per download does not depend on the image size
+  static final int STREAM_BUFFER_SIZE = 8192;
   @Autowired
   ModelMapper modelMapper;
   @Autowired
@@ -51,9 +72,27 @@ public class ImageServiceImpl extends CommonURL implements ImageService {
   @Autowired
   ImageRepository imageRepository;
   @Autowired
+  ImageBlobRepository imageBlobRepository;
+  @Autowired
   ImplementationRepository implementationRepository;
   @Autowired
   VMRepository vmRepository;
+  @Autowired
+  ImageBlobStore blobStore;
+  @Autowired
+  OffHeapImageCache imageCache;
+  @Autowired
+  ImageCodecs imageCodecs;
+  @Autowired
+  ImageThumbnailGenerator thumbnailGenerator;
+  @Autowired
+  ImageUploadStaging uploadStaging;
+  @Autowired
+  ImageGarbageCollector garbageCollector;
+  @Autowired
+  FileSystemImageStorage fileSystemImageStorage;
+  @Value("${myprop.images.batch.max-ids:500}")
+  int batchMaxIds;
 
   /**
    * POST {@link it.polito.ai.es2.controllers.APIImages_RestController#uploadImage(MultipartFile)}
@@ -64,87 +103,302 @@ public class ImageServiceImpl extends CommonURL implements ImageService {
       throw new ImageException("null parameter");
     if (file.isEmpty())
       throw new ImageException("empty file");
-    Image img = new Image();
-    img.setName(file.getOriginalFilename());
-    img.setType(file.getContentType());
+    byte[] data;
     try {
-      img.setPicBytes(compressBytes(file.getBytes()));
+      data = file.getBytes();
     } catch (IOException e) {
       e.printStackTrace();
       throw new ImageException("IOException file");
     }
+    return saveImage(file.getOriginalFilename(), file.getContentType(), data.length, blobStore.acquire(file.getContentType(), data));
+  }
+
+  /**
+   * POST {@link it.polito.ai.es2.controllers.APIImages_RestController#initUpload(String, String, long)}
+   * <p>Chunked upload: no transaction (and no database connection) while chunks are received
+   */
+  @Override
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  @PreAuthorize("hasRole('STUDENT') or hasRole('PROFESSOR')") // staged uploads are owned: no anonymous callers
+  public ImageUploadDTO initUpload(@NotBlank String name, @NotBlank String type, @Positive long size) {
+    return uploadStaging.status(uploadStaging.create(currentUser(), name, type, size));
+  }
+
+  /**
+   * PUT {@link it.polito.ai.es2.controllers.APIImages_RestController#writeUploadChunk(String, long, javax.servlet.http.HttpServletRequest)}
+   */
+  @Override
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  @PreAuthorize("hasRole('STUDENT') or hasRole('PROFESSOR')")
+  public ImageUploadDTO writeUploadChunk(@NotBlank String uploadId, @PositiveOrZero long offset, @NotNull InputStream content) {
+    ImageUploadStaging.Upload upload = uploadStaging.get(uploadId, currentUser());
+    try {
+      uploadStaging.write(upload, offset, content);
+    } catch (IOException e) {
+      log.warning("Upload " + uploadId + " interrupted at chunk " + offset + ": " + e.getMessage());
+      throw new UncheckedIOException(e);
+    }
+    return uploadStaging.status(upload);
+  }
+
+  /**
+   * GET {@link it.polito.ai.es2.controllers.APIImages_RestController#getUpload(String)}
+   */
+  @Override
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  @PreAuthorize("hasRole('STUDENT') or hasRole('PROFESSOR')")
+  public ImageUploadDTO getUpload(@NotBlank String uploadId) {
+    return uploadStaging.status(uploadStaging.get(uploadId, currentUser()));
+  }
+
+  /**
+   * POST {@link it.polito.ai.es2.controllers.APIImages_RestController#commitUpload(String)}
+   * <p>The staged file is hashed, encoded and stored as a stream: memory does not depend on the size of the upload.
+   * If the transaction fails the upload stays staged and the commit can be retried.
+   */
+  @Override
+  @PreAuthorize("hasRole('STUDENT') or hasRole('PROFESSOR')")
+  public ImageDTO commitUpload(@NotBlank String uploadId) {
+    ImageUploadStaging.Upload upload = uploadStaging.get(uploadId, currentUser());
+    Path file = uploadStaging.beginCommit(upload);
+    TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+      @Override
+      public void afterCompletion(int status) {
+        if (status == STATUS_COMMITTED)
+          uploadStaging.remove(upload);
+        else
+          uploadStaging.cancelCommit(upload);
+      }
+    });
+    try {
+      return saveImage(upload.getName(), upload.getType(), upload.getSize(), blobStore.acquire(upload.getType(), file));
+    } catch (IOException e) {
+      e.printStackTrace();
+      throw new ImageException("upload " + uploadId + " not stored");
+    }
+  }
+
+  /**
+   * DELETE {@link it.polito.ai.es2.controllers.APIImages_RestController#abortUpload(String)}
+   * <p>Waits for a commit of the same upload in progress
+   */
+  @Override
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  @PreAuthorize("hasRole('STUDENT') or hasRole('PROFESSOR')")
+  public void abortUpload(@NotBlank String uploadId) {
+    uploadStaging.abort(uploadStaging.get(uploadId, currentUser()));
+  }
+
+  private ImageDTO saveImage(String name, String type, long size, ImageBlob blob) {
+    Image img = new Image();
+    img.setName(name);
+    img.setType(type);
+    img.setOriginalSize(size);
+    img.setBlob(blob);
     Image savedImage = imageRepository.save(img);
     img.setDirectLink(baseUrl + "/api/images/direct/" + savedImage.getId());
     imageRepository.flush(); // NECESSARY! Otherwise auto generated fields will remain null (not the id, the auto generated timestamps)
     ImageDTO map = modelMapper.map(savedImage, ImageDTO.class);
+    map.setContentHash(savedImage.getBlob().getId());
+    thumbnailGenerator.schedule(savedImage.getId(), savedImage.getType());
     return map;
   }
 
+  private static String currentUser() {
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    return authentication != null ? authentication.getName() : "";
+  }
+
   /**
-   * GET {@link it.polito.ai.es2.controllers.APIImages_RestController#getImage(Long)}
+   * GET {@link it.polito.ai.es2.controllers.APIImages_RestController#getDirectLinkImage(Long, Integer, String, String, org.springframework.web.context.request.WebRequest, javax.servlet.http.HttpServletResponse)}
+   *
+   * @return id of the smallest thumbnail at least size pixels wide and high, the image itself if no thumbnail will ever
+   * cover the size (original smaller than it, or bigger than every configured size), null while they are being rendered
    */
   @Override
-  public ImageDTO getImage(@NotNull Long imageId) {
+  public Long resolveThumbnail(@NotNull Long imageId, int size) {
+    List<Long> ids = imageRepository.findThumbnailIds(imageId, size, PageRequest.of(0, 1));
+    if (!ids.isEmpty())
+      return ids.get(0);
+    if (imageRepository.existsByIdAndPixelSizeIsNotNull(imageId))
+      return imageId;
+    // Still pending: the job may have been dropped by a full queue, have failed, or have been lost with a restart
+    imageRepository.findUnrenderedType(imageId).ifPresent(type -> thumbnailGenerator.schedule(imageId, type));
+    return null;
+  }
+
+  /**
+   * GET {@link it.polito.ai.es2.controllers.APIImages_RestController#getImage(Long, org.springframework.web.context.request.WebRequest)}
+   * <p>Completes the metadata already loaded by {@link #getImageInfo(Long)}, without looking it up again. The content is
+   * streamed into the json when the response is written, after this transaction, outside of any transaction: each read
+   * of the storage takes a pooled connection only for its own query
+   */
+  @Override
+  public ImageDTO getImage(@NotNull ImageDTO imageInfo) {
+    Long imageId = imageInfo.getId();
+    imageInfo.setContent(outputStream -> writeImage(imageId, 0, Long.MAX_VALUE, outputStream));
+    return imageInfo;
+  }
+
+  @Override public byte[] getBytesImage(@NotNull Long imageId) {
+    if (!imageRepository.existsById(imageId))
+      return new byte[0];
+    return readImage(getImageInfo(imageId));
+  }
+
+  private byte[] readImage(ImageDTO imageInfo) {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream(imageInfo.getOriginalSize().intValue());
+    writeImage(imageInfo.getId(), 0, Long.MAX_VALUE, outputStream);
+    return outputStream.toByteArray();
+  }
+
+  /**
+   * GET {@link it.polito.ai.es2.controllers.APIImages_RestController#getDirectLinkImage(Long, Integer, String, String, org.springframework.web.context.request.WebRequest, javax.servlet.http.HttpServletResponse)}
+   * <p>Metadata only, picBytes is not loaded (original size is computed once for images uploaded before it was tracked)
+   */
+  @Override
+  public ImageDTO getImageInfo(@NotNull Long imageId) {
     if (imageId == null)
       throw new ImageException("null id");
-    Optional<Image> imageOptional = imageRepository.findById(imageId);
-    if (imageOptional.isEmpty())
-      throw new ImageNotFoundException(imageId.toString());
-    Image retrievedImage = imageOptional.get();
-    ImageDTO imageDTO = modelMapper.map(retrievedImage, ImageDTO.class);
-    byte[] bytes = decompressBytes(retrievedImage.getPicBytes());
-    imageDTO.setImageStringBase64(Base64.getEncoder().encodeToString(bytes));
+    ImageInfo info = imageRepository.findInfoById(imageId).orElseThrow(() -> new ImageNotFoundException(imageId.toString()));
+    ImageDTO imageDTO = toDTO(info);
+    if (imageDTO.getOriginalSize() == null) {
+      long size = writeImage(imageId, 0, Long.MAX_VALUE, OutputStream.nullOutputStream());
+      imageRepository.updateOriginalSize(imageId, size);
+      imageDTO.setOriginalSize(size);
+    }
     return imageDTO;
   }
 
-  @Override public byte[] getBytesImage(@NotNull Long imageId) {
-    Optional<Image> imageOptional = imageRepository.findById(imageId);
-    if (imageOptional.isEmpty())
-      return new byte[0];
-    byte[] picBytes = imageOptional.get().getPicBytes();
-    return decompressBytes(picBytes);
-  }
-
-  // Compress the image bytes before storing it in the database
-  private byte[] compressBytes(byte[] data) {
-    log.info("Original Image Byte Size - " + data.length);
-    Deflater deflater = new Deflater();
-    deflater.setInput(data);
-    deflater.finish();
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
-    byte[] buffer = new byte[1024];
-    while (!deflater.finished()) {
-      int count = deflater.deflate(buffer);
-      outputStream.write(buffer, 0, count);
+  /**
+   * GET {@link it.polito.ai.es2.controllers.APIImages_RestController#getImagesInfo(List)}
+   * <p>Metadata of many images with a single query, the content is never read: originalSize stays null for images
+   * uploaded before it was tracked. Duplicated ids are returned once.
+   */
+  @Override
+  public ImageBatchDTO getImagesInfo(@NotNull List<Long> imageIds) {
+    if (imageIds.size() > batchMaxIds)
+      throw new ImageException("at most " + batchMaxIds + " ids per request");
+    Set<Long> ids = new LinkedHashSet<>(imageIds);
+    ids.remove(null);
+    Map<Long, ImageDTO> found = new HashMap<>();
+    if (!ids.isEmpty())
+      for (ImageInfo info : imageRepository.findInfoByIdIn(ids))
+        found.put(info.getId(), toDTO(info));
+    ImageBatchDTO batch = new ImageBatchDTO();
+    batch.setImages(new ArrayList<>(found.size()));
+    batch.setMissing(new ArrayList<>());
+    for (Long id : ids) {
+      if (found.containsKey(id))
+        batch.getImages().add(found.get(id));
+      else
+        batch.getMissing().add(id);
+    }
+    return batch;
+  }
+
+  private ImageDTO toDTO(ImageInfo info) {
+    ImageDTO imageDTO = new ImageDTO();
+    imageDTO.setId(info.getId());
+    imageDTO.setName(info.getName());
+    imageDTO.setType(info.getType());
+    imageDTO.setRevisionCycle(info.getRevisionCycle());
+    imageDTO.setCreateDate(info.getCreateDate());
+    imageDTO.setModifyDate(info.getModifyDate());
+    imageDTO.setDirectLink(info.getDirectLink());
+    imageDTO.setOriginalSize(info.getOriginalSize());
+    imageDTO.setContentHash(info.getBlobId());
+    return imageDTO;
+  }
+
+  /**
+   * Streams the decompressed bytes [offset, offset + length) of the image to the output stream, with a fixed size buffer.
+   * The stored blob is read from the storage and decoded on the fly, it is never materialized in the heap.
+   * Content stored without compression is copied with {@link ImageStorage#transferTo}.
+   * <p>Served from the off-heap cache when possible (no query, no inflate). A full read of a cache miss fills the cache
+   * while streaming.
+   * <p>Runs outside of any transaction: the response is written while the content is read, and a transaction would
+   * keep its connection for the whole transfer to the client.
+   *
+   * @return number of bytes written
+   */
+  @Override
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  public long writeImage(@NotNull Long imageId, long offset, long length, @NotNull OutputStream outputStream) {
+    try {
+      long cached = imageCache.writeTo(imageId, offset, length, outputStream);
+      if (cached >= 0)
+        return cached;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
     }
+    Optional<ImageBlobLocation> location = imageBlobRepository.findLocationByImageId(imageId);
+    OffHeapImageCache.Filler filler = null;
+    if (location.isPresent() && offset == 0 && location.get().getOriginalSize() != null && length >= location.get().getOriginalSize())
+      filler = imageCache.beginFill(imageId, location.get().getOriginalSize());
+    OutputStream target = filler != null ? filler.tee(outputStream) : outputStream;
+    long[] written = {0};
+    ImageBlob.Codec codec = location.map(ImageBlobLocation::getCodec).orElse(ImageBlob.Codec.DEFLATE);
+    ContentConsumer decode = stored -> written[0] = decodeRange(codec, stored, offset, length, target);
+    boolean completed = false;
     try {
-      outputStream.close();
+      if (location.isEmpty()) {
+        if (!imageRepository.streamPicBytes(imageId, decode)) // uploaded before the content addressed store: deflated
+          throw new ImageNotFoundException(imageId.toString());
+      } else if (codec == ImageBlob.Codec.NONE)
+        written[0] = blobStore.storage(location.get().getStorage()).transferTo(location.get(), offset, length, Channels.newChannel(target));
+      else
+        blobStore.storage(location.get().getStorage()).read(location.get(), decode);
+      completed = true;
     } catch (IOException e) {
-      e.printStackTrace();
-      throw new ImageException("IOException");
+      throw new UncheckedIOException(e);
+    } finally {
+      if (filler != null) {
+        if (completed)
+          filler.commit();
+        else
+          filler.abort();
+      }
     }
-    log.info("Compressed Image Byte Size - " + outputStream.toByteArray().length);
-    return outputStream.toByteArray();
+    return written[0];
   }
 
-  // Uncompress the image bytes before returning it to the angular application
-  private byte[] decompressBytes(byte[] data) {
-    Inflater inflater = new Inflater();
-    inflater.setInput(data);
-    ByteArrayOutputStream outputStream = new ByteArrayOutputStream(data.length);
-    byte[] buffer = new byte[1024];
-    try {
-      while (!inflater.finished()) {
-        int count = inflater.inflate(buffer);
+  @Override
+  @PreAuthorize("hasRole('PROFESSOR')")
+  public ImageCacheStatsDTO getCacheStats() {
+    return imageCache.getStats();
+  }
+
+  @Override
+  @PreAuthorize("hasRole('PROFESSOR')")
+  public ImageGcStatsDTO getGcStats() {
+    return garbageCollector.getStats();
+  }
+
+  @Override
+  @PreAuthorize("hasRole('PROFESSOR')")
+  public ImageStorageStatsDTO getStorageStats() {
+    return fileSystemImageStorage.getStats();
+  }
+
+
+  private long decodeRange(ImageBlob.Codec codec, InputStream stored, long offset, long length, OutputStream outputStream) throws IOException {
+    try (InputStream in = imageCodecs.decode(codec == null ? ImageBlob.Codec.DEFLATE : codec, stored)) {
+      long toSkip = offset;
+      while (toSkip > 0) {
+        long skipped = in.skip(toSkip);
+        if (skipped <= 0)
+          return 0;
+        toSkip -= skipped;
+      }
+      byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+      long remaining = length;
+      int count;
+      while (remaining > 0 && (count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
         outputStream.write(buffer, 0, count);
+        remaining -= count;
       }
-      outputStream.close();
-    } catch (IOException | DataFormatException e) {
-      e.printStackTrace();
-      throw new ImageException("IOException | DataFormatException");
+      return length - remaining;
     }
-    byte[] decompressed = outputStream.toByteArray();
-    log.info("Original: " + data.length + " bytes. " + "Decompressed: " + decompressed.length + " bytes.");
-    return decompressed;
   }
 }
@@ -0,0 +1,170 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.entities.ImageBlob;
+import it.polito.ai.es2.repositories.ImageBlobRepository;
+import it.polito.ai.es2.repositories.ImageInfo;
+import it.polito.ai.es2.repositories.ImageRepository;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Moves the image content of the database to the file system storage, one batch per transaction: first the images
+ * uploaded before the content addressed store (image.pic_bytes), which become blobs, then the blobs of the database
+ * storage (image_blob.pic_bytes).
+ * <p>Command: java -jar virtual-labs-back-end.jar --migrate-images-to-fs[=batchSize]
+ * <p>Resumable: each committed batch is final, an interrupted run continues from the content still in the database.
+ * Content is streamed through a temporary file, never held in the heap.
+ * New uploads keep going to myprop.images.storage, set it to FILE_SYSTEM before (or after) migrating.
+ */
+@Component
+@Log
+public class ImageStorageMigration implements ApplicationRunner {
+  static final String OPTION = "migrate-images-to-fs";
+  @Autowired
+  ImageRepository imageRepository;
+  @Autowired
+  ImageBlobRepository imageBlobRepository;
+  @Autowired
+  ImageBlobStore blobStore;
+  @Autowired
+  ImageCodecs imageCodecs;
+  @Autowired
+  FileSystemImageStorage fileSystemImageStorage;
+  @Autowired
+  TransactionTemplate transactionTemplate;
+  @Value("${myprop.images.storage.migration.batch-size:50}")
+  int defaultBatchSize;
+
+  @Override
+  public void run(ApplicationArguments args) {
+    if (!args.containsOption(OPTION))
+      return;
+    List<String> values = args.getOptionValues(OPTION);
+    int batchSize = values.isEmpty() || values.get(0).isBlank() ? defaultBatchSize : Integer.parseInt(values.get(0));
+    migrateToFileSystem(batchSize);
+  }
+
+  public int migrateToFileSystem(int batchSize) {
+    log.info("Image storage migration DATABASE -> FILE_SYSTEM started, batch size " + batchSize);
+    int migrated = migrateLegacyImages(batchSize) + migrateBlobs(batchSize);
+    log.info("Image storage migration completed: " + migrated + " images and blobs moved");
+    return migrated;
+  }
+
+  private int migrateLegacyImages(int batchSize) {
+    int migrated = 0;
+    long after = 0;
+    List<Long> ids;
+    while (!(ids = imageRepository.findLegacyIdsAfter(after, PageRequest.of(0, batchSize))).isEmpty()) {
+      List<Long> batch = ids;
+      Integer moved = transactionTemplate.execute(status -> {
+        int count = 0;
+        for (Long imageId : batch)
+          if (migrateLegacyImage(imageId))
+            count++;
+        return count;
+      });
+      migrated += moved == null ? 0 : moved;
+      after = ids.get(ids.size() - 1);
+      log.info("Image storage migration: " + migrated + " legacy images moved");
+    }
+    return migrated;
+  }
+
+  private int migrateBlobs(int batchSize) {
+    int migrated = 0;
+    String after = "";
+    List<String> ids;
+    while (!(ids = imageBlobRepository.findIdsByStorageAfter(ImageBlob.Storage.DATABASE, after, PageRequest.of(0, batchSize))).isEmpty()) {
+      List<String> batch = ids;
+      Integer moved = transactionTemplate.execute(status -> {
+        int count = 0;
+        for (String blobId : batch)
+          if (migrateBlob(blobId))
+            count++;
+        return count;
+      });
+      migrated += moved == null ? 0 : moved;
+      after = ids.get(ids.size() - 1);
+      log.info("Image storage migration: " + migrated + " blobs moved");
+    }
+    return migrated;
+  }
+
+  // Legacy content is deflated: decoded to a file and acquired as a blob, shared if the same content is already stored
+  private boolean migrateLegacyImage(Long imageId) {
+    Path file = createTempFile();
+    try {
+      boolean[] stored = {false};
+      imageRepository.streamPicBytes(imageId, content -> {
+        try (InputStream decoded = imageCodecs.decode(ImageBlob.Codec.DEFLATE, content)) {
+          Files.copy(decoded, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        stored[0] = true;
+      });
+      if (!stored[0])
+        return false;
+      String type = imageRepository.findInfoById(imageId).map(ImageInfo::getType).orElse(null);
+      ImageBlob blob = blobStore.acquire(type, file, ImageBlob.Storage.FILE_SYSTEM);
+      imageRepository.attachBlob(imageId, blob, Files.size(file));
+      return true;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      deleteTempFile(file);
+    }
+  }
+
+  // The stored bytes are copied as they are, the codec does not change
+  private boolean migrateBlob(String blobId) {
+    Path file = createTempFile();
+    try {
+      boolean[] stored = {false};
+      imageRepository.streamBlobPicBytes(blobId, content -> {
+        Files.copy(content, file, StandardCopyOption.REPLACE_EXISTING);
+        stored[0] = true;
+      });
+      if (!stored[0])
+        return false;
+      ImageBlob location = new ImageBlob(); // only receives the location of the written content
+      fileSystemImageStorage.write(location, file);
+      imageBlobRepository.updateLocation(blobId, location.getStorage(), location.getSegment(),
+          location.getSegmentOffset(), location.getStoredLength());
+      return true;
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      deleteTempFile(file);
+    }
+  }
+
+  private static Path createTempFile() {
+    try {
+      return Files.createTempFile("image-migration", ".tmp");
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static void deleteTempFile(Path file) {
+    try {
+      Files.deleteIfExists(file);
+    } catch (IOException e) {
+      log.warning("Temporary file " + file + " not deleted: " + e.getMessage());
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.services.interfaces.ImageService;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.security.concurrent.DelegatingSecurityContextRunnable;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Renders the thumbnails of uploaded images (sizes in myprop.images.thumbnails.sizes, max of width and height) on a
+ * small bounded pool, after the upload is committed. Until they are stored the original is served instead
+ * (see {@link ImageService#resolveThumbnail(Long, int)}), so a full queue simply drops the job: a later request of a
+ * thumbnail schedules it again. Once all of them are stored the original is marked as rendered, and served as final
+ * answer for the sizes no thumbnail covers.
+ * <p>Dimensions are read before decoding: sources above myprop.images.thumbnails.max-pixels get no thumbnails, big
+ * ones are decoded subsampled, at about twice the largest size.
+ * <p>Jobs run with the security context of the request that scheduled them.
+ */
+@Component
+@Log
+public class ImageThumbnailGenerator {
+  @Autowired
+  @Lazy
+  ImageService imageService;
+  @Autowired
+  ImageThumbnailStore thumbnailStore;
+  @Value("${myprop.images.thumbnails.sizes:64,128,256}")
+  int[] sizes;
+  @Value("${myprop.images.thumbnails.threads:2}")
+  int threads;
+  @Value("${myprop.images.thumbnails.queue-capacity:100}")
+  int queueCapacity;
+  @Value("${myprop.images.thumbnails.max-pixels:100000000}")
+  long maxPixels;
+  private ThreadPoolExecutor executor;
+  private final Set<Long> queued = ConcurrentHashMap.newKeySet(); // images with a job queued or running
+
+  @PostConstruct
+  public void init() {
+    Arrays.sort(sizes);
+    AtomicInteger count = new AtomicInteger();
+    executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+        r -> {
+          Thread thread = new Thread(r, "thumbnail-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY); // never compete with requests
+          return thread;
+        });
+  }
+
+  /**
+   * Queues the rendering of the thumbnails of an image, when the current transaction commits. Ignored while a job for
+   * the same image is queued or running.
+   */
+  public void schedule(Long imageId, String type) {
+    if (sizes.length == 0 || type == null || !ImageIO.getImageReadersByMIMEType(type).hasNext())
+      return;
+    Runnable job = new DelegatingSecurityContextRunnable(() -> {
+      try {
+        render(imageId, type);
+      } finally {
+        queued.remove(imageId);
+      }
+    });
+    if (TransactionSynchronizationManager.isSynchronizationActive())
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          submit(imageId, job);
+        }
+      });
+    else
+      submit(imageId, job);
+  }
+
+  private void submit(Long imageId, Runnable job) {
+    if (!queued.add(imageId))
+      return;
+    try {
+      executor.execute(job);
+    } catch (RejectedExecutionException e) {
+      queued.remove(imageId);
+      log.warning("Thumbnail queue full, image " + imageId + " left for a later request");
+    }
+  }
+
+  private void render(Long imageId, String type) {
+    try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(imageService.getBytesImage(imageId)))) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        thumbnailStore.setRendered(imageId, 0); // not an image: the original is final, never retried
+        log.warning("Image " + imageId + " (" + type + ") cannot be decoded, no thumbnails");
+        return;
+      }
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(input, true, true);
+        render(imageId, type, reader);
+      } finally {
+        reader.dispose();
+      }
+    } catch (IOException | RuntimeException e) {
+      log.warning("Thumbnails of image " + imageId + " not generated: " + e.getMessage());
+    }
+  }
+
+  private void render(Long imageId, String type, ImageReader reader) throws IOException {
+    int width = reader.getWidth(0);
+    int height = reader.getHeight(0);
+    int sourceSize = Math.max(width, height);
+    if ((long) width * height > maxPixels) {
+      thumbnailStore.setRendered(imageId, sourceSize);
+      log.warning("Image " + imageId + " is " + width + "x" + height + ", above the pixel limit: no thumbnails");
+      return;
+    }
+    ImageReadParam param = reader.getDefaultReadParam();
+    int subsampling = Math.max(1, sourceSize / (2 * sizes[sizes.length - 1]));
+    if (subsampling > 1) // the reader skips the pixels, the full size raster is never allocated
+      param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+    BufferedImage source = reader.read(0, param);
+    boolean alpha = source.getColorModel().hasAlpha();
+    String format = alpha ? "png" : "jpeg";
+    BufferedImage current = source;
+    for (int i = sizes.length - 1; i >= 0; i--) { // largest first: each step scales the previous, smaller, image
+      if (sizes[i] >= sourceSize)
+        continue;
+      current = scale(current, sizes[i], alpha);
+      ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+      ImageIO.write(current, format, outputStream);
+      thumbnailStore.addThumbnail(imageId, sizes[i], "image/" + format, outputStream.toByteArray());
+    }
+    thumbnailStore.setRendered(imageId, sourceSize);
+    log.info("Thumbnails of image " + imageId + " (" + type + ") stored");
+  }
+
+  // Halves until close to the target, then one bilinear step: cheap and without the aliasing of a single big step
+  private static BufferedImage scale(BufferedImage image, int size, boolean alpha) {
+    int width = image.getWidth();
+    int height = image.getHeight();
+    double ratio = (double) size / Math.max(width, height);
+    int targetWidth = Math.max(1, (int) Math.round(width * ratio));
+    int targetHeight = Math.max(1, (int) Math.round(height * ratio));
+    BufferedImage current = image;
+    do {
+      width = Math.max(targetWidth, width / 2);
+      height = Math.max(targetHeight, height / 2);
+      BufferedImage next = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+      Graphics2D graphics = next.createGraphics();
+      try {
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        graphics.drawImage(current, 0, 0, width, height, null);
+      } finally {
+        graphics.dispose();
+      }
+      current = next;
+    } while (width != targetWidth || height != targetHeight);
+    return current;
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+}
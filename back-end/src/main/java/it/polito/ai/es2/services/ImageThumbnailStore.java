@@ -0,0 +1,51 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.entities.Image;
+import it.polito.ai.es2.repositories.ImageRepository;
+import it.polito.ai.es2.services.exceptions.ImageNotFoundException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.validation.constraints.NotNull;
+
+/**
+ * Writes of {@link ImageThumbnailGenerator}, each in its own transaction. Internal: not reachable from the
+ * controllers, unlike {@link it.polito.ai.es2.services.interfaces.ImageService}.
+ */
+@Component
+@Transactional
+public class ImageThumbnailStore extends CommonURL {
+  @Autowired
+  ImageRepository imageRepository;
+  @Autowired
+  ImageBlobStore blobStore;
+
+  /**
+   * The thumbnail shares the content addressed store and is removed together with the original.
+   */
+  public void addThumbnail(@NotNull Long imageId, int size, @NotNull String type, @NotNull byte[] data) {
+    Image original = imageRepository.findById(imageId).orElseThrow(() -> new ImageNotFoundException(imageId.toString()));
+    if (imageRepository.existsByThumbnailOfIdAndThumbnailSize(imageId, size))
+      return;
+    Image thumbnail = new Image();
+    thumbnail.setName(size + "-" + original.getName());
+    thumbnail.setType(type);
+    thumbnail.setRevisionCycle(original.getRevisionCycle());
+    thumbnail.setOriginalSize((long) data.length);
+    thumbnail.setBlob(blobStore.acquire(type, data));
+    thumbnail.setThumbnailOf(original);
+    thumbnail.setThumbnailSize(size);
+    original.getThumbnails().add(thumbnail);
+    Image savedThumbnail = imageRepository.save(thumbnail);
+    savedThumbnail.setDirectLink(baseUrl + "/api/images/direct/" + savedThumbnail.getId());
+  }
+
+  /**
+   * Marks the thumbnails of the image as complete: from now on the original is the final answer for the sizes no
+   * thumbnail covers
+   */
+  public void setRendered(@NotNull Long imageId, int pixelSize) {
+    imageRepository.updatePixelSize(imageId, pixelSize);
+  }
+}
@@ -0,0 +1,287 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.dtos.ImageUploadDTO;
+import it.polito.ai.es2.services.exceptions.ImageException;
+import it.polito.ai.es2.services.exceptions.ImageNotFoundException;
+import lombok.Getter;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Local disk staging of chunked uploads: each upload is a sparse file of the declared size, chunks are written at
+ * their offset in any order and the received ranges are tracked, so a client resends only what is missing.
+ * <p>Memory per upload is the range map and one copy buffer per chunk being received. Uploads idle for more than
+ * myprop.images.uploads.expire-minutes are discarded by a periodic purge; uploads are not resumable across a restart
+ * of the server.
+ * <p>Open uploads and their declared bytes (the disk they may take) are capped per owner and in total.
+ */
+@Component
+@Log
+public class ImageUploadStaging {
+  @Value("${myprop.images.uploads.dir:upload-staging}")
+  String directory;
+  @Value("${myprop.images.uploads.max-size:268435456}")
+  long maxSize;
+  @Value("${myprop.images.uploads.expire-minutes:1440}")
+  long expireMinutes;
+  @Value("${myprop.images.uploads.max-open-per-user:4}")
+  int maxOpenPerOwner;
+  @Value("${myprop.images.uploads.max-bytes-per-user:1073741824}")
+  long maxBytesPerOwner;
+  @Value("${myprop.images.uploads.max-open:200}")
+  int maxOpen;
+  @Value("${myprop.images.uploads.max-bytes:10737418240}")
+  long maxBytes;
+  private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+  private volatile Path root;
+
+  public Upload create(String owner, String name, String type, long size) {
+    if (size <= 0 || size > maxSize)
+      throw new ImageException("upload size must be between 1 and " + maxSize + " bytes");
+    Upload upload = new Upload(UUID.randomUUID().toString(), owner, name, type, size, root().resolve(UUID.randomUUID() + ".part"));
+    synchronized (uploads) { // checks and insert are atomic, the other updates of the map need no lock
+      int open = 0, ownerOpen = 0;
+      long bytes = 0, ownerBytes = 0;
+      for (Upload other : uploads.values()) {
+        open++;
+        bytes += other.size;
+        if (other.owner.equals(owner)) {
+          ownerOpen++;
+          ownerBytes += other.size;
+        }
+      }
+      if (ownerOpen >= maxOpenPerOwner || ownerBytes + size > maxBytesPerOwner)
+        throw new ImageException("too many open uploads, commit or abort them first");
+      if (open >= maxOpen || bytes + size > maxBytes)
+        throw new ImageException("upload staging full, retry later");
+      uploads.put(upload.id, upload);
+    }
+    try {
+      Files.createFile(upload.file);
+    } catch (IOException e) {
+      uploads.remove(upload.id);
+      e.printStackTrace();
+      throw new ImageException("upload staging not available");
+    }
+    return upload;
+  }
+
+  // Uploads of other users are not visible
+  public Upload get(String uploadId, String owner) {
+    Upload upload = uploads.get(uploadId);
+    if (upload == null || !upload.owner.equals(owner))
+      throw new ImageNotFoundException("upload " + uploadId);
+    upload.lastAccess = System.currentTimeMillis();
+    return upload;
+  }
+
+  /**
+   * Copies the chunk at its offset. What was written before a broken connection is kept: the client resumes from
+   * the missing ranges.
+   *
+   * @return bytes written
+   */
+  public long write(Upload upload, long offset, InputStream content) throws IOException {
+    if (offset < 0 || offset >= upload.size)
+      throw new ImageException("offset outside the upload");
+    synchronized (upload) {
+      if (upload.committing || upload.removed)
+        throw new ImageException("upload already committed or aborted");
+      upload.writers++;
+    }
+    long written = 0;
+    try (FileChannel channel = FileChannel.open(upload.file, StandardOpenOption.WRITE)) {
+      byte[] buffer = new byte[ImageServiceImpl.STREAM_BUFFER_SIZE];
+      int n;
+      while ((n = content.read(buffer)) != -1) {
+        if (offset + written + n > upload.size)
+          throw new ImageException("chunk exceeds the declared size");
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, n);
+        while (byteBuffer.hasRemaining())
+          written += channel.write(byteBuffer, offset + written);
+      }
+      return written;
+    } finally {
+      synchronized (upload) {
+        upload.addRange(offset, offset + written);
+        upload.writers--;
+      }
+    }
+  }
+
+  /**
+   * Stops accepting chunks and returns the staged file, complete
+   */
+  public Path beginCommit(Upload upload) {
+    synchronized (upload) {
+      if (upload.committing || upload.writers > 0 || upload.removed)
+        throw new ImageException("upload busy");
+      if (upload.received() != upload.size)
+        throw new ImageException("upload incomplete: " + upload.received() + " of " + upload.size + " bytes");
+      upload.committing = true;
+      return upload.file;
+    }
+  }
+
+  // Failed commit: the staged content is still valid and the commit can be retried
+  public void cancelCommit(Upload upload) {
+    synchronized (upload) {
+      upload.committing = false;
+      upload.notifyAll();
+    }
+  }
+
+  /**
+   * Waits for a commit in progress: if it fails the upload is discarded, if it succeeds there is nothing left to abort
+   */
+  public void abort(Upload upload) {
+    synchronized (upload) {
+      try {
+        while (upload.committing && !upload.removed)
+          upload.wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new ImageException("upload " + upload.id + " not aborted");
+      }
+      if (upload.removed)
+        throw new ImageNotFoundException("upload " + upload.id);
+    }
+    remove(upload);
+  }
+
+  public void remove(Upload upload) {
+    synchronized (upload) {
+      upload.removed = true;
+      upload.notifyAll();
+    }
+    uploads.remove(upload.id);
+    try {
+      Files.deleteIfExists(upload.file);
+    } catch (IOException e) {
+      log.warning("Staged upload " + upload.file + " not deleted: " + e.getMessage());
+    }
+  }
+
+  public ImageUploadDTO status(Upload upload) {
+    ImageUploadDTO dto = new ImageUploadDTO();
+    dto.setId(upload.id);
+    dto.setName(upload.name);
+    dto.setType(upload.type);
+    dto.setSize(upload.size);
+    synchronized (upload) {
+      dto.setReceived(upload.received());
+      List<long[]> missing = new ArrayList<>();
+      long position = 0;
+      for (Map.Entry<Long, Long> range : upload.ranges.entrySet()) {
+        if (range.getKey() > position)
+          missing.add(new long[]{position, range.getKey() - 1});
+        position = range.getValue();
+      }
+      if (position < upload.size)
+        missing.add(new long[]{position, upload.size - 1});
+      dto.setMissing(missing);
+    }
+    return dto;
+  }
+
+  @Scheduled(initialDelayString = "${myprop.images.uploads.purge-interval-ms:600000}", fixedDelayString = "${myprop.images.uploads.purge-interval-ms:600000}")
+  public void purgeExpired() {
+    long limit = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(expireMinutes);
+    for (Upload upload : uploads.values())
+      if (upload.lastAccess < limit && !upload.committing && upload.writers == 0) {
+        log.info("Upload " + upload.id + " (" + upload.name + ") expired");
+        remove(upload);
+      }
+  }
+
+  // Lazy: files left by a previous run belong to uploads that cannot be resumed
+  private Path root() {
+    if (root == null)
+      synchronized (this) {
+        if (root == null) {
+          try {
+            Path dir = Paths.get(directory);
+            Files.createDirectories(dir);
+            try (Stream<Path> files = Files.list(dir)) {
+              files.filter(p -> p.getFileName().toString().endsWith(".part")).forEach(p -> p.toFile().delete());
+            }
+            root = dir;
+          } catch (IOException e) {
+            e.printStackTrace();
+            throw new ImageException("upload staging not available");
+          }
+        }
+      }
+    return root;
+  }
+
+  public static class Upload {
+    @Getter
+    private final String id;
+    private final String owner;
+    @Getter
+    private final String name;
+    @Getter
+    private final String type;
+    @Getter
+    private final long size;
+    private final Path file;
+    private final TreeMap<Long, Long> ranges = new TreeMap<>(); // start -> end (exclusive), disjoint and not adjacent
+    private volatile long lastAccess = System.currentTimeMillis();
+    private boolean committing;
+    private boolean removed; // committed or aborted
+    private int writers;
+
+    private Upload(String id, String owner, String name, String type, long size, Path file) {
+      this.id = id;
+      this.owner = owner;
+      this.name = name;
+      this.type = type;
+      this.size = size;
+      this.file = file;
+    }
+
+    // Merges [start, end) with the overlapping or adjacent ranges
+    private void addRange(long start, long end) {
+      if (end <= start)
+        return;
+      Map.Entry<Long, Long> before = ranges.floorEntry(start);
+      if (before != null && before.getValue() >= start) {
+        start = before.getKey();
+        end = Math.max(end, before.getValue());
+      }
+      Map.Entry<Long, Long> next;
+      while ((next = ranges.ceilingEntry(start)) != null && next.getKey() <= end) {
+        end = Math.max(end, next.getValue());
+        ranges.remove(next.getKey());
+      }
+      ranges.put(start, end);
+    }
+
+    private long received() {
+      long received = 0;
+      for (Map.Entry<Long, Long> range : ranges.entrySet())
+        received += range.getValue() - range.getKey();
+      return received;
+    }
+  }
+}
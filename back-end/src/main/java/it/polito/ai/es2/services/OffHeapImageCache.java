@@ -0,0 +1,366 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.dtos.ImageCacheStatsDTO;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Byte budgeted cache of decompressed image content, keyed by image id, stored outside the Java heap.
+ * <p>Memory is a set of direct {@link ByteBuffer} slabs (allocated lazily) split in fixed size pages: an entry is a list
+ * of pages, so there is no fragmentation and the heap only holds the small index.
+ * Eviction is LRU with a TinyLFU admission filter: when space is needed, a new image is admitted only if it has been
+ * requested more often (count-min sketch, periodically halved) than the entry it would evict, so a scan of cold images
+ * does not flush the hot ones.
+ * <p>Entries being read are pinned: their pages are released when the last reader finishes.
+ * Entries are filled while the image is streamed to the first client ({@link Filler}), without an extra copy.
+ */
+@Component
+@Log
+public class OffHeapImageCache {
+  @Value("${myprop.images.cache.offheap.capacity:67108864}")
+  long capacity; // bytes, 0 disables the cache
+  @Value("${myprop.images.cache.offheap.page-size:65536}")
+  int pageSize;
+  @Value("${myprop.images.cache.offheap.slab-size:8388608}")
+  int slabSize;
+  @Value("${myprop.images.cache.offheap.max-entry-size:8388608}")
+  long maxEntrySize;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final LinkedHashMap<Long, Entry> entries = new LinkedHashMap<>(256, 0.75f, true); // access order: LRU first
+  private final Map<Long, Filler> filling = new HashMap<>();
+  private ByteBuffer[] slabs;
+  private int pagesPerSlab;
+  private int totalPages;
+  private int[] freePages; // stack
+  private int freeCount;
+  private int allocatedSlabs;
+  private FrequencySketch sketch;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+  private final AtomicLong rejections = new AtomicLong();
+  private final AtomicLong invalidations = new AtomicLong();
+
+  @PostConstruct
+  public void init() {
+    pagesPerSlab = Math.max(1, slabSize / pageSize);
+    totalPages = (int) Math.min(Integer.MAX_VALUE, capacity / pageSize);
+    slabs = new ByteBuffer[(totalPages + pagesPerSlab - 1) / pagesPerSlab];
+    freePages = new int[totalPages];
+    sketch = new FrequencySketch(Math.max(1024, Integer.highestOneBit(Math.max(1, totalPages)) * 4));
+    log.info("Off-heap image cache: " + capacity + " bytes, " + totalPages + " pages of " + pageSize + " bytes");
+  }
+
+  /**
+   * Copies bytes [offset, offset + length) of a cached image to the output stream
+   *
+   * @return bytes written, -1 if the image is not cached
+   */
+  public long writeTo(Long imageId, long offset, long length, OutputStream outputStream) throws IOException {
+    Entry entry;
+    lock.lock();
+    try {
+      sketch.increment(imageId);
+      entry = entries.get(imageId);
+      if (entry == null) {
+        misses.incrementAndGet();
+        return -1;
+      }
+      entry.pins++;
+    } finally {
+      lock.unlock();
+    }
+    hits.incrementAndGet();
+    try {
+      long end = Math.min(entry.length, offset + Math.min(length, Long.MAX_VALUE - offset));
+      byte[] buffer = new byte[Math.min(pageSize, ImageServiceImpl.STREAM_BUFFER_SIZE)];
+      for (long position = offset; position < end; ) {
+        ByteBuffer page = page(entry.pages[(int) (position / pageSize)]);
+        int pageOffset = (int) (position % pageSize);
+        int n = (int) Math.min(Math.min(buffer.length, pageSize - pageOffset), end - position);
+        page.position(pageOffset);
+        page.get(buffer, 0, n);
+        outputStream.write(buffer, 0, n);
+        position += n;
+      }
+      return Math.max(0, end - offset);
+    } finally {
+      unpin(entry);
+    }
+  }
+
+  /**
+   * Reserves the pages for an image of the given size, evicting LRU entries if the admission filter allows it
+   *
+   * @return null if the image is not admitted (too big, colder than the victims, already cached or being filled)
+   */
+  public Filler beginFill(Long imageId, long size) {
+    if (size <= 0 || size > maxEntrySize || totalPages == 0)
+      return null;
+    int needed = (int) ((size + pageSize - 1) / pageSize);
+    lock.lock();
+    try {
+      if (needed > totalPages || entries.containsKey(imageId) || filling.containsKey(imageId))
+        return null;
+      int frequency = sketch.frequency(imageId);
+      while (available() < needed) {
+        Entry victim = lruUnpinned();
+        if (victim == null || frequency <= sketch.frequency(victim.key)) {
+          rejections.incrementAndGet();
+          return null;
+        }
+        remove(victim);
+        evictions.incrementAndGet();
+      }
+      int[] pages = new int[needed];
+      for (int i = 0; i < needed; i++)
+        pages[i] = allocatePage();
+      Filler filler = new Filler(imageId, pages, size);
+      filling.put(imageId, filler);
+      return filler;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public void invalidate(Long imageId) {
+    lock.lock();
+    try {
+      Filler filler = filling.remove(imageId);
+      if (filler != null)
+        filler.cancelled = true;
+      Entry entry = entries.get(imageId);
+      if (entry != null) {
+        remove(entry);
+        invalidations.incrementAndGet();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public ImageCacheStatsDTO getStats() {
+    ImageCacheStatsDTO stats = new ImageCacheStatsDTO();
+    lock.lock();
+    try {
+      stats.setEntries(entries.size());
+      stats.setUsedBytes((long) (totalPages - available()) * pageSize);
+    } finally {
+      lock.unlock();
+    }
+    stats.setCapacityBytes((long) totalPages * pageSize);
+    stats.setHits(hits.get());
+    stats.setMisses(misses.get());
+    stats.setEvictions(evictions.get());
+    stats.setRejections(rejections.get());
+    stats.setInvalidations(invalidations.get());
+    long requests = stats.getHits() + stats.getMisses();
+    stats.setHitRatio(requests == 0 ? 0 : (double) stats.getHits() / requests);
+    return stats;
+  }
+
+  // Pages of a removed entry still pinned by a reader are released by the last reader
+  private void remove(Entry entry) {
+    entries.remove(entry.key);
+    entry.removed = true;
+    if (entry.pins == 0)
+      freePages(entry.pages);
+  }
+
+  private void unpin(Entry entry) {
+    lock.lock();
+    try {
+      if (--entry.pins == 0 && entry.removed)
+        freePages(entry.pages);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private Entry lruUnpinned() {
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext(); ) {
+      Entry entry = it.next();
+      if (entry.pins == 0)
+        return entry;
+    }
+    return null;
+  }
+
+  private int available() {
+    return freeCount + (totalPages - Math.min(totalPages, allocatedSlabs * pagesPerSlab));
+  }
+
+  private int allocatePage() {
+    if (freeCount == 0) { // lazily allocate the next slab
+      int first = allocatedSlabs * pagesPerSlab;
+      int pages = Math.min(pagesPerSlab, totalPages - first);
+      slabs[allocatedSlabs++] = ByteBuffer.allocateDirect(pages * pageSize);
+      for (int page = first + pages - 1; page >= first; page--)
+        freePages[freeCount++] = page;
+    }
+    return freePages[--freeCount];
+  }
+
+  private void freePages(int[] pages) {
+    for (int page : pages)
+      freePages[freeCount++] = page;
+  }
+
+  // Independent view (own position) of a page
+  private ByteBuffer page(int page) {
+    ByteBuffer slab = slabs[page / pagesPerSlab].duplicate();
+    int start = (page % pagesPerSlab) * pageSize;
+    slab.position(start).limit(start + pageSize);
+    return slab.slice();
+  }
+
+  private static class Entry {
+    final long key;
+    final int[] pages;
+    final long length;
+    int pins;
+    boolean removed;
+
+    Entry(long key, int[] pages, long length) {
+      this.key = key;
+      this.pages = pages;
+      this.length = length;
+    }
+  }
+
+  /**
+   * Receives the content while it is streamed to the client, see {@link #tee(OutputStream)}. Exactly one of
+   * {@link #commit()} / {@link #abort()} must be called: the entry is published only if the whole content was written.
+   */
+  public class Filler {
+    private final long key;
+    private final int[] pages;
+    private final long size;
+    private long written;
+    private volatile boolean cancelled;
+
+    private Filler(long key, int[] pages, long size) {
+      this.key = key;
+      this.pages = pages;
+      this.size = size;
+    }
+
+    public OutputStream tee(OutputStream outputStream) {
+      return new OutputStream() {
+        @Override
+        public void write(int b) throws IOException {
+          write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+          outputStream.write(b, off, len);
+          append(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+          outputStream.flush();
+        }
+      };
+    }
+
+    private void append(byte[] b, int off, int len) {
+      while (len > 0 && written < size) {
+        ByteBuffer page = page(pages[(int) (written / pageSize)]);
+        int pageOffset = (int) (written % pageSize);
+        int n = (int) Math.min(Math.min(len, pageSize - pageOffset), size - written);
+        page.position(pageOffset);
+        page.put(b, off, n);
+        written += n;
+        off += n;
+        len -= n;
+      }
+    }
+
+    public void commit() {
+      lock.lock();
+      try {
+        if (cancelled || written != size) {
+          abort();
+          return;
+        }
+        filling.remove(key);
+        entries.put(key, new Entry(key, pages, size));
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    public void abort() {
+      lock.lock();
+      try {
+        if (filling.get(key) == this)
+          filling.remove(key);
+        freePages(pages);
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Count-min sketch of 4 rows with counters saturating at 15. Halved every 10 * width increments, so the
+   * frequencies follow the recent popularity. Guarded by the cache lock.
+   */
+  private static class FrequencySketch {
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private final int[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    FrequencySketch(int width) {
+      table = new int[width];
+      mask = width - 1;
+      sampleSize = 10 * width;
+    }
+
+    int frequency(long key) {
+      int frequency = Integer.MAX_VALUE;
+      for (int i = 0; i < SEEDS.length; i++)
+        frequency = Math.min(frequency, table[index(key, i)]);
+      return frequency;
+    }
+
+    void increment(long key) {
+      boolean added = false;
+      for (int i = 0; i < SEEDS.length; i++) {
+        int index = index(key, i);
+        if (table[index] < 15) {
+          table[index]++;
+          added = true;
+        }
+      }
+      if (added && ++additions >= sampleSize) {
+        for (int i = 0; i < table.length; i++)
+          table[i] >>>= 1;
+        additions = 0;
+      }
+    }
+
+    private int index(long key, int i) {
+      long hash = (key + SEEDS[i]) * 0x9E3779B97F4A7C15L;
+      hash ^= hash >>> 29;
+      return (int) hash & mask;
+    }
+  }
+}
@@ -0,0 +1,194 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.entities.VM;
+import it.polito.ai.es2.services.exceptions.VmException;
+import it.polito.ai.es2.services.interfaces.VmBackend;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.time.LocalDateTime;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+
+/**
+ * In-process hypervisor for development and load tests: each operation sleeps for its configured latency (plus a
+ * random jitter) and may fail with the configured probability. Running VMs share a host of limited vcpu and ram, so a
+ * start storm beyond the capacity leaves the extra VMs FAILED, as a real host would.
+ * The console shows the VM screenshot with the current time, the resource usage is a random walk.
+ * <p>Nothing survives a restart: the reconciliation of the lifecycle engine recreates the VMs of the database.
+ */
+@Service
+@ConditionalOnProperty(name = "myprop.vms.backend", havingValue = "simulator", matchIfMissing = true)
+@Log
+public class SimulatedVmBackend implements VmBackend {
+  @Autowired
+  VmScreenshotCompositor screenshotCompositor;
+  @Value("${myprop.vms.simulator.create-ms:2000}")
+  long createMs;
+  @Value("${myprop.vms.simulator.start-ms:5000}")
+  long startMs;
+  @Value("${myprop.vms.simulator.stop-ms:2000}")
+  long stopMs;
+  @Value("${myprop.vms.simulator.jitter-ms:1000}")
+  long jitterMs;
+  @Value("${myprop.vms.simulator.failure-rate:0.0}")
+  double failureRate;
+  @Value("${myprop.vms.simulator.host-vcpu:256}")
+  int hostVcpu;
+  @Value("${myprop.vms.simulator.host-ram:1024}")
+  int hostRam;
+
+  private final Map<Long, SimulatedVm> vms = new ConcurrentHashMap<>();
+  private int usedVcpu; // of the running VMs, guarded by this
+  private int usedRam;
+
+  @Override
+  public void create(Long vmId, int vcpu, int ram, int disk, Long diskLayerId) {
+    if (vms.putIfAbsent(vmId, new SimulatedVm(vcpu, ram, diskLayerId)) != null)
+      return;
+    try {
+      operate(vmId, createMs, "create", VM.State.STOPPED);
+    } catch (VmException e) {
+      vms.remove(vmId); // nothing to keep: the next attempt creates it again
+      throw e;
+    }
+  }
+
+  @Override
+  public void start(Long vmId, Long diskLayerId) {
+    SimulatedVm vm = get(vmId);
+    synchronized (this) {
+      if (vm.state == VM.State.RUNNING || vm.state == VM.State.STARTING)
+        return;
+      vm.diskLayerId = diskLayerId; // layers are not simulated: the overlay is only recorded
+      if (usedVcpu + vm.vcpu > hostVcpu || usedRam + vm.ram > hostRam) {
+        vm.state = VM.State.FAILED;
+        throw new VmException("host capacity exhausted, VM " + vmId + " not started");
+      }
+      usedVcpu += vm.vcpu;
+      usedRam += vm.ram;
+      vm.allocated = true;
+      vm.state = VM.State.STARTING;
+    }
+    try {
+      operate(vmId, startMs, "start", VM.State.RUNNING);
+    } catch (VmException e) {
+      release(vm);
+      vm.state = VM.State.FAILED;
+      throw e;
+    }
+  }
+
+  @Override
+  public void stop(Long vmId) {
+    SimulatedVm vm = get(vmId);
+    synchronized (this) {
+      if (vm.state == VM.State.STOPPED)
+        return;
+      vm.state = VM.State.STOPPING;
+    }
+    sleep(stopMs); // a stop always succeeds: worst case it is a power off
+    release(vm);
+    vm.state = VM.State.STOPPED;
+  }
+
+  @Override
+  public void destroy(Long vmId) {
+    SimulatedVm vm = vms.remove(vmId);
+    if (vm != null)
+      release(vm);
+  }
+
+  @Override
+  public VM.State getState(Long vmId) {
+    SimulatedVm vm = vms.get(vmId);
+    return vm == null ? null : vm.state;
+  }
+
+  @Override
+  public Set<Long> listVms() {
+    return new HashSet<>(vms.keySet());
+  }
+
+  @Override
+  public void forEachVm(Consumer<Long> action) {
+    vms.keySet().forEach(action);
+  }
+
+  @Override
+  public BufferedImage captureConsole(Long vmId) {
+    return getState(vmId) == VM.State.RUNNING ? screenshotCompositor.renderImage(LocalDateTime.now()) : null;
+  }
+
+  @Override
+  public boolean readUsage(Long vmId, double[] usage) {
+    SimulatedVm vm = vms.get(vmId);
+    if (vm == null || vm.state != VM.State.RUNNING)
+      return false;
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    vm.cpuLoad = Math.max(0.02, Math.min(1, vm.cpuLoad + random.nextGaussian() * 0.1));
+    vm.ramLoad = Math.max(0.2, Math.min(0.95, vm.ramLoad + random.nextGaussian() * 0.02));
+    usage[0] = vm.cpuLoad * vm.vcpu;
+    usage[1] = vm.ramLoad * vm.ram;
+    return true;
+  }
+
+  private SimulatedVm get(Long vmId) {
+    SimulatedVm vm = vms.get(vmId);
+    if (vm == null)
+      throw new VmException("VM " + vmId + " does not exist on the host");
+    return vm;
+  }
+
+  private void operate(Long vmId, long latency, String operation, VM.State result) {
+    sleep(latency);
+    SimulatedVm vm = get(vmId);
+    if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+      vm.state = VM.State.FAILED;
+      throw new VmException("simulated failure, " + operation + " of VM " + vmId);
+    }
+    vm.state = result;
+  }
+
+  private synchronized void release(SimulatedVm vm) {
+    if (vm.allocated) {
+      usedVcpu -= vm.vcpu;
+      usedRam -= vm.ram;
+      vm.allocated = false;
+    }
+  }
+
+  private void sleep(long latency) {
+    long millis = latency + (jitterMs > 0 ? ThreadLocalRandom.current().nextLong(jitterMs + 1) : 0);
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VmException("operation interrupted");
+    }
+  }
+
+  private static class SimulatedVm {
+    final int vcpu;
+    final int ram;
+    Long diskLayerId;
+    volatile VM.State state = VM.State.CREATING;
+    boolean allocated; // host resources taken, guarded by the backend
+    double cpuLoad = 0.3; // fraction of vcpu and ram used, changed only by the metrics sampler
+    double ramLoad = 0.5;
+
+    SimulatedVm(int vcpu, int ram, Long diskLayerId) {
+      this.vcpu = vcpu;
+      this.ram = ram;
+      this.diskLayerId = diskLayerId;
+    }
+  }
+}
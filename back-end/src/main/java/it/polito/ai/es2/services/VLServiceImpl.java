@@ -1,46 +1,49 @@
 package it.polito.ai.es2.services;
 
+import it.polito.ai.es2.dtos.AdmissionStatsDTO;
 import it.polito.ai.es2.dtos.AssignmentDTO;
-import it.polito.ai.es2.dtos.ImageDTO;
+import it.polito.ai.es2.dtos.CourseUsageDTO;
 import it.polito.ai.es2.dtos.ImplementationDTO;
+import it.polito.ai.es2.dtos.MetricPointDTO;
+import it.polito.ai.es2.dtos.TeamMetricsDTO;
+import it.polito.ai.es2.dtos.VmMetricsDTO;
+import it.polito.ai.es2.dtos.PlacementPlanDTO;
+import it.polito.ai.es2.dtos.PlacementStatusDTO;
+import it.polito.ai.es2.dtos.VmBulkRequestDTO;
 import it.polito.ai.es2.dtos.VmDTO;
+import it.polito.ai.es2.dtos.VmDemandDTO;
+import it.polito.ai.es2.dtos.VmModelDTO;
+import it.polito.ai.es2.dtos.VmOperationResultDTO;
+import it.polito.ai.es2.dtos.VmSnapshotDTO;
 import it.polito.ai.es2.entities.Image;
 import it.polito.ai.es2.entities.*;
 import it.polito.ai.es2.repositories.*;
 import it.polito.ai.es2.services.exceptions.*;
-import it.polito.ai.es2.services.interfaces.ImageService;
 import it.polito.ai.es2.services.interfaces.VLService;
 import lombok.extern.java.Log;
 import org.modelmapper.ModelMapper;
 import org.modelmapper.TypeToken;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.validation.annotation.Validated;
-import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
-import javax.imageio.ImageIO;
 import javax.validation.ConstraintViolation;
 import javax.validation.ConstraintViolationException;
 import javax.validation.Valid;
 import javax.validation.Validator;
+import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
-import java.awt.*;
-import java.awt.font.TextAttribute;
-import java.awt.image.BufferedImage;
-import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.text.AttributedString;
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Optional;
-import java.util.Set;
+import java.util.*;
+import java.util.stream.Collectors;
 
 @Service
 @Transactional
@@ -52,12 +55,12 @@ public class VLServiceImpl implements VLService {
   @Autowired
   VMRepository vmRepository;
   @Autowired
-  ImageService imageService;
-  @Autowired
   ImageRepository imageRepository;
   @Autowired
   TeamRepository teamRepository;
   @Autowired
+  CourseRepository courseRepository;
+  @Autowired
   StudentRepository studentRepository;
   @Autowired
   AssignmentRepository assignmentRepository;
@@ -65,15 +68,40 @@ public class VLServiceImpl implements VLService {
   ImplementationRepository implementationRepository;
   @Autowired
   Validator validator;
-  static String FILEPATH = "src/main/resources/test"; // Path of temp file
-  static File file = new File(FILEPATH);
+  @Autowired
+  VmResourceAccounting resourceAccounting;
+  @Autowired
+  VmLifecycleEngine lifecycleEngine;
+  @Autowired
+  VmConsoleStreamer consoleStreamer;
+  @Autowired
+  VmModelRegistry modelRegistry;
+  @Autowired
+  VmWarmPool warmPool;
+  @Autowired
+  VmIdleScheduler idleScheduler;
+  @Autowired
+  VmStatusCoalescer statusCoalescer;
+  @Autowired
+  VmDiskLayerRepository diskLayerRepository;
+  @Autowired
+  VmSnapshotRepository snapshotRepository;
+  @Value("${myprop.vms.snapshots.max-per-vm:5}")
+  int maxSnapshots;
+  @Value("${myprop.vms.snapshots.max-depth:32}")
+  int maxDiskDepth;
+  @Autowired
+  VmPlacementScheduler placementScheduler;
+  @Autowired
+  VmAdmissionQueue admissionQueue;
+  @Autowired
+  VmMetricsStore metricsStore;
 
   @Override
   @PreAuthorize("hasRole('STUDENT')")
-  public void createVm(@Valid VmDTO vmDTO) {
+  public VmDTO createVm(@Valid VmDTO vmDTO) {
     log.info("createVm(" + vmDTO + ", " + vmDTO.getTeamId() + ", " + vmDTO.getStudentCreatorId() + ")");
-    VM vm = new VM();
-    vm.setActive(false);
+    VM vm = new VM(); // requested resources, checked before a shell of the warm pool is bound
     vm.setVcpu(vmDTO.getVcpu());
     vm.setDisk(vmDTO.getDisk());
     vm.setRam(vmDTO.getRam());
@@ -84,62 +112,41 @@ public class VLServiceImpl implements VLService {
     Optional<Team> teamOptional = teamRepository.findById(vmDTO.getTeamId());
     if (teamOptional.isEmpty())
       throw new TeamNotFoundException(vmDTO.getTeamId());
-    vm.addSetCreator(studentOptional.get());
-    vm.addSetTeam(teamOptional.get());
+    Team team = teamOptional.get();
+    vm.setTeam(team);
+    applyModel(vm, modelRegistry.get(team.getCourse().getVmModelPath()));
 
     Set<ConstraintViolation<VM>> constraintViolations = validator.validate(vm);
     if (!constraintViolations.isEmpty()) {
       throw new ConstraintViolationException(constraintViolations);
     }
+    resourceAccounting.charge(team.getId(), vm.getVcpu(), vm.getRam(), vm.getDisk(), 0, 1);
+    VM created = warmPool.claim(team.getCourse().getVmModelPath(), team, studentOptional.get(), vm.getVcpu(), vm.getRam(), vm.getDisk());
+    lifecycleEngine.converge(created.getId());
+    return modelMapper.map(created, VmDTO.class);
+  }
 
-    ImageDTO imageDTO = null;
-    Path path = Paths.get("src/main/resources/vm.jpeg");
-    String name = "vm.jpeg";
-    String originalFileName = "vm.jpeg";
-    String contentType = "image/jpeg";
-    byte[] content = null;
-    content = addTimestampImage(path, content);
-    MultipartFile multipartFile = new MockMultipartFile(name, originalFileName, contentType, content);
-    imageDTO = imageService.uploadImage(multipartFile);
-    if (imageDTO == null || imageDTO.getId() == null)
-      throw new RuntimeException("Critical server error: upload failed silently)");
-    Image image = imageRepository.findById(imageDTO.getId()).orElse(null);
-    if (image == null)
-      throw new RuntimeException("Critical server error: image was not saved)");
-    vm.addSetImage(image);
-
-    vmRepository.save(vm);
+  // Course model: defaults for the resources left to 0, per VM limits
+  private void applyModel(VM vm, VmModelDTO model) {
+    if (model == null)
+      return;
+    if (vm.getVcpu() == 0)
+      vm.setVcpu(model.getVcpu());
+    if (vm.getRam() == 0)
+      vm.setRam(model.getRam());
+    if (vm.getDisk() == 0)
+      vm.setDisk(model.getDisk());
+    checkModelLimits(vm.getVcpu(), vm.getRam(), vm.getDisk(), model);
   }
 
-  private byte[] addTimestampImage(Path path, byte[] content) {
-    try {
-      content = Files.readAllBytes(path);
-      OutputStream os = new FileOutputStream(file);
-      os.write(content);
-      os.close();
-//      Files.write(new File(FILEPATH).toPath(), content);
-      BufferedImage image = ImageIO.read(new File(FILEPATH));
-      Font font = new Font("Arial", Font.BOLD, 18);
-      Graphics g = image.getGraphics();
-      g.setFont(font);
-      g.setColor(Color.GREEN);
-      String text = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-      AttributedString attributedText = new AttributedString(text);
-      attributedText.addAttribute(TextAttribute.FONT, font);
-      attributedText.addAttribute(TextAttribute.FOREGROUND, Color.GREEN);
-      FontMetrics metrics = g.getFontMetrics(font);
-      int positionX = (image.getWidth() - metrics.stringWidth(text));
-      int positionY = (image.getHeight() - metrics.getHeight()) + metrics.getAscent();
-      g.drawString(attributedText.getIterator(), positionX, positionY);
-//      BufferedImage originalImage = ImageIO.read(new File("c:\\image\\mypic.jpg"));
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      ImageIO.write(image, "jpg", baos);
-      baos.flush();
-      content = baos.toByteArray();
-      baos.close();
-    } catch (IOException e) {
-    }
-    return content;
+  private static void checkModelLimits(int vcpu, int ram, int disk, VmModelDTO model) {
+    if (model == null)
+      return;
+    if ((model.getMaxVcpu() > 0 && vcpu > model.getMaxVcpu())
+        || (model.getMaxRam() > 0 && ram > model.getMaxRam())
+        || (model.getMaxDisk() > 0 && disk > model.getMaxDisk()))
+      throw new VmException("resources exceed the course VM model limits (vcpu " + model.getMaxVcpu()
+          + ", ram " + model.getMaxRam() + ", disk " + model.getMaxDisk() + ")");
   }
 
   @PreAuthorize("hasRole('STUDENT') or hasRole('PROFESSOR')")
@@ -154,22 +161,19 @@ public class VLServiceImpl implements VLService {
   }
 
   @PreAuthorize("hasRole('STUDENT') and @mySecurityChecker.isVmOwner(#vmId,authentication.principal.username)")
-  @Override public void changeStatusVm(@NotNull Long vmId, boolean newStatus) {
-    vmRepository.findById(vmId).map(vm -> {
-      vm.setActive(newStatus);
-      Set<ConstraintViolation<VM>> constraintViolations = validator.validate(vm);
-      if (!constraintViolations.isEmpty()) {
-        Set<String> messages = new HashSet<>(constraintViolations.size());
-        throw new ConstraintViolationException(constraintViolations);
-      }
-      return true;
-    }).orElseThrow(() -> new VmNotFoundException(vmId));
-    return;
+  @Transactional(propagation = Propagation.NOT_SUPPORTED) // waits for the flush of VmStatusCoalescer, no connection held
+  @Override public VmDTO changeStatusVm(@NotNull Long vmId, boolean newStatus) {
+    idleScheduler.touch(vmId);
+    return statusCoalescer.submit(vmId, newStatus);
   }
 
   @PreAuthorize("hasRole('STUDENT') and @mySecurityChecker.isVmOwner(#vmDTO,authentication.principal.username)")
   @Override public void editVm(@Valid VmDTO vmDTO) {
     VM vm = vmRepository.findById(vmDTO.getId()).orElseThrow(() -> new VmNotFoundException(vmDTO.getId()));
+    idleScheduler.touch(vm.getId());
+    checkModelLimits(vmDTO.getVcpu(), vmDTO.getRam(), vmDTO.getDisk(), modelRegistry.get(vm.getTeam().getCourse().getVmModelPath()));
+    resourceAccounting.charge(vm.getTeam().getId(), vmDTO.getVcpu() - vm.getVcpu(), vmDTO.getRam() - vm.getRam(),
+        vmDTO.getDisk() - vm.getDisk(), 0, 0);
     vm.setVcpu(vmDTO.getVcpu());
     vm.setRam(vmDTO.getRam());
     vm.setDisk(vmDTO.getDisk());
@@ -179,6 +183,7 @@ public class VLServiceImpl implements VLService {
   @PreAuthorize("hasRole('STUDENT') and @mySecurityChecker.isVmOwner(#vmId,authentication.principal.username)")
   @Override public void deleteVm(@NotNull Long vmId) {
     VM vm = vmRepository.findById(vmId).orElseThrow(() -> new VmNotFoundException(vmId));
+    resourceAccounting.charge(vm.getTeam().getId(), -vm.getVcpu(), -vm.getRam(), -vm.getDisk(), vm.isActive() ? -1 : 0, -1);
     for (Student sharedOwner : vm.getSharedOwners()) {
       sharedOwner.getVmsCreated().remove(vm);
       sharedOwner.getVmsOwned().remove(vm);
@@ -186,8 +191,304 @@ public class VLServiceImpl implements VLService {
     vm.getCreator().getVmsOwned().remove(vm);
     vm.getCreator().getVmsCreated().remove(vm);
     vm.getTeam().getVms().remove(vm);
-    // image handled by remove cascade
+    // image handled by remove cascade, disk layers by VmDiskLayerCollector
+    snapshotRepository.deleteByVmIdIn(List.of(vmId));
+    metricsStore.delete(List.of(vmId));
     vmRepository.deleteById(vm.getId());
+    lifecycleEngine.converge(vmId); // destroys the VM on the backend
+  }
+
+  /**
+   * Start, stop or delete many VMs: authorized once, VMs read with one query, quotas charged once per team and the
+   * changes applied with one statement. The VMs of a team whose quota would be exceeded are not touched.
+   * <p>A student acting on a whole team only changes the VMs they own (creator or shared owner), as for a single VM:
+   * the others are reported as refused.
+   *
+   * @return one result per VM, in the order of the requested ids (if any)
+   */
+  @PreAuthorize("(hasRole('PROFESSOR') and @mySecurityChecker.isVmBulkCourseOwner(#request,authentication.principal.username))" +
+      " or (hasRole('STUDENT') and @mySecurityChecker.isVmBulkOwner(#request,authentication.principal.username))")
+  @Override public List<VmOperationResultDTO> bulkVms(@Valid VmBulkRequestDTO request) {
+    Map<Long, VmOperationResultDTO> results = new LinkedHashMap<>();
+    List<VmStatus> vms;
+    if (request.getTeamId() != null)
+      vms = vmRepository.findStatusByTeamId(request.getTeamId());
+    else if (request.getCourseId() != null)
+      vms = vmRepository.findStatusByCourseId(request.getCourseId());
+    else {
+      if (request.getVmIds().isEmpty())
+        return new ArrayList<>();
+      for (Long vmId : request.getVmIds())
+        results.put(vmId, new VmOperationResultDTO(vmId, false, null, "VM " + vmId + " not found"));
+      vms = vmRepository.findStatusByIdIn(request.getVmIds());
+    }
+    if (request.getTeamId() != null && !vms.isEmpty() && isStudent()) {
+      Long studentId = Long.valueOf(SecurityContextHolder.getContext().getAuthentication().getName());
+      Set<Long> owned = new HashSet<>(vmRepository.findIdsOwnedByStudent(
+          vms.stream().map(VmStatus::getId).collect(Collectors.toList()), studentId));
+      for (VmStatus vm : vms)
+        if (!owned.contains(vm.getId()))
+          results.put(vm.getId(), new VmOperationResultDTO(vm.getId(), false, vm.getState(), "not an owner of VM " + vm.getId()));
+      vms = vms.stream().filter(vm -> owned.contains(vm.getId())).collect(Collectors.toList());
+    }
+    VmBulkRequestDTO.Operation operation = request.getOperation();
+    boolean active = operation == VmBulkRequestDTO.Operation.START;
+    List<Long> changed = new ArrayList<>();
+    for (Map.Entry<Long, List<VmStatus>> team : vms.stream().filter(vm -> vm.getTeamId() != null).collect(Collectors.groupingBy(VmStatus::getTeamId)).entrySet()) {
+      List<VmStatus> targets = operation == VmBulkRequestDTO.Operation.DELETE ? team.getValue()
+          : team.getValue().stream().filter(vm -> vm.isActive() != active).collect(Collectors.toList());
+      try {
+        if (operation == VmBulkRequestDTO.Operation.DELETE)
+          resourceAccounting.charge(team.getKey(), -targets.stream().mapToInt(VmStatus::getVcpu).sum(),
+              -targets.stream().mapToInt(VmStatus::getRam).sum(), -targets.stream().mapToInt(VmStatus::getDisk).sum(),
+              -(int) targets.stream().filter(VmStatus::isActive).count(), -targets.size());
+        else
+          resourceAccounting.charge(team.getKey(), 0, 0, 0, active ? targets.size() : -targets.size(), 0);
+      } catch (VmException e) {
+        for (VmStatus vm : team.getValue())
+          results.put(vm.getId(), new VmOperationResultDTO(vm.getId(), false, vm.getState(), e.getMessage()));
+        continue;
+      }
+      for (VmStatus vm : team.getValue())
+        results.put(vm.getId(), new VmOperationResultDTO(vm.getId(), true, vm.getState(), null));
+      for (VmStatus vm : targets) {
+        changed.add(vm.getId());
+        results.get(vm.getId()).setState(operation == VmBulkRequestDTO.Operation.DELETE ? null : VmLifecycleEngine.pendingState(active));
+      }
+    }
+    if (!changed.isEmpty()) {
+      if (operation == VmBulkRequestDTO.Operation.DELETE) {
+        snapshotRepository.deleteByVmIdIn(changed);
+        metricsStore.delete(changed);
+        vmRepository.deleteInBulk(changed);
+      } else
+        vmRepository.updateActive(changed, active, VmLifecycleEngine.pendingState(active));
+      lifecycleEngine.converge(changed);
+    }
+    log.info("bulkVms(" + operation + "): " + changed.size() + " of " + vms.size() + " VMs changed");
+    return new ArrayList<>(results.values());
+  }
+
+  @PreAuthorize("hasRole('PROFESSOR') or (hasRole('STUDENT') and @mySecurityChecker.isVmTeamMember(#vmId,authentication.principal.username))")
+  @Override public List<VmSnapshotDTO> getVmSnapshots(@NotNull Long vmId) {
+    if (!vmRepository.existsById(vmId))
+      throw new VmNotFoundException(vmId);
+    return snapshotRepository.findByVmId(vmId).stream().map(this::toSnapshotDTO).collect(Collectors.toList());
+  }
+
+  /**
+   * Seals the disk overlay of a stopped VM and puts an empty one on top of it: nothing is copied, the cost does not
+   * depend on the disk size
+   */
+  @PreAuthorize("hasRole('STUDENT') and @mySecurityChecker.isVmOwner(#vmId,authentication.principal.username)")
+  @Override public VmSnapshotDTO snapshotVm(@NotNull Long vmId, @NotBlank String name) {
+    VM vm = lockStoppedVm(vmId);
+    if (snapshotRepository.countByVmId(vmId) >= maxSnapshots)
+      throw new VmException("snapshot limit reached: " + maxSnapshots + " per VM");
+    VmSnapshot snapshot = new VmSnapshot();
+    snapshot.setName(name);
+    snapshot.setVm(vm);
+    snapshot.setLayer(sealDiskLayer(vm));
+    snapshot.setCreatedDate(Timestamp.valueOf(LocalDateTime.now()));
+    snapshotRepository.save(snapshot);
+    return toSnapshotDTO(snapshot);
+  }
+
+  /**
+   * The VM restarts from the snapshot: its current overlay is discarded and an empty one is put on the snapshot layer
+   */
+  @PreAuthorize("hasRole('STUDENT') and @mySecurityChecker.isVmOwner(#vmId,authentication.principal.username)")
+  @Override public VmDTO restoreVmSnapshot(@NotNull Long vmId, @NotNull Long snapshotId) {
+    VM vm = lockStoppedVm(vmId);
+    vm.setDiskLayer(newDiskLayer(findSnapshot(vmId, snapshotId).getLayer()));
+    return modelMapper.map(vm, VmDTO.class);
+  }
+
+  @PreAuthorize("hasRole('STUDENT') and @mySecurityChecker.isVmOwner(#vmId,authentication.principal.username)")
+  @Override public void deleteVmSnapshot(@NotNull Long vmId, @NotNull Long snapshotId) {
+    snapshotRepository.delete(findSnapshot(vmId, snapshotId)); // layers left to VmDiskLayerCollector
+  }
+
+  /**
+   * New VM of the same team, on an empty overlay over the current disk of the (stopped) VM or over one of its
+   * snapshots: only metadata is written. The clone is charged its logical size, as any VM: it can fill its whole disk,
+   * the shared layers are not charged again.
+   */
+  @PreAuthorize("hasRole('STUDENT') and @mySecurityChecker.isVmOwner(#vmId,authentication.principal.username)")
+  @Override public VmDTO cloneVm(@NotNull Long vmId, Long snapshotId) {
+    VM source = snapshotId == null ? lockStoppedVm(vmId) : vmRepository.findById(vmId).orElseThrow(() -> new VmNotFoundException(vmId));
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    Long studentId = Long.valueOf(authentication.getName());
+    Student creator = studentRepository.findById(studentId).orElseThrow(() -> new StudentNotFoundException(studentId.toString()));
+    resourceAccounting.charge(source.getTeam().getId(), source.getVcpu(), source.getRam(), source.getDisk(), 0, 1);
+    VM vm = warmPool.claim(source.getTeam().getCourse().getVmModelPath(), source.getTeam(), creator, source.getVcpu(),
+        source.getRam(), source.getDisk());
+    // the base layer of the shell is left to VmDiskLayerCollector
+    vm.setDiskLayer(newDiskLayer(snapshotId == null ? sealDiskLayer(source) : findSnapshot(vmId, snapshotId).getLayer()));
+    lifecycleEngine.converge(vm.getId());
+    log.info("cloneVm(" + vmId + ", " + snapshotId + "): VM " + vm.getId());
+    return modelMapper.map(vm, VmDTO.class);
+  }
+
+  // Row lock: snapshots, clones and restores of a VM are serialized. The state is read after the lock, from the table
+  private VM lockStoppedVm(Long vmId) {
+    VM vm = vmRepository.findByIdForUpdate(vmId).orElseThrow(() -> new VmNotFoundException(vmId));
+    VmStatus status = vmRepository.findStatusById(vmId).orElseThrow(() -> new VmNotFoundException(vmId));
+    if (status.isActive() || (status.getState() != VM.State.STOPPED && status.getState() != VM.State.FAILED))
+      throw new VmException("VM " + vmId + " must be stopped, it is " + status.getState());
+    return vm;
+  }
+
+  // The overlay of the VM becomes immutable (a VM without layers gets a base layer for its disk) and a new empty one
+  // is put on top of it
+  private VmDiskLayer sealDiskLayer(VM vm) {
+    VmDiskLayer sealed = vm.getDiskLayer() != null ? vm.getDiskLayer() : newDiskLayer(null);
+    vm.setDiskLayer(newDiskLayer(sealed));
+    return sealed;
+  }
+
+  private VmDiskLayer newDiskLayer(VmDiskLayer parent) {
+    VmDiskLayer layer = new VmDiskLayer();
+    layer.setParent(parent);
+    layer.setDepth(parent == null ? 0 : parent.getDepth() + 1);
+    if (layer.getDepth() > maxDiskDepth)
+      throw new VmException("disk chain too long: at most " + maxDiskDepth + " snapshot and clone levels");
+    layer.setCreatedDate(Timestamp.valueOf(LocalDateTime.now()));
+    return diskLayerRepository.save(layer);
+  }
+
+  private VmSnapshot findSnapshot(Long vmId, Long snapshotId) {
+    return snapshotRepository.findById(snapshotId).filter(snapshot -> snapshot.getVm().getId().equals(vmId))
+        .orElseThrow(() -> new VmException("snapshot " + snapshotId + " of VM " + vmId + " not found"));
+  }
+
+  // Professors are authorized by course, students VM by VM
+  private static boolean isStudent() {
+    Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+    return authentication != null && authentication.getAuthorities().stream()
+        .anyMatch(a -> a.getAuthority().equals("ROLE_STUDENT"))
+        && authentication.getAuthorities().stream().noneMatch(a -> a.getAuthority().equals("ROLE_PROFESSOR"));
+  }
+
+  private VmSnapshotDTO toSnapshotDTO(VmSnapshot snapshot) {
+    VmSnapshotDTO dto = new VmSnapshotDTO();
+    dto.setId(snapshot.getId());
+    dto.setName(snapshot.getName());
+    dto.setVmId(snapshot.getVm().getId());
+    dto.setCreatedDate(snapshot.getCreatedDate());
+    dto.setDepth(snapshot.getLayer().getDepth());
+    return dto;
+  }
+
+  @PreAuthorize("(hasRole('PROFESSOR') and @mySecurityChecker.isVmCourseOwner(#vmId,authentication.principal.username))" +
+      " or (hasRole('STUDENT') and @mySecurityChecker.isVmTeamMember(#vmId,authentication.principal.username))")
+  @Override public VmMetricsDTO getVmMetrics(@NotNull Long vmId, @NotNull VmMetricsDTO.Resolution resolution, Long from, Long to) {
+    VmStatus vm = vmRepository.findStatusById(vmId).orElseThrow(() -> new VmNotFoundException(vmId));
+    long end = to != null ? to : System.currentTimeMillis();
+    long start = from != null ? from : end - metricsStore.getDefaultWindowMs(resolution);
+    VmMetricsDTO metrics = new VmMetricsDTO();
+    metrics.setVmId(vmId);
+    metrics.setTeamId(vm.getTeamId());
+    metrics.setResolution(metricsStore.getPeriodSeconds(resolution));
+    metrics.setPoints(metricsStore.query(List.of(vmId), resolution, start, end).get(vmId));
+    return metrics;
+  }
+
+  @PreAuthorize("(hasRole('PROFESSOR') and @mySecurityChecker.isTeamCourseOwner(#teamId,authentication.principal.username))" +
+      " or (hasRole('STUDENT') and @mySecurityChecker.isTeamOwner(#teamId,authentication.principal.username))")
+  @Override public TeamMetricsDTO getTeamMetrics(@NotNull Long teamId, @NotNull VmMetricsDTO.Resolution resolution, Long from, Long to) {
+    List<Long> vmIds = vmRepository.findStatusByTeamId(teamId).stream().map(VmStatus::getId).collect(Collectors.toList());
+    long end = to != null ? to : System.currentTimeMillis();
+    long start = from != null ? from : end - metricsStore.getDefaultWindowMs(resolution);
+    return teamMetrics(teamId, metricsStore.query(vmIds, resolution, start, end).values(), resolution);
+  }
+
+  @PreAuthorize("hasRole('PROFESSOR') and @mySecurityChecker.isCourseOwner(#courseId,authentication.principal.username)")
+  @Override public List<TeamMetricsDTO> getCourseMetrics(@NotNull String courseId, @NotNull VmMetricsDTO.Resolution resolution, Long from, Long to) {
+    List<VmStatus> vms = vmRepository.findStatusByCourseId(courseId);
+    long end = to != null ? to : System.currentTimeMillis();
+    long start = from != null ? from : end - metricsStore.getDefaultWindowMs(resolution);
+    Map<Long, List<MetricPointDTO>> series = metricsStore.query(vms.stream().map(VmStatus::getId).collect(Collectors.toList()), resolution, start, end);
+    return vms.stream().collect(Collectors.groupingBy(VmStatus::getTeamId)).entrySet().stream()
+        .map(team -> teamMetrics(team.getKey(), team.getValue().stream().map(vm -> series.get(vm.getId())).collect(Collectors.toList()), resolution))
+        .collect(Collectors.toList());
+  }
+
+  // Sum of the VM series, period by period, with the quotas of the team
+  private TeamMetricsDTO teamMetrics(Long teamId, Collection<List<MetricPointDTO>> vmSeries, VmMetricsDTO.Resolution resolution) {
+    TreeMap<Long, MetricPointDTO> sums = new TreeMap<>();
+    for (List<MetricPointDTO> points : vmSeries)
+      for (MetricPointDTO point : points) {
+        MetricPointDTO sum = sums.computeIfAbsent(point.getTime(), time -> new MetricPointDTO(time, 0, 0, 0, 0));
+        sum.setAvgVcpu(sum.getAvgVcpu() + point.getAvgVcpu());
+        sum.setMaxVcpu(sum.getMaxVcpu() + point.getMaxVcpu());
+        sum.setAvgRam(sum.getAvgRam() + point.getAvgRam());
+        sum.setMaxRam(sum.getMaxRam() + point.getMaxRam());
+      }
+    TeamMetricsDTO metrics = new TeamMetricsDTO();
+    metrics.setTeamId(teamId);
+    teamRepository.findUsageById(teamId).ifPresent(usage -> {
+      metrics.setMaxVcpu(usage.getMaxVcpu());
+      metrics.setMaxRam(usage.getMaxRam());
+    });
+    metrics.setResolution(metricsStore.getPeriodSeconds(resolution));
+    metrics.setPoints(new ArrayList<>(sums.values()));
+    return metrics;
+  }
+
+  // One row read: the usage is rolled up by VmResourceAccounting at every VM change
+  @PreAuthorize("hasRole('PROFESSOR') and @mySecurityChecker.isCourseOwner(#courseId,authentication.principal.username)")
+  @Override public CourseUsageDTO getCourseUsage(@NotNull String courseId) {
+    CourseUsage usage = courseRepository.findUsageById(courseId).orElseThrow(() -> new CourseNotFoundException(courseId));
+    CourseUsageDTO dto = new CourseUsageDTO();
+    dto.setCourseId(usage.getId());
+    dto.setUsedVcpu(usage.getUsedVcpu());
+    dto.setUsedRam(usage.getUsedRam());
+    dto.setUsedDisk(usage.getUsedDisk());
+    dto.setRunningVm(usage.getRunningVm());
+    dto.setTotVm(usage.getTotVm());
+    dto.setMaxVcpu(usage.getMaxVcpu());
+    dto.setMaxRam(usage.getMaxRam());
+    dto.setMaxDisk(usage.getMaxDisk());
+    dto.setMaxRunningVm(usage.getMaxRunningVm());
+    dto.setMaxTotVm(usage.getMaxTotVm());
+    return dto;
+  }
+
+  @PreAuthorize("hasRole('PROFESSOR')")
+  @Override public AdmissionStatsDTO getAdmissionStats() {
+    return admissionQueue.getStats();
+  }
+
+  @PreAuthorize("hasRole('PROFESSOR')")
+  @Override public PlacementStatusDTO getPlacement() {
+    return placementScheduler.getStatus();
+  }
+
+  @PreAuthorize("hasRole('PROFESSOR')")
+  @Override public PlacementPlanDTO simulatePlacement(@NotNull List<@Valid VmDemandDTO> demand) {
+    return placementScheduler.simulate(demand);
+  }
+
+  /**
+   * Any member of the team can watch, see {@link VmConsoleStreamer}
+   */
+  @PreAuthorize("hasRole('STUDENT') and @mySecurityChecker.isVmTeamMember(#vmId,authentication.principal.username)")
+  @Override public SseEmitter streamConsole(@NotNull Long vmId, Integer fps) {
+    if (!vmRepository.existsById(vmId))
+      throw new VmNotFoundException(vmId);
+    idleScheduler.touch(vmId);
+    return consoleStreamer.subscribe(vmId, fps);
+  }
+
+  /**
+   * The VM is in use: its idle time starts again, see VmIdleScheduler
+   */
+  @PreAuthorize("hasRole('STUDENT') and @mySecurityChecker.isVmTeamMember(#vmId,authentication.principal.username)")
+  @Override public void touchVm(@NotNull Long vmId) {
+    if (!vmRepository.existsById(vmId))
+      throw new VmNotFoundException(vmId);
+    idleScheduler.touch(vmId);
   }
 
   @PreAuthorize("hasRole('PROFESSOR') or hasRole('STUDENT')")
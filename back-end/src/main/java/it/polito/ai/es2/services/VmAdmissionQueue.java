@@ -0,0 +1,291 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.dtos.AdmissionStatsDTO;
+import it.polito.ai.es2.dtos.CourseAdmissionDTO;
+import it.polito.ai.es2.repositories.VmStatus;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+
+/**
+ * Admission of the VM starts: at most myprop.vms.admission.course-concurrency starts in progress per course, the
+ * others wait in the queue of their team. Teams are served with deficit round robin, the cost of a start being its
+ * vcpu: a team asking for many (or big) VMs does not delay the first VM of the other teams, and asking again for a
+ * VM already queued keeps its place instead of adding an entry.
+ * <p>Only {@link VmLifecycleEngine} admits and releases: it asks before starting a VM and releases the slot when the
+ * start is over (or the VM is no longer wanted running); the VMs admitted by a release are returned to be started.
+ * In memory: after a restart the reconciliation queues the VMs still to start again.
+ */
+@Component
+@Log
+public class VmAdmissionQueue {
+  @Value("${myprop.vms.admission.course-concurrency:20}")
+  int courseConcurrency;
+  @Value("${myprop.vms.admission.quantum:4}")
+  int quantum; // vcpu granted to a team at each round
+  @Value("${myprop.vms.admission.timeout-ms:300000}")
+  long timeoutMs; // an admitted VM not released in time gives its slot back
+  private final Map<String, CourseQueue> courses = new HashMap<>(); // all guarded by this
+  private final Map<Long, Entry> entries = new HashMap<>();
+  private long admittedCount;
+  private long timedOutCount;
+  private double avgWaitMs;
+  private long maxWaitMs;
+  private double avgStartMs = 10000; // first estimate, then measured
+
+  @Getter
+  @AllArgsConstructor
+  public static class Ticket {
+    private final boolean admitted;
+    private final int position; // 0 if admitted
+    private final long etaMs;
+  }
+
+  /**
+   * Queues a start, or admits it at once if the course has a free slot. Idempotent.
+   */
+  public synchronized Ticket enqueue(Long vmId, Long teamId, String courseId, int vcpu) {
+    Entry entry = entries.get(vmId);
+    if (entry == null) {
+      entry = new Entry(vmId, teamId, courseId, Math.max(1, vcpu));
+      entries.put(vmId, entry);
+      CourseQueue course = courses.computeIfAbsent(courseId, CourseQueue::new);
+      course.add(entry);
+      course.dispatch();
+    }
+    return ticket(entry);
+  }
+
+  /**
+   * Tickets that {@link #enqueue} would give to these starts, enqueued in this order once the stopped VMs have given
+   * back their slots: each start sees the slots and the places in the queue taken by the previous ones. Nothing is
+   * queued
+   *
+   * @return ticket by VM id
+   */
+  public synchronized Map<Long, Ticket> preview(List<VmStatus> starts, Collection<Long> stoppedVmIds) {
+    Map<String, Integer> slots = new HashMap<>(); // per course: slots taken by the previous starts less those freed
+    for (Long vmId : stoppedVmIds) {
+      Entry entry = entries.get(vmId);
+      if (entry != null && entry.admittedAt > 0)
+        slots.merge(entry.courseId, -1, Integer::sum);
+    }
+    Map<Long, Ticket> tickets = new HashMap<>();
+    List<Entry> added = new ArrayList<>();
+    try {
+      for (VmStatus vm : starts) {
+        Entry entry = entries.get(vm.getId());
+        if (entry != null) {
+          tickets.put(vm.getId(), ticket(entry));
+          continue;
+        }
+        CourseQueue course = courses.get(vm.getCourseId());
+        int active = (course == null ? 0 : course.active) + slots.getOrDefault(vm.getCourseId(), 0);
+        if ((course == null || course.teams.isEmpty()) && active < courseConcurrency) {
+          slots.merge(vm.getCourseId(), 1, Integer::sum);
+          tickets.put(vm.getId(), new Ticket(true, 0, 0));
+          continue;
+        }
+        if (course == null)
+          course = courses.computeIfAbsent(vm.getCourseId(), CourseQueue::new);
+        entry = new Entry(vm.getId(), vm.getTeamId(), vm.getCourseId(), Math.max(1, vm.getVcpu()));
+        course.add(entry);
+        added.add(entry);
+        tickets.put(vm.getId(), ticket(entry));
+      }
+    } finally {
+      for (Entry entry : added) // the course goes away with its last entry if it was created here
+        courses.get(entry.courseId).remove(entry);
+    }
+    return tickets;
+  }
+
+  public synchronized boolean isAdmitted(Long vmId) {
+    Entry entry = entries.get(vmId);
+    return entry != null && entry.admittedAt > 0;
+  }
+
+  public synchronized boolean isQueued(Long vmId) {
+    Entry entry = entries.get(vmId);
+    return entry != null && entry.admittedAt == 0;
+  }
+
+  /**
+   * Start over, or no longer wanted: frees the slot (or the place in the queue)
+   *
+   * @return VMs admitted in its place
+   */
+  public synchronized List<Long> release(Long vmId) {
+    Entry entry = entries.remove(vmId);
+    if (entry == null)
+      return List.of();
+    CourseQueue course = courses.get(entry.courseId);
+    if (entry.admittedAt == 0) {
+      course.remove(entry);
+      return List.of();
+    }
+    course.active--;
+    avgStartMs = 0.9 * avgStartMs + 0.1 * (System.currentTimeMillis() - entry.admittedAt);
+    List<Long> admitted = course.dispatch();
+    if (course.active == 0 && course.teams.isEmpty())
+      courses.remove(course.courseId);
+    return admitted;
+  }
+
+  /**
+   * Frees the slots of the admitted VMs never released (start job lost)
+   *
+   * @return VMs admitted in their place
+   */
+  public synchronized List<Long> expire() {
+    long before = System.currentTimeMillis() - timeoutMs;
+    List<Long> expired = new ArrayList<>();
+    for (Entry entry : entries.values())
+      if (entry.admittedAt > 0 && entry.admittedAt < before)
+        expired.add(entry.vmId);
+    List<Long> admitted = new ArrayList<>();
+    for (Long vmId : expired) {
+      timedOutCount++;
+      admitted.addAll(release(vmId));
+    }
+    return admitted;
+  }
+
+  public synchronized AdmissionStatsDTO getStats() {
+    AdmissionStatsDTO stats = new AdmissionStatsDTO();
+    List<CourseAdmissionDTO> courseStats = new ArrayList<>();
+    long now = System.currentTimeMillis();
+    for (CourseQueue course : courses.values()) {
+      CourseAdmissionDTO dto = new CourseAdmissionDTO();
+      dto.setCourseId(course.courseId);
+      dto.setActive(course.active);
+      dto.setLimit(courseConcurrency);
+      dto.setQueued(course.queued);
+      dto.setTeams(course.teams.size());
+      dto.setOldestWaitMs(course.teams.values().stream().mapToLong(t -> now - t.entries.peekFirst().enqueuedAt).max().orElse(0));
+      courseStats.add(dto);
+      stats.setActive(stats.getActive() + course.active);
+      stats.setQueued(stats.getQueued() + course.queued);
+    }
+    stats.setCourses(courseStats);
+    stats.setAdmitted(admittedCount);
+    stats.setTimedOut(timedOutCount);
+    stats.setAvgWaitMs((long) avgWaitMs);
+    stats.setMaxWaitMs(maxWaitMs);
+    stats.setAvgStartMs((long) avgStartMs);
+    return stats;
+  }
+
+  // Position estimated as in a plain round robin: each team ahead serves up to as many VMs as our rank in our team
+  private Ticket ticket(Entry entry) {
+    if (entry.admittedAt > 0)
+      return new Ticket(true, 0, 0);
+    CourseQueue course = courses.get(entry.courseId);
+    int rank = 1;
+    for (Entry e : course.teams.get(entry.teamId).entries) {
+      if (e == entry)
+        break;
+      rank++;
+    }
+    int position = 0;
+    for (TeamQueue team : course.teams.values())
+      position += team.teamId.equals(entry.teamId) ? rank : Math.min(team.entries.size(), rank);
+    long rounds = (position + courseConcurrency - 1) / Math.max(1, courseConcurrency);
+    return new Ticket(false, position, (long) (rounds * avgStartMs));
+  }
+
+  private static class Entry {
+    final Long vmId;
+    final Long teamId;
+    final String courseId;
+    final int cost;
+    final long enqueuedAt = System.currentTimeMillis();
+    long admittedAt; // 0 while queued
+
+    Entry(Long vmId, Long teamId, String courseId, int cost) {
+      this.vmId = vmId;
+      this.teamId = teamId;
+      this.courseId = courseId;
+      this.cost = cost;
+    }
+  }
+
+  private static class TeamQueue {
+    final Long teamId;
+    final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    int deficit;
+
+    TeamQueue(Long teamId) {
+      this.teamId = teamId;
+    }
+  }
+
+  private class CourseQueue {
+    final String courseId;
+    final Map<Long, TeamQueue> teams = new HashMap<>(); // teams with queued VMs
+    final ArrayDeque<TeamQueue> round = new ArrayDeque<>();
+    int active;
+    int queued;
+
+    CourseQueue(String courseId) {
+      this.courseId = courseId;
+    }
+
+    void add(Entry entry) {
+      TeamQueue team = teams.get(entry.teamId);
+      if (team == null) {
+        team = new TeamQueue(entry.teamId);
+        teams.put(entry.teamId, team);
+        round.addLast(team);
+      }
+      team.entries.addLast(entry);
+      queued++;
+    }
+
+    void remove(Entry entry) {
+      TeamQueue team = teams.get(entry.teamId);
+      if (team != null && team.entries.remove(entry)) {
+        queued--;
+        if (team.entries.isEmpty()) {
+          teams.remove(team.teamId);
+          round.remove(team);
+        }
+      }
+      if (active == 0 && teams.isEmpty())
+        courses.remove(courseId);
+    }
+
+    // Deficit round robin: the team at the head is served while its deficit covers the cost of its next VM
+    List<Long> dispatch() {
+      List<Long> admitted = new ArrayList<>();
+      while (active < courseConcurrency && !round.isEmpty()) {
+        TeamQueue team = round.peekFirst();
+        Entry next = team.entries.peekFirst();
+        if (team.deficit < next.cost) {
+          team.deficit += quantum;
+          round.addLast(round.pollFirst());
+          continue;
+        }
+        team.entries.pollFirst();
+        team.deficit -= next.cost;
+        queued--;
+        if (team.entries.isEmpty()) {
+          round.pollFirst();
+          teams.remove(team.teamId);
+        }
+        active++;
+        next.admittedAt = System.currentTimeMillis();
+        long waitMs = next.admittedAt - next.enqueuedAt;
+        avgWaitMs = admittedCount == 0 ? waitMs : 0.9 * avgWaitMs + 0.1 * waitMs;
+        maxWaitMs = Math.max(maxWaitMs, waitMs);
+        admittedCount++;
+        admitted.add(next.vmId);
+      }
+      return admitted;
+    }
+  }
+}
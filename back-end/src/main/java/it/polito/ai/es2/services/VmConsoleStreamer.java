@@ -0,0 +1,248 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.services.interfaces.VmBackend;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Live console of the VMs as server-sent events. The screen is split in square tiles: the first event of a viewer
+ * (keyframe) carries all of them, the next ones only the tiles changed since the last event sent to that viewer, as
+ * json {seq, width, height, tiles: [{x, y, w, h, data}]} with data the base64 jpeg of the tile.
+ * <p>All the viewers of a VM share one session: each tick captures the screen once, encodes each changed tile once
+ * and serializes each distinct event once, so more viewers only cost the writes. Every viewer has its own frame
+ * rate (at most myprop.vms.console.max-fps): the screen is captured only when some viewer is due, and a slower viewer
+ * simply receives the union of the changes it skipped. Nothing is sent while the screen does not change.
+ */
+@Component
+@Log
+public class VmConsoleStreamer {
+  private static final long KEEPALIVE_NANOS = TimeUnit.SECONDS.toNanos(15);
+  @Autowired
+  VmBackend backend;
+  @Value("${myprop.vms.console.max-fps:5}")
+  int maxFps;
+  @Value("${myprop.vms.console.tile-size:64}")
+  int tileSize;
+  @Value("${myprop.vms.console.jpeg-quality:0.75}")
+  float jpegQuality;
+  @Value("${myprop.vms.console.threads:2}")
+  int threads;
+  @Value("${myprop.vms.console.timeout-ms:1800000}")
+  long timeoutMs;
+  private ScheduledThreadPoolExecutor scheduler;
+  private final Map<Long, Session> sessions = new HashMap<>(); // guarded by this
+
+  @PostConstruct
+  public void init() {
+    AtomicInteger count = new AtomicInteger();
+    scheduler = new ScheduledThreadPoolExecutor(threads, r -> {
+      Thread thread = new Thread(r, "vm-console-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    });
+    scheduler.setRemoveOnCancelPolicy(true);
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    scheduler.shutdownNow();
+  }
+
+  /**
+   * @param fps wanted frame rate, null or above the maximum for the maximum
+   */
+  public SseEmitter subscribe(Long vmId, Integer fps) {
+    SseEmitter emitter = new SseEmitter(timeoutMs);
+    Viewer viewer = new Viewer(emitter, fps == null ? maxFps : Math.max(1, Math.min(fps, maxFps)));
+    Session session;
+    synchronized (this) {
+      session = sessions.computeIfAbsent(vmId, Session::new);
+      session.viewers.add(viewer);
+    }
+    emitter.onCompletion(() -> leave(session, viewer));
+    emitter.onTimeout(() -> leave(session, viewer));
+    emitter.onError(e -> leave(session, viewer));
+    return emitter;
+  }
+
+  public synchronized boolean hasViewers(Long vmId) {
+    return sessions.containsKey(vmId);
+  }
+
+  private synchronized void leave(Session session, Viewer viewer) {
+    if (session.viewers.remove(viewer) && session.viewers.isEmpty()) {
+      sessions.remove(session.vmId);
+      session.task.cancel(false);
+    }
+  }
+
+  private class Session {
+    final Long vmId;
+    final List<Viewer> viewers = new CopyOnWriteArrayList<>();
+    final ScheduledFuture<?> task;
+    // Written and read only by the tick, which never runs concurrently with itself
+    final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    final ImageWriteParam writeParam = writer.getDefaultWriteParam();
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    int width;
+    int height;
+    int columns;
+    int[] previous; // pixels of the last captured screen
+    String[] tiles; // json of each tile, as of its last change
+    long[] tileSeqs; // seq of the last change of each tile
+    long seq;
+    long resetSeq; // seq of the last change of screen size: older viewers need a keyframe
+
+    Session(Long vmId) {
+      this.vmId = vmId;
+      writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      writeParam.setCompressionQuality(jpegQuality);
+      task = scheduler.scheduleAtFixedRate(this::tick, 0, 1000_000 / maxFps, TimeUnit.MICROSECONDS);
+    }
+
+    void tick() {
+      try {
+        long now = System.nanoTime();
+        List<Viewer> due = new ArrayList<>();
+        for (Viewer viewer : viewers)
+          if (now - viewer.nextFrame >= 0)
+            due.add(viewer);
+        if (due.isEmpty())
+          return;
+        BufferedImage screen = backend.captureConsole(vmId);
+        if (screen != null)
+          update(screen);
+        Map<Long, String> events = new HashMap<>(); // by last seq of the viewer: viewers in sync share the payload
+        for (Viewer viewer : due) {
+          viewer.nextFrame = now + viewer.intervalNanos;
+          if (tiles == null || viewer.seq == seq) { // nothing captured yet (VM not running) or no change
+            if (now - viewer.lastSent > KEEPALIVE_NANOS) // detects the closed connections
+              send(viewer, SseEmitter.event().comment("keepalive"), now);
+            continue;
+          }
+          boolean keyframe = viewer.seq < resetSeq;
+          String data = events.computeIfAbsent(keyframe ? -1 : viewer.seq, this::event);
+          if (send(viewer, SseEmitter.event().name(keyframe ? "keyframe" : "frame").id(Long.toString(seq))
+              .data(data, MediaType.APPLICATION_JSON), now))
+            viewer.seq = seq;
+        }
+      } catch (IOException | RuntimeException e) { // an exception would cancel the periodic task
+        log.warning("Console of VM " + vmId + ": " + e.getMessage());
+      }
+    }
+
+    private boolean send(Viewer viewer, SseEmitter.SseEventBuilder event, long now) {
+      try {
+        viewer.emitter.send(event);
+        viewer.lastSent = now;
+        return true;
+      } catch (IOException | IllegalStateException e) {
+        viewer.emitter.completeWithError(e);
+        leave(this, viewer);
+        return false;
+      }
+    }
+
+    // Tiles changed since the viewer seq (all for a keyframe)
+    private String event(long since) {
+      StringBuilder sb = new StringBuilder(1024).append("{\"seq\":").append(seq).append(",\"width\":").append(width)
+          .append(",\"height\":").append(height).append(",\"tiles\":[");
+      boolean first = true;
+      for (int i = 0; i < tiles.length; i++)
+        if (tileSeqs[i] > since) {
+          if (!first)
+            sb.append(',');
+          sb.append(tiles[i]);
+          first = false;
+        }
+      return sb.append("]}").toString();
+    }
+
+    private void update(BufferedImage screen) throws IOException {
+      int[] pixels = screen.getType() == BufferedImage.TYPE_INT_RGB
+          ? ((DataBufferInt) screen.getRaster().getDataBuffer()).getData()
+          : screen.getRGB(0, 0, screen.getWidth(), screen.getHeight(), null, 0, screen.getWidth());
+      boolean reset = previous == null || screen.getWidth() != width || screen.getHeight() != height;
+      long next = seq + 1;
+      if (reset) {
+        width = screen.getWidth();
+        height = screen.getHeight();
+        columns = (width + tileSize - 1) / tileSize;
+        int rows = (height + tileSize - 1) / tileSize;
+        tiles = new String[columns * rows];
+        tileSeqs = new long[columns * rows];
+        resetSeq = next;
+      }
+      boolean changed = reset;
+      for (int i = 0; i < tiles.length; i++) {
+        int x = (i % columns) * tileSize;
+        int y = (i / columns) * tileSize;
+        int w = Math.min(tileSize, width - x);
+        int h = Math.min(tileSize, height - y);
+        if (!reset && sameTile(pixels, x, y, w, h))
+          continue;
+        tiles[i] = "{\"x\":" + x + ",\"y\":" + y + ",\"w\":" + w + ",\"h\":" + h + ",\"data\":\""
+            + Base64.getEncoder().encodeToString(encode(screen.getSubimage(x, y, w, h))) + "\"}";
+        tileSeqs[i] = next;
+        changed = true;
+      }
+      previous = pixels;
+      if (changed)
+        seq = next;
+    }
+
+    private boolean sameTile(int[] pixels, int x, int y, int w, int h) {
+      for (int row = y; row < y + h; row++) {
+        int from = row * width + x;
+        if (!Arrays.equals(pixels, from, from + w, previous, from, from + w))
+          return false;
+      }
+      return true;
+    }
+
+    private byte[] encode(BufferedImage tile) throws IOException {
+      outputStream.reset();
+      try (ImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(outputStream)) {
+        writer.setOutput(imageOutputStream);
+        writer.write(null, new IIOImage(tile, null, null), writeParam);
+      }
+      return outputStream.toByteArray();
+    }
+  }
+
+  private static class Viewer {
+    final SseEmitter emitter;
+    final long intervalNanos;
+    long nextFrame = System.nanoTime();
+    long lastSent = System.nanoTime();
+    long seq = -1; // last seq sent
+
+    Viewer(SseEmitter emitter, int fps) {
+      this.emitter = emitter;
+      this.intervalNanos = TimeUnit.SECONDS.toNanos(1) / fps;
+    }
+  }
+}
@@ -0,0 +1,45 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.repositories.VmDiskLayerRepository;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/**
+ * Deletes the disk layers nothing references any more: overlays discarded by a restore, layers of deleted VMs and
+ * snapshots. A layer becomes unreferenced only when its last child is deleted, so a chain is released one level per
+ * statement; each statement deletes at most myprop.vms.snapshots.gc-batch-size rows in its own short transaction.
+ */
+@Component
+@Log
+public class VmDiskLayerCollector {
+  @Autowired
+  VmDiskLayerRepository layerRepository;
+  @Autowired
+  TransactionTemplate transactionTemplate;
+  @Value("${myprop.vms.snapshots.gc-batch-size:500}")
+  int batchSize;
+  @Value("${myprop.vms.snapshots.max-depth:32}")
+  int maxDepth;
+
+  @Scheduled(initialDelayString = "${myprop.vms.snapshots.gc-initial-delay-ms:60000}", fixedDelayString = "${myprop.vms.snapshots.gc-interval-ms:600000}")
+  public int collect() {
+    int total = 0;
+    try {
+      for (int round = 0; round <= maxDepth; round++) {
+        Integer deleted = transactionTemplate.execute(status -> layerRepository.deleteUnreferenced(batchSize));
+        total += deleted == null ? 0 : deleted;
+        if (deleted == null || deleted == 0)
+          break;
+      }
+    } catch (RuntimeException e) {
+      log.warning("Disk layer collection interrupted: " + e.getMessage());
+    }
+    if (total > 0)
+      log.info("Disk layer collection: " + total + " layers deleted");
+    return total;
+  }
+}
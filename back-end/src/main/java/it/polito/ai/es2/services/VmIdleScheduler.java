@@ -0,0 +1,189 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.repositories.CourseRepository;
+import it.polito.ai.es2.repositories.VMRepository;
+import it.polito.ai.es2.repositories.VmStatus;
+import it.polito.ai.es2.services.interfaces.NotificationService;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Stops the running VMs nobody uses, so that their slots (Team.maxRunningVm, course admission, hosts) go back to
+ * other work. The last activity of each running VM is kept in memory: API touches, console viewers and, checked when
+ * the VM is about to be stopped, the load reported by the backend (average vcpu use over the idle window).
+ * <p>Each VM sits once in a priority queue ordered by the time it could become idle; touches only update its last
+ * activity and the entry is moved when it comes out of the queue, so a touch costs no queue operation. The expired
+ * VMs of a check are stopped together (one statement, quotas charged once per team) and their owners notified,
+ * one mail per owner. The idle time is per course (Course.vmIdleMinutes), myprop.vms.idle.default-minutes if 0.
+ */
+@Component
+@Log
+public class VmIdleScheduler {
+  @Autowired
+  VMRepository vmRepository;
+  @Autowired
+  CourseRepository courseRepository;
+  @Autowired
+  VmLifecycleEngine lifecycleEngine;
+  @Autowired
+  VmResourceAccounting resourceAccounting;
+  @Autowired
+  VmConsoleStreamer consoleStreamer;
+  @Autowired
+  VmMetricsStore metricsStore;
+  @Autowired
+  NotificationService notificationService;
+  @Autowired
+  TransactionTemplate transactionTemplate;
+  @Value("${myprop.vms.idle.enabled:true}")
+  boolean enabled;
+  @Value("${myprop.vms.idle.default-minutes:60}")
+  int defaultMinutes;
+  @Value("${myprop.vms.idle.load-threshold:0.1}")
+  double loadThreshold; // fraction of the vcpu of the VM: an average above it is activity
+  @Value("${myprop.vms.idle.notify:true}")
+  boolean notify;
+
+  private final Map<Long, Tracked> tracked = new ConcurrentHashMap<>();
+  private final PriorityQueue<Tracked> queue = new PriorityQueue<>(Comparator.comparingLong(t -> t.deadline)); // guarded by itself
+  private volatile Map<String, Integer> courseMinutes = Map.of();
+
+  /**
+   * Running VM: starts tracking it (activity now) if it is not tracked yet. Called by the lifecycle engine.
+   */
+  public void track(VmStatus vm) {
+    if (tracked.containsKey(vm.getId()))
+      return;
+    Tracked t = new Tracked(vm.getId(), vm.getCourseId(), vm.getVcpu(), System.currentTimeMillis());
+    if (tracked.putIfAbsent(vm.getId(), t) == null)
+      schedule(t, t.lastActivity + timeoutMs(t.courseId));
+  }
+
+  public void untrack(Long vmId) {
+    tracked.remove(vmId); // its queue entry is dropped when it comes out
+  }
+
+  public void touch(Long vmId) {
+    Tracked t = tracked.get(vmId);
+    if (t != null)
+      t.lastActivity = System.currentTimeMillis();
+  }
+
+  /**
+   * @return number of VMs stopped
+   */
+  @Scheduled(initialDelayString = "${myprop.vms.idle.check-interval-ms:60000}", fixedDelayString = "${myprop.vms.idle.check-interval-ms:60000}")
+  public int check() {
+    if (!enabled)
+      return 0;
+    Map<String, Integer> minutes = new HashMap<>();
+    for (Object[] row : courseRepository.findVmIdleMinutes())
+      minutes.put((String) row[0], (Integer) row[1]);
+    courseMinutes = minutes;
+    long now = System.currentTimeMillis();
+    List<Tracked> expired = new ArrayList<>();
+    synchronized (queue) {
+      while (!queue.isEmpty() && queue.peek().deadline <= now)
+        expired.add(queue.poll());
+    }
+    List<Long> idle = new ArrayList<>();
+    for (Tracked t : expired) {
+      if (tracked.get(t.vmId) != t)
+        continue; // stopped or deleted meanwhile
+      long timeout = timeoutMs(t.courseId);
+      if (timeout <= 0) { // never stopped: look again later, the course may change
+        schedule(t, now + 600_000L);
+        continue;
+      }
+      if (consoleStreamer.hasViewers(t.vmId))
+        t.lastActivity = now;
+      else if (t.lastActivity + timeout <= now && metricsStore.averageVcpu(t.vmId, now - timeout) >= loadThreshold * t.vcpu)
+        t.lastActivity = now;
+      if (t.lastActivity + timeout > now)
+        schedule(t, t.lastActivity + timeout);
+      else
+        idle.add(t.vmId);
+    }
+    if (idle.isEmpty())
+      return 0;
+    int stopped = 0;
+    try {
+      stopped = stop(idle);
+    } catch (RuntimeException e) {
+      log.warning("Idle VMs not stopped: " + e.getMessage());
+      for (Long vmId : idle) // next check
+        Optional.ofNullable(tracked.get(vmId)).ifPresent(t -> schedule(t, now));
+    }
+    return stopped;
+  }
+
+  // One transaction: desired state of all the VMs, running counters of their teams. Owners notified after the commit
+  private int stop(List<Long> idle) {
+    Map<String, List<Long>> owners = new HashMap<>();
+    List<Long> stopped = transactionTemplate.execute(status -> {
+      List<VmStatus> vms = vmRepository.findStatusByIdIn(idle).stream()
+          .filter(vm -> vm.isActive() && vm.getTeamId() != null).collect(Collectors.toList());
+      if (vms.isEmpty())
+        return List.<Long>of();
+      for (Map.Entry<Long, List<VmStatus>> team : vms.stream().collect(Collectors.groupingBy(VmStatus::getTeamId)).entrySet())
+        resourceAccounting.charge(team.getKey(), 0, 0, 0, -team.getValue().size(), 0);
+      List<Long> ids = vms.stream().map(VmStatus::getId).collect(Collectors.toList());
+      vmRepository.updateActive(ids, false, VmLifecycleEngine.pendingState(false));
+      lifecycleEngine.converge(ids);
+      if (notify)
+        for (List<Object[]> rows : List.of(vmRepository.findCreatorEmails(ids), vmRepository.findSharedOwnerEmails(ids)))
+          for (Object[] row : rows)
+            owners.computeIfAbsent((String) row[1], email -> new ArrayList<>()).add((Long) row[0]);
+      return ids;
+    });
+    if (stopped == null || stopped.isEmpty())
+      return 0;
+    stopped.forEach(this::untrack);
+    log.info("Idle VMs stopped: " + stopped);
+    owners.forEach((email, vmIds) -> {
+      try {
+        notificationService.sendMessage(email, "[VirtualLabs] Idle VMs stopped",
+            "The VMs " + vmIds + " were not used for a while and have been stopped. You can start them again at any time.");
+      } catch (RuntimeException e) {
+        log.warning("Idle VM notification to " + email + " failed: " + e.getMessage());
+      }
+    });
+    return stopped.size();
+  }
+
+  private void schedule(Tracked t, long deadline) {
+    synchronized (queue) {
+      t.deadline = deadline;
+      queue.add(t);
+    }
+  }
+
+  // <= 0: never
+  private long timeoutMs(String courseId) {
+    int minutes = courseId == null ? 0 : courseMinutes.getOrDefault(courseId, 0);
+    return (minutes == 0 ? defaultMinutes : minutes) * 60_000L;
+  }
+
+  private static class Tracked {
+    final Long vmId;
+    final String courseId;
+    final int vcpu;
+    volatile long lastActivity;
+    long deadline; // guarded by the queue
+
+    Tracked(Long vmId, String courseId, int vcpu, long lastActivity) {
+      this.vmId = vmId;
+      this.courseId = courseId;
+      this.vcpu = vcpu;
+      this.lastActivity = lastActivity;
+    }
+  }
+}
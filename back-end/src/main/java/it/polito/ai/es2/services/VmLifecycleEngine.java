@@ -0,0 +1,247 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.entities.VM;
+import it.polito.ai.es2.repositories.VMRepository;
+import it.polito.ai.es2.repositories.VmStatus;
+import it.polito.ai.es2.services.exceptions.VmException;
+import it.polito.ai.es2.services.interfaces.VmBackend;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the VMs of the {@link VmBackend} towards the state wanted by the users: VM.active is the desired state,
+ * VM.state the actual one. Requests only change the desired state and queue a job, so they return immediately with
+ * the pending state (STARTING, STOPPING, ...); a bounded pool of workers makes the (slow) backend calls.
+ * <p>At most one job per VM runs at a time: a request arriving meanwhile is run again when the current job ends.
+ * A full queue drops the job, the reconciliation loop picks the VM up later. The loop also recreates the VMs lost by
+ * the backend, retries the FAILED ones after a pause and destroys the backend VMs that are no longer in the database.
+ * <p>A VM is started only after {@link VmAdmissionQueue} admitted it (QUEUED until then) and {@link VmPlacementScheduler} found a host for it, and gives the host back when it
+ * stops, fails or is destroyed.
+ */
+@Component
+@Log
+public class VmLifecycleEngine {
+  @Autowired
+  VmBackend backend;
+  @Autowired
+  VMRepository vmRepository;
+  @Autowired
+  TransactionTemplate transactionTemplate;
+  @Autowired
+  VmPlacementScheduler placement;
+  @Autowired
+  VmAdmissionQueue admission;
+  @Autowired
+  VmIdleScheduler idleScheduler;
+  @Value("${myprop.vms.lifecycle.workers:8}")
+  int workers;
+  @Value("${myprop.vms.lifecycle.queue-capacity:1000}")
+  int queueCapacity;
+  @Value("${myprop.vms.lifecycle.failed-retry-ms:60000}")
+  long failedRetryMs;
+  @Value("${myprop.vms.lifecycle.reconcile-chunk-size:500}")
+  int chunkSize;
+  private ThreadPoolExecutor executor;
+  private final Set<Long> inFlight = ConcurrentHashMap.newKeySet();
+  private final Set<Long> rerun = ConcurrentHashMap.newKeySet();
+
+  @PostConstruct
+  public void init() {
+    AtomicInteger count = new AtomicInteger();
+    executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity),
+        r -> {
+          Thread thread = new Thread(r, "vm-lifecycle-" + count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        });
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdownNow(); // interrupted operations are completed by the reconciliation after the restart
+  }
+
+  /**
+   * Queues the convergence of a VM, when the current transaction commits (the worker must see the new desired state)
+   */
+  public void converge(Long vmId) {
+    converge(List.of(vmId));
+  }
+
+  public void converge(Collection<Long> vmIds) {
+    if (TransactionSynchronizationManager.isSynchronizationActive())
+      TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+        @Override
+        public void afterCommit() {
+          vmIds.forEach(VmLifecycleEngine.this::submit);
+        }
+      });
+    else
+      vmIds.forEach(this::submit);
+  }
+
+  /**
+   * Pending state shown to the user until the worker reports the actual one
+   */
+  public static VM.State pendingState(boolean active) {
+    return active ? VM.State.STARTING : VM.State.STOPPING;
+  }
+
+  private void submit(Long vmId) {
+    if (!inFlight.add(vmId)) {
+      rerun.add(vmId);
+      return;
+    }
+    try {
+      executor.execute(() -> run(vmId));
+    } catch (RejectedExecutionException e) {
+      inFlight.remove(vmId);
+      log.warning("VM lifecycle queue full, VM " + vmId + " left to the reconciliation");
+    }
+  }
+
+  private void run(Long vmId) {
+    try {
+      rerun.remove(vmId);
+      convergeNow(vmId);
+    } catch (RuntimeException e) {
+      log.severe("VM " + vmId + " convergence failed: " + e.getMessage());
+    } finally {
+      inFlight.remove(vmId);
+      if (rerun.remove(vmId))
+        submit(vmId);
+    }
+  }
+
+  private void convergeNow(Long vmId) {
+    VmStatus vm = vmRepository.findStatusById(vmId).orElse(null);
+    if (vm == null) { // deleted
+      if (backend.getState(vmId) != null) {
+        backend.destroy(vmId);
+        log.info("VM " + vmId + " destroyed");
+      }
+      placement.release(vmId);
+      idleScheduler.untrack(vmId);
+      converge(admission.release(vmId));
+      return;
+    }
+    if (vm.isActive() && backend.getState(vmId) != VM.State.RUNNING && !admission.isAdmitted(vmId)) {
+      VmAdmissionQueue.Ticket ticket = admission.enqueue(vmId, vm.getTeamId(), vm.getCourseId(), vm.getVcpu());
+      if (!ticket.isAdmitted()) { // started when a slot of the course frees
+        if (vm.getState() != VM.State.QUEUED)
+          setState(vmId, VM.State.QUEUED);
+        return;
+      }
+    }
+    try {
+      if (backend.getState(vmId) == null) {
+        setState(vmId, VM.State.CREATING);
+        backend.create(vmId, vm.getVcpu(), vm.getRam(), vm.getDisk(), vm.getDiskLayerId());
+      }
+      VM.State target = vm.isActive() ? VM.State.RUNNING : VM.State.STOPPED;
+      if (backend.getState(vmId) != target) {
+        setState(vmId, pendingState(vm.isActive()));
+        if (vm.isActive()) {
+          placement.place(vmId, vm.getVcpu(), vm.getRam(), vm.getDisk());
+          backend.start(vmId, vm.getDiskLayerId());
+        } else {
+          backend.stop(vmId);
+          placement.release(vmId);
+        }
+      }
+      VM.State actual = backend.getState(vmId);
+      setState(vmId, actual);
+      if (actual == VM.State.RUNNING)
+        idleScheduler.track(vm);
+      else
+        idleScheduler.untrack(vmId);
+    } catch (VmException e) {
+      log.warning("VM " + vmId + " failed: " + e.getMessage());
+      placement.release(vmId);
+      idleScheduler.untrack(vmId);
+      setState(vmId, VM.State.FAILED);
+    } finally {
+      converge(admission.release(vmId)); // start over (or not wanted): the slot goes to the next VM
+    }
+  }
+
+  // Running VM without a host, e.g. after a restart: accounted where it fits, the backend already runs it anyway.
+  // Idle time counts from its adoption
+  private void adopt(VmStatus vm) {
+    idleScheduler.track(vm);
+    try {
+      placement.place(vm.getId(), vm.getVcpu(), vm.getRam(), vm.getDisk());
+    } catch (VmException e) {
+      log.warning("Running VM " + vm.getId() + " not placed: " + e.getMessage());
+    }
+  }
+
+  private void setState(Long vmId, VM.State state) {
+    transactionTemplate.executeWithoutResult(status -> vmRepository.updateState(vmId, state));
+  }
+
+  /**
+   * Compares, chunk by chunk, the VMs of the database with the ones of the backend and queues the VMs that differ
+   *
+   * @return number of VMs queued
+   */
+  @Scheduled(initialDelayString = "${myprop.vms.lifecycle.reconcile-initial-delay-ms:10000}", fixedDelayString = "${myprop.vms.lifecycle.reconcile-interval-ms:30000}")
+  public int reconcile() {
+    converge(admission.expire());
+    Set<Long> orphans = backend.listVms();
+    long retryBefore = System.currentTimeMillis() - failedRetryMs;
+    int queued = 0;
+    Long after = 0L;
+    List<VmStatus> chunk;
+    do {
+      chunk = vmRepository.findStatusAfter(after, PageRequest.of(0, chunkSize));
+      for (VmStatus vm : chunk) {
+        after = vm.getId();
+        orphans.remove(vm.getId());
+        if (vm.getTeamId() == null) // warm pool shell, created on the backend once claimed
+          continue;
+        if (inFlight.contains(vm.getId()) || admission.isQueued(vm.getId()))
+          continue;
+        VM.State actual = backend.getState(vm.getId());
+        if (actual == (vm.isActive() ? VM.State.RUNNING : VM.State.STOPPED)) {
+          if (vm.getState() != actual) // e.g. worker interrupted by a shutdown after the operation
+            setState(vm.getId(), actual);
+          if (actual == VM.State.RUNNING)
+            adopt(vm);
+          continue;
+        }
+        boolean failed = actual == VM.State.FAILED || vm.getState() == VM.State.FAILED;
+        if (failed && vm.getStateChangedDate() != null && vm.getStateChangedDate().getTime() > retryBefore)
+          continue;
+        submit(vm.getId());
+        queued++;
+      }
+    } while (chunk.size() == chunkSize);
+    for (Long vmId : orphans) {
+      submit(vmId);
+      queued++;
+    }
+    if (queued > 0)
+      log.info("VM reconciliation: " + queued + " VMs queued, " + orphans.size() + " orphans");
+    return queued;
+  }
+}
@@ -0,0 +1,588 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.dtos.MetricPointDTO;
+import it.polito.ai.es2.dtos.VmMetricsDTO.Resolution;
+import it.polito.ai.es2.entities.VmMetricsBlock;
+import it.polito.ai.es2.repositories.VmMetricsBlockRepository;
+import it.polito.ai.es2.services.interfaces.VmBackend;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+
+/**
+ * Resource usage of the VMs, sampled from the {@link VmBackend} every myprop.vms.metrics.sample-interval-ms.
+ * <p>Everything lives in flat primitive arrays indexed by a slot per VM (the VM id to slot map is an open addressing
+ * long to int table), so recording a sample allocates nothing (a sampling tick only the iterator of the backend, whatever
+ * the number of VMs): the sample goes into a ring buffer of the last
+ * ring-size raw samples and is added to the current minute (count, sums and maxima) and the current hour. Minutes
+ * are grouped in blocks of an hour and hours in blocks of a day; each slot has two blocks per resolution (current and
+ * previous), and a background flush writes the changed blocks as {@link VmMetricsBlock} rows with one batch upsert.
+ * A block started in memory while a row may already exist (after a restart, or for a slot reused by an evicted VM) is
+ * merged with it on its first flush: the persisted periods without samples in memory are kept. Blocks stay dirty until
+ * the write succeeds, and a slot is evicted only once all its blocks are written.
+ * <p>Queries read the raw samples from memory, the rollups from the database with the unflushed blocks on top.
+ * Slots of VMs not sampled for idle-eviction-ms are reused. Rows older than retention-days are purged in batches, with
+ * those of deleted VMs that escaped {@link #delete(Collection)}.
+ */
+@Component
+@Log
+public class VmMetricsStore {
+  private static final int FIELDS = 5; // count, sum vcpu, max vcpu, sum ram, max ram
+  private static final int MINUTES = 60;
+  private static final int HOURS = 24;
+  private static final int MERGE_BATCH = 500; // VMs per query reading the blocks to merge
+  @Autowired
+  VmBackend backend;
+  @Autowired
+  VmMetricsBlockRepository blockRepository;
+  @Autowired
+  JdbcTemplate jdbcTemplate;
+  @Autowired
+  TransactionTemplate transactionTemplate;
+  @Value("${myprop.vms.metrics.sample-interval-ms:5000}")
+  long sampleIntervalMs;
+  @Value("${myprop.vms.metrics.ring-size:720}")
+  int ringSize;
+  @Value("${myprop.vms.metrics.initial-vms:1024}")
+  int initialVms;
+  @Value("${myprop.vms.metrics.idle-eviction-ms:7200000}")
+  long idleEvictionMs;
+  @Value("${myprop.vms.metrics.retention-days:30}")
+  int retentionDays;
+  @Value("${myprop.vms.metrics.purge-batch-size:1000}")
+  int purgeBatchSize;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  private final double[] usage = new double[2]; // sampler only
+  private long sampleTime; // sampler only
+  private final Consumer<Long> sampler = vmId -> {
+    if (backend.readUsage(vmId, usage))
+      record(vmId, sampleTime, (float) usage[0], (float) usage[1]);
+  };
+  private LongIntMap slots;
+  private int capacity;
+  private int[] freeSlots; // stack
+  private int freeCount;
+  private long[] slotVm; // 0: free
+  private long[] lastSample;
+  private long[] rawTime;
+  private float[] rawVcpu;
+  private float[] rawRam;
+  private int[] rawHead;
+  private int[] rawCount;
+  private final Rollup minutes = new Rollup(60, MINUTES);
+  private final Rollup hours = new Rollup(3600, HOURS);
+
+  @PostConstruct
+  public void init() {
+    slots = new LongIntMap(initialVms * 2);
+    capacity = 0;
+    grow(Math.max(1, initialVms));
+  }
+
+  @Scheduled(initialDelayString = "${myprop.vms.metrics.sample-interval-ms:5000}", fixedRateString = "${myprop.vms.metrics.sample-interval-ms:5000}")
+  public void sample() {
+    sampleTime = System.currentTimeMillis();
+    backend.forEachVm(sampler);
+  }
+
+  public void record(long vmId, long millis, float vcpu, float ram) {
+    lock.lock();
+    try {
+      int slot = slots.get(vmId);
+      if (slot < 0)
+        slot = allocate(vmId);
+      int i = slot * ringSize + rawHead[slot];
+      rawTime[i] = millis;
+      rawVcpu[i] = vcpu;
+      rawRam[i] = ram;
+      rawHead[slot] = (rawHead[slot] + 1) % ringSize;
+      if (rawCount[slot] < ringSize)
+        rawCount[slot]++;
+      lastSample[slot] = millis;
+      long second = Math.floorDiv(millis, 1000);
+      minutes.add(slot, second, vcpu, ram);
+      hours.add(slot, second, vcpu, ram);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Scheduled(initialDelayString = "${myprop.vms.metrics.flush-interval-ms:60000}", fixedDelayString = "${myprop.vms.metrics.flush-interval-ms:60000}")
+  @PreDestroy
+  public void flush() {
+    List<BlockRow> rows = new ArrayList<>();
+    lock.lock();
+    try {
+      long evictBefore = System.currentTimeMillis() - idleEvictionMs;
+      for (int slot = 0; slot < capacity; slot++) {
+        if (slotVm[slot] == 0)
+          continue;
+        if (lastSample[slot] < evictBefore && !minutes.isDirty(slot) && !hours.isDirty(slot)) { // all written
+          slots.remove(slotVm[slot]);
+          slotVm[slot] = 0;
+          freeSlots[freeCount++] = slot;
+          continue;
+        }
+        minutes.dirtyBlocks(slot, slotVm[slot], rows);
+        hours.dirtyBlocks(slot, slotVm[slot], rows);
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (rows.isEmpty())
+      return;
+    boolean written = false;
+    try {
+      mergePersisted(rows);
+      List<Object[]> params = new ArrayList<>(rows.size());
+      for (BlockRow row : rows)
+        params.add(new Object[]{row.vmId, row.rollup.periodSeconds, row.start, row.data});
+      jdbcTemplate.batchUpdate("INSERT INTO vm_metrics_block (vm_id, resolution, period_start, data) VALUES (?, ?, ?, ?) " +
+          "ON DUPLICATE KEY UPDATE data = VALUES(data)", params);
+      written = true;
+    } catch (RuntimeException e) {
+      log.warning("VM metrics flush failed, " + rows.size() + " blocks kept for the next flush: " + e.getMessage());
+    } finally {
+      settle(rows, written);
+    }
+  }
+
+  // Periods persisted before the block was started in memory, and still without samples in it, are kept
+  private void mergePersisted(List<BlockRow> rows) {
+    for (Rollup rollup : List.of(minutes, hours)) {
+      Map<Long, List<BlockRow>> byVm = new LinkedHashMap<>();
+      long from = Long.MAX_VALUE, to = Long.MIN_VALUE;
+      for (BlockRow row : rows)
+        if (row.merge && row.rollup == rollup) {
+          byVm.computeIfAbsent(row.vmId, id -> new ArrayList<>(2)).add(row);
+          from = Math.min(from, row.start);
+          to = Math.max(to, row.start);
+        }
+      List<Long> vmIds = new ArrayList<>(byVm.keySet());
+      for (int i = 0; i < vmIds.size(); i += MERGE_BATCH)
+        for (VmMetricsBlock block : blockRepository.findBlocks(vmIds.subList(i, Math.min(vmIds.size(), i + MERGE_BATCH)),
+            rollup.periodSeconds, from, to))
+          for (BlockRow row : byVm.get(block.getVmId()))
+            if (row.start == block.getPeriodStart())
+              for (int p = 0; p + 16 <= Math.min(row.data.length, block.getData().length); p += 16)
+                if (Float.isNaN(ByteBuffer.wrap(row.data).getFloat(p)))
+                  System.arraycopy(block.getData(), p, row.data, p, 16);
+    }
+  }
+
+  // After the write the persisted periods of a merged block are taken in memory, so the next flushes need not read
+  // it again; if the write failed the blocks are dirty again. Blocks reused meanwhile are left alone
+  private void settle(List<BlockRow> rows, boolean written) {
+    lock.lock();
+    try {
+      for (BlockRow row : rows) {
+        if (slotVm[row.block / 2] != row.vmId || row.rollup.starts[row.block] != row.start)
+          continue;
+        if (!written)
+          row.rollup.dirty[row.block] = true;
+        else if (row.merge)
+          row.rollup.absorb(row.block, row.data);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Drops the samples and the rows of deleted VMs, in the transaction that deletes them. A sample taken before the
+   * backend destroys the VM may still be flushed: {@link #purge()} removes it later
+   */
+  public void delete(Collection<Long> vmIds) {
+    if (vmIds.isEmpty())
+      return;
+    lock.lock();
+    try {
+      for (Long vmId : vmIds) {
+        int slot = slots.get(vmId);
+        if (slot >= 0) {
+          slots.remove(vmId);
+          slotVm[slot] = 0;
+          freeSlots[freeCount++] = slot;
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+    blockRepository.deleteByVmIdIn(vmIds);
+  }
+
+  /**
+   * Deletes the rows older than the retention and those of deleted VMs, at most purge-batch-size per statement, each
+   * in its own short transaction
+   *
+   * @return number of rows deleted
+   */
+  @Scheduled(initialDelayString = "${myprop.vms.metrics.purge-initial-delay-ms:120000}", fixedDelayString = "${myprop.vms.metrics.purge-interval-ms:3600000}")
+  public int purge() {
+    long before = System.currentTimeMillis() / 1000 - retentionDays * 86400L;
+    int total = 0;
+    try {
+      total += purge(() -> blockRepository.deleteExpired(before, purgeBatchSize));
+      total += purge(() -> blockRepository.deleteOrphans(purgeBatchSize));
+    } catch (RuntimeException e) {
+      log.warning("VM metrics purge interrupted: " + e.getMessage());
+    }
+    if (total > 0)
+      log.info("VM metrics purge: " + total + " blocks deleted");
+    return total;
+  }
+
+  private int purge(IntSupplier statement) {
+    int total = 0;
+    Integer deleted;
+    do {
+      deleted = transactionTemplate.execute(status -> statement.getAsInt());
+      total += deleted == null ? 0 : deleted;
+    } while (deleted != null && deleted == purgeBatchSize);
+    return total;
+  }
+
+  /**
+   * Points of the VMs with samples in [from, to] (epoch millis), by VM id and in chronological order
+   */
+  public Map<Long, List<MetricPointDTO>> query(Collection<Long> vmIds, Resolution resolution, long from, long to) {
+    Map<Long, List<MetricPointDTO>> series = new HashMap<>();
+    if (vmIds.isEmpty())
+      return series;
+    if (resolution == Resolution.RAW) {
+      lock.lock();
+      try {
+        for (Long vmId : vmIds)
+          series.put(vmId, raw(vmId, from, to));
+      } finally {
+        lock.unlock();
+      }
+      return series;
+    }
+    Rollup rollup = resolution == Resolution.MINUTE ? minutes : hours;
+    long fromSecond = Math.floorDiv(from, 1000);
+    long toSecond = Math.floorDiv(to, 1000);
+    Map<Long, TreeMap<Long, MetricPointDTO>> points = new HashMap<>();
+    for (VmMetricsBlock block : blockRepository.findBlocks(vmIds, rollup.periodSeconds,
+        rollup.blockStart(fromSecond), toSecond))
+      rollup.decode(block.getPeriodStart(), ByteBuffer.wrap(block.getData()), fromSecond, toSecond,
+          points.computeIfAbsent(block.getVmId(), id -> new TreeMap<>()));
+    lock.lock();
+    try { // unflushed blocks replace the persisted ones
+      for (Long vmId : vmIds) {
+        int slot = slots.get(vmId);
+        if (slot >= 0)
+          rollup.decode(slot, fromSecond, toSecond, points.computeIfAbsent(vmId, id -> new TreeMap<>()));
+      }
+    } finally {
+      lock.unlock();
+    }
+    for (Long vmId : vmIds)
+      series.put(vmId, new ArrayList<>(points.getOrDefault(vmId, new TreeMap<>()).values()));
+    return series;
+  }
+
+  /**
+   * Average vcpu used since the given time (epoch millis), from the raw ring: at most its window
+   *
+   * @return NaN if there are no samples
+   */
+  public double averageVcpu(long vmId, long since) {
+    lock.lock();
+    try {
+      int slot = slots.get(vmId);
+      if (slot < 0)
+        return Double.NaN;
+      double sum = 0;
+      int count = 0;
+      for (int k = 0; k < rawCount[slot]; k++) {
+        int i = slot * ringSize + Math.floorMod(rawHead[slot] - 1 - k, ringSize); // newest first
+        if (rawTime[i] < since)
+          break;
+        sum += rawVcpu[i];
+        count++;
+      }
+      return count == 0 ? Double.NaN : sum / count;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getPeriodSeconds(Resolution resolution) {
+    return resolution == Resolution.RAW ? (int) (sampleIntervalMs / 1000) : resolution == Resolution.MINUTE ? 60 : 3600;
+  }
+
+  /**
+   * Default time window of a query: the raw ring, the last hour of minutes or the last day of hours
+   */
+  public long getDefaultWindowMs(Resolution resolution) {
+    return resolution == Resolution.RAW ? ringSize * sampleIntervalMs : resolution == Resolution.MINUTE ? 3600_000L : 86400_000L;
+  }
+
+  private List<MetricPointDTO> raw(Long vmId, long from, long to) {
+    List<MetricPointDTO> points = new ArrayList<>();
+    int slot = slots.get(vmId);
+    if (slot < 0)
+      return points;
+    for (int n = rawCount[slot], k = 0; k < n; k++) { // oldest first
+      int i = slot * ringSize + Math.floorMod(rawHead[slot] - n + k, ringSize);
+      if (rawTime[i] >= from && rawTime[i] <= to)
+        points.add(new MetricPointDTO(rawTime[i], rawVcpu[i], rawVcpu[i], rawRam[i], rawRam[i]));
+    }
+    return points;
+  }
+
+  private int allocate(long vmId) {
+    if (freeCount == 0)
+      grow(capacity * 2);
+    int slot = freeSlots[--freeCount];
+    slotVm[slot] = vmId;
+    rawHead[slot] = 0;
+    rawCount[slot] = 0;
+    minutes.clear(slot);
+    hours.clear(slot);
+    slots.put(vmId, slot);
+    return slot;
+  }
+
+  // The only allocation of the ingest path, amortized: capacity doubles
+  private void grow(int newCapacity) {
+    slotVm = Arrays.copyOf(slotVm == null ? new long[0] : slotVm, newCapacity);
+    lastSample = Arrays.copyOf(lastSample == null ? new long[0] : lastSample, newCapacity);
+    rawTime = Arrays.copyOf(rawTime == null ? new long[0] : rawTime, newCapacity * ringSize);
+    rawVcpu = Arrays.copyOf(rawVcpu == null ? new float[0] : rawVcpu, newCapacity * ringSize);
+    rawRam = Arrays.copyOf(rawRam == null ? new float[0] : rawRam, newCapacity * ringSize);
+    rawHead = Arrays.copyOf(rawHead == null ? new int[0] : rawHead, newCapacity);
+    rawCount = Arrays.copyOf(rawCount == null ? new int[0] : rawCount, newCapacity);
+    minutes.grow(newCapacity);
+    hours.grow(newCapacity);
+    freeSlots = Arrays.copyOf(freeSlots == null ? new int[0] : freeSlots, newCapacity);
+    for (int slot = newCapacity - 1; slot >= capacity; slot--)
+      freeSlots[freeCount++] = slot;
+    capacity = newCapacity;
+  }
+
+  /**
+   * Periods of one resolution, in blocks: two blocks per slot, chosen by the parity of the block number
+   */
+  private static class Rollup {
+    final int periodSeconds;
+    final int periods;
+    final int blockSeconds;
+    long[] starts = new long[0]; // epoch seconds of each block, per slot * 2
+    float[] data = new float[0]; // FIELDS per period
+    boolean[] dirty = new boolean[0];
+    boolean[] merged = new boolean[0]; // the persisted row, if any, is part of the last flush
+
+    Rollup(int periodSeconds, int periods) {
+      this.periodSeconds = periodSeconds;
+      this.periods = periods;
+      this.blockSeconds = periodSeconds * periods;
+    }
+
+    long blockStart(long second) {
+      return second - Math.floorMod(second, blockSeconds);
+    }
+
+    void add(int slot, long second, float vcpu, float ram) {
+      long blockStart = blockStart(second);
+      int block = slot * 2 + (int) ((blockStart / blockSeconds) & 1);
+      int base = block * periods * FIELDS;
+      if (starts[block] != blockStart) { // two blocks ago: already flushed
+        Arrays.fill(data, base, base + periods * FIELDS, 0);
+        starts[block] = blockStart;
+        merged[block] = false;
+      }
+      int p = base + (int) ((second - blockStart) / periodSeconds) * FIELDS;
+      data[p]++;
+      data[p + 1] += vcpu;
+      data[p + 2] = Math.max(data[p + 2], vcpu);
+      data[p + 3] += ram;
+      data[p + 4] = Math.max(data[p + 4], ram);
+      dirty[block] = true;
+    }
+
+    void clear(int slot) {
+      for (int block = slot * 2; block < slot * 2 + 2; block++) {
+        starts[block] = 0;
+        dirty[block] = false;
+        merged[block] = false;
+      }
+    }
+
+    // Periods of an encoded block without samples in memory, each taken as a single sample with the stored averages
+    void absorb(int block, byte[] encoded) {
+      ByteBuffer buffer = ByteBuffer.wrap(encoded);
+      for (int period = 0; period < periods && buffer.remaining() >= 16; period++) {
+        float avgVcpu = buffer.getFloat(), maxVcpu = buffer.getFloat(), avgRam = buffer.getFloat(), maxRam = buffer.getFloat();
+        int p = (block * periods + period) * FIELDS;
+        if (data[p] == 0 && !Float.isNaN(avgVcpu)) {
+          data[p] = 1;
+          data[p + 1] = avgVcpu;
+          data[p + 2] = maxVcpu;
+          data[p + 3] = avgRam;
+          data[p + 4] = maxRam;
+        }
+      }
+      merged[block] = true;
+    }
+
+    boolean isDirty(int slot) {
+      return dirty[slot * 2] || dirty[slot * 2 + 1];
+    }
+
+    void grow(int capacity) {
+      starts = Arrays.copyOf(starts, capacity * 2);
+      data = Arrays.copyOf(data, capacity * 2 * periods * FIELDS);
+      dirty = Arrays.copyOf(dirty, capacity * 2);
+      merged = Arrays.copyOf(merged, capacity * 2);
+    }
+
+    // Changed blocks of a slot, marked clean until the write fails (see settle)
+    void dirtyBlocks(int slot, long vmId, List<BlockRow> rows) {
+      for (int block = slot * 2; block < slot * 2 + 2; block++)
+        if (dirty[block]) {
+          ByteBuffer buffer = ByteBuffer.allocate(periods * 16);
+          for (int p = block * periods * FIELDS, end = p + periods * FIELDS; p < end; p += FIELDS) {
+            float count = data[p];
+            buffer.putFloat(count == 0 ? Float.NaN : data[p + 1] / count).putFloat(count == 0 ? Float.NaN : data[p + 2])
+                .putFloat(count == 0 ? Float.NaN : data[p + 3] / count).putFloat(count == 0 ? Float.NaN : data[p + 4]);
+          }
+          rows.add(new BlockRow(this, block, vmId, starts[block], buffer.array(), !merged[block]));
+          dirty[block] = false;
+        }
+    }
+
+    // Persisted block
+    void decode(long blockStart, ByteBuffer buffer, long from, long to, Map<Long, MetricPointDTO> points) {
+      for (int period = 0; period < periods; period++) {
+        float avgVcpu = buffer.getFloat(), maxVcpu = buffer.getFloat(), avgRam = buffer.getFloat(), maxRam = buffer.getFloat();
+        long start = blockStart + (long) period * periodSeconds;
+        if (!Float.isNaN(avgVcpu) && start + periodSeconds > from && start <= to)
+          points.put(start, new MetricPointDTO(start * 1000, avgVcpu, maxVcpu, avgRam, maxRam));
+      }
+    }
+
+    // In memory blocks of a slot
+    void decode(int slot, long from, long to, Map<Long, MetricPointDTO> points) {
+      for (int block = slot * 2; block < slot * 2 + 2; block++) {
+        if (starts[block] == 0)
+          continue;
+        for (int period = 0; period < periods; period++) {
+          int p = (block * periods + period) * FIELDS;
+          long start = starts[block] + (long) period * periodSeconds;
+          if (data[p] > 0 && start + periodSeconds > from && start <= to)
+            points.put(start, new MetricPointDTO(start * 1000, data[p + 1] / data[p], data[p + 2], data[p + 3] / data[p], data[p + 4]));
+        }
+      }
+    }
+  }
+
+  // Encoded block of a flush (vm_id, resolution, period_start, data), with the block it comes from
+  private static class BlockRow {
+    final Rollup rollup;
+    final int block;
+    final long vmId;
+    final long start;
+    final byte[] data;
+    final boolean merge; // a persisted row may hold periods missing here
+
+    BlockRow(Rollup rollup, int block, long vmId, long start, byte[] data, boolean merge) {
+      this.rollup = rollup;
+      this.block = block;
+      this.vmId = vmId;
+      this.start = start;
+      this.data = data;
+      this.merge = merge;
+    }
+  }
+
+  /**
+   * Open addressing map from a positive long to an int, linear probing with backward shift deletion: no boxing, no
+   * entry objects
+   */
+  private static class LongIntMap {
+    private long[] keys; // 0: empty
+    private int[] values;
+    private int size;
+    private int mask;
+
+    LongIntMap(int expected) {
+      int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) * 2;
+      keys = new long[capacity];
+      values = new int[capacity];
+      mask = capacity - 1;
+    }
+
+    int get(long key) {
+      for (int i = index(key); ; i = (i + 1) & mask) {
+        if (keys[i] == key)
+          return values[i];
+        if (keys[i] == 0)
+          return -1;
+      }
+    }
+
+    void put(long key, int value) {
+      if ((size + 1) * 2 > keys.length)
+        rehash(keys.length * 2);
+      int i = index(key);
+      while (keys[i] != 0 && keys[i] != key)
+        i = (i + 1) & mask;
+      if (keys[i] == 0)
+        size++;
+      keys[i] = key;
+      values[i] = value;
+    }
+
+    void remove(long key) {
+      int i = index(key);
+      while (keys[i] != key) {
+        if (keys[i] == 0)
+          return;
+        i = (i + 1) & mask;
+      }
+      keys[i] = 0;
+      size--;
+      for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) { // move back the entries that probed past i
+        int home = index(keys[j]);
+        if (((j - home) & mask) >= ((j - i) & mask)) {
+          keys[i] = keys[j];
+          values[i] = values[j];
+          keys[j] = 0;
+          i = j;
+        }
+      }
+    }
+
+    private void rehash(int capacity) {
+      long[] oldKeys = keys;
+      int[] oldValues = values;
+      keys = new long[capacity];
+      values = new int[capacity];
+      mask = capacity - 1;
+      size = 0;
+      for (int i = 0; i < oldKeys.length; i++)
+        if (oldKeys[i] != 0)
+          put(oldKeys[i], oldValues[i]);
+    }
+
+    private int index(long key) {
+      long hash = key * 0x9E3779B97F4A7C15L;
+      return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package it.polito.ai.es2.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.polito.ai.es2.dtos.VmModelDTO;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parsed course VM models, keyed by Course.vmModelPath. A path is resolved in the models directory and, if not there,
+ * on the classpath; missing files are cached too, so a lookup never does I/O after the first one.
+ * <p>Models are deduplicated by content hash. A watcher thread reloads the files of the directory when they change:
+ * a file that does not parse (e.g. still being written) keeps the previous model, a deleted one falls back to the
+ * classpath.
+ */
+@Component
+@Log
+public class VmModelRegistry {
+  @Value("${myprop.vms.models.dir:vm-models}")
+  private String directory;
+  @Autowired
+  private ObjectMapper objectMapper;
+
+  private final Map<String, Entry> byPath = new ConcurrentHashMap<>();
+  private final Map<String, VmModelDTO> byHash = new ConcurrentHashMap<>();
+  private final Set<Path> watchedDirs = ConcurrentHashMap.newKeySet();
+  private Path root;
+  private WatchService watchService;
+  private Thread watcher;
+
+  @PostConstruct
+  public void init() {
+    root = Paths.get(directory).toAbsolutePath().normalize();
+    try {
+      watchService = root.getFileSystem().newWatchService();
+    } catch (IOException | UnsupportedOperationException e) {
+      log.warning("VM model hot reload not available: " + e);
+      return;
+    }
+    watcher = new Thread(this::watch, "vm-model-watcher");
+    watcher.setDaemon(true);
+    watcher.start();
+    log.info("VM models in " + root + " and on the classpath");
+  }
+
+  /**
+   * @return the model of the path, null if the path is blank or no file (or no valid file) exists
+   */
+  public VmModelDTO get(String path) {
+    if (path == null || path.isBlank())
+      return null;
+    Entry entry = byPath.get(path);
+    if (entry == null)
+      entry = byPath.computeIfAbsent(path, p -> load(p, null));
+    return entry.model;
+  }
+
+  private Entry load(String path, Entry previous) {
+    byte[] content;
+    try {
+      content = read(path);
+    } catch (IOException e) {
+      log.warning("VM model " + path + " not readable: " + e);
+      return previous != null ? previous : new Entry(null, null);
+    }
+    if (content == null)
+      return new Entry(null, null);
+    String hash = sha256(content);
+    if (previous != null && hash.equals(previous.hash))
+      return previous;
+    VmModelDTO model = byHash.get(hash);
+    if (model == null) {
+      try {
+        model = objectMapper.readValue(content, VmModelDTO.class);
+      } catch (IOException e) {
+        log.warning("VM model " + path + " not valid: " + e.getMessage());
+        return previous != null ? previous : new Entry(null, null);
+      }
+      VmModelDTO parsed = byHash.putIfAbsent(hash, model);
+      if (parsed != null)
+        model = parsed;
+    }
+    return new Entry(model, hash);
+  }
+
+  // Null if the file does not exist. Paths escaping the directory or the classpath root are not resolved
+  private byte[] read(String path) throws IOException {
+    Path file = file(path);
+    if (file != null && Files.isRegularFile(file)) {
+      watch(file.getParent());
+      return Files.readAllBytes(file);
+    }
+    if (file != null)
+      watch(file.getParent()); // to notice when it is created
+    if (path.contains(".."))
+      return null;
+    ClassPathResource resource = new ClassPathResource(path);
+    if (!resource.exists())
+      return null;
+    try (InputStream inputStream = resource.getInputStream()) {
+      return inputStream.readAllBytes();
+    }
+  }
+
+  private Path file(String path) {
+    try {
+      Path file = root.resolve(path).normalize();
+      return file.startsWith(root) && !file.equals(root) ? file : null;
+    } catch (InvalidPathException e) {
+      return null;
+    }
+  }
+
+  private void watch(Path dir) {
+    if (watchService == null || !Files.isDirectory(dir) || !watchedDirs.add(dir))
+      return;
+    try {
+      dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+          StandardWatchEventKinds.ENTRY_DELETE);
+    } catch (IOException e) {
+      watchedDirs.remove(dir);
+      log.warning("Cannot watch " + dir + ": " + e);
+    }
+  }
+
+  private void watch() {
+    while (!Thread.currentThread().isInterrupted()) {
+      WatchKey key;
+      try {
+        key = watchService.take();
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      Path dir = (Path) key.watchable();
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+          byPath.keySet().forEach(this::reload);
+        else {
+          Path changed = dir.resolve((Path) event.context());
+          byPath.keySet().stream().filter(path -> changed.equals(file(path))).forEach(this::reload);
+        }
+      }
+      if (!key.reset())
+        watchedDirs.remove(dir);
+    }
+  }
+
+  private void reload(String path) {
+    byPath.computeIfPresent(path, (p, previous) -> {
+      Path file = file(p);
+      Entry entry = load(p, file != null && Files.exists(file) ? previous : null);
+      if (entry != previous)
+        log.info("VM model " + p + " reloaded");
+      return entry;
+    });
+  }
+
+  private static String sha256(byte[] content) {
+    try {
+      return new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(content)).toString(16);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @PreDestroy
+  public void close() throws IOException {
+    if (watcher != null)
+      watcher.interrupt();
+    if (watchService != null)
+      watchService.close();
+  }
+
+  private static class Entry {
+    final VmModelDTO model;
+    final String hash;
+
+    Entry(VmModelDTO model, String hash) {
+      this.model = model;
+      this.hash = hash;
+    }
+  }
+}
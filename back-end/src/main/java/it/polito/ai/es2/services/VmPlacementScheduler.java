@@ -0,0 +1,308 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.dtos.*;
+import it.polito.ai.es2.services.exceptions.VmException;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+
+/**
+ * Assigns the running VMs to the physical hosts of myprop.vms.placement.hosts (name:vcpu:ram:disk, comma separated).
+ * <p>Free capacity is kept in memory: hosts are indexed by free vcpu, so a placement is a tree lookup of the hosts
+ * with enough vcpu, in ascending order, and the first one with enough ram and disk wins (best fit on vcpu).
+ * Nothing is read from the database: after a restart the running VMs are placed again by the reconciliation of
+ * {@link VmLifecycleEngine}.
+ * <p>{@link #simulate(List)} packs a whole demand with first-fit-decreasing on an empty copy of the pool, to check
+ * whether the peak of a lab fits the cluster.
+ */
+@Component
+@Log
+public class VmPlacementScheduler {
+  @Value("${myprop.vms.placement.hosts:host-1:64:256:4096,host-2:64:256:4096,host-3:64:256:4096,host-4:64:256:4096}")
+  String[] hostSpecs;
+  @Value("${myprop.vms.placement.rebalance-threshold:0.5}")
+  double rebalanceThreshold;
+  @Value("${myprop.vms.placement.max-hints:20}")
+  int maxHints;
+  @Value("${myprop.vms.placement.max-simulated-vms:10000}")
+  int maxSimulatedVms;
+  private HostIndex index; // guarded by this
+  private final Map<Long, Placement> placements = new HashMap<>();
+
+  @PostConstruct
+  public void init() {
+    index = new HostIndex(hostSpecs);
+    log.info("VM placement over " + hostSpecs.length + " hosts: " + index.totalVcpu + " vcpu, " + index.totalRam + " ram");
+  }
+
+  /**
+   * Reserves a host for a VM being started. Idempotent: a VM already placed keeps its host.
+   *
+   * @return name of the host
+   * @throws VmException if no host has enough free resources
+   */
+  public synchronized String place(Long vmId, int vcpu, int ram, int disk) {
+    Placement placement = placements.get(vmId);
+    if (placement != null)
+      return index.names[placement.host];
+    int host = index.bestFit(vcpu, ram, disk);
+    if (host < 0)
+      throw new VmException("no host with " + vcpu + " vcpu, " + ram + " ram and " + disk + " disk free");
+    index.allocate(host, vcpu, ram, disk);
+    placements.put(vmId, new Placement(host, vcpu, ram, disk));
+    return index.names[host];
+  }
+
+  public synchronized void release(Long vmId) {
+    Placement placement = placements.remove(vmId);
+    if (placement != null)
+      index.free(placement.host, placement.vcpu, placement.ram, placement.disk);
+  }
+
+  public synchronized String getHost(Long vmId) {
+    Placement placement = placements.get(vmId);
+    return placement == null ? null : index.names[placement.host];
+  }
+
+  public synchronized PlacementStatusDTO getStatus() {
+    PlacementStatusDTO status = new PlacementStatusDTO();
+    status.setHosts(index.toDTOs());
+    status.setPlacedVms(placements.size());
+    status.setFragmentation(index.fragmentation());
+    status.setHints(status.getFragmentation() >= rebalanceThreshold ? rebalanceHints() : new ArrayList<>());
+    return status;
+  }
+
+  /**
+   * First-fit-decreasing packing of the demand on the empty pool: the current placements are not touched
+   */
+  public PlacementPlanDTO simulate(List<VmDemandDTO> demand) {
+    long total = demand.stream().mapToLong(VmDemandDTO::getCount).sum();
+    if (total > maxSimulatedVms) // checked before allocating, the sum cannot overflow a long
+      throw new VmException("at most " + maxSimulatedVms + " VMs per simulation, " + total + " requested");
+    int requested = (int) total;
+    HostIndex empty = new HostIndex(hostSpecs);
+    int[][] vms = new int[requested][];
+    int n = 0;
+    for (VmDemandDTO d : demand)
+      for (int i = 0; i < d.getCount(); i++)
+        vms[n++] = new int[]{d.getVcpu(), d.getRam(), d.getDisk()};
+    long start = System.nanoTime();
+    Arrays.sort(vms, (a, b) -> Double.compare(empty.size(b), empty.size(a)));
+    int placed = 0;
+    for (int[] vm : vms) {
+      int host = empty.bestFit(vm[0], vm[1], vm[2]);
+      if (host >= 0) {
+        empty.allocate(host, vm[0], vm[1], vm[2]);
+        placed++;
+      }
+    }
+    PlacementPlanDTO plan = new PlacementPlanDTO();
+    plan.setElapsedMicros((System.nanoTime() - start) / 1000);
+    plan.setRequested(requested);
+    plan.setPlaced(placed);
+    plan.setRejected(requested - placed);
+    plan.setHosts(empty.toDTOs());
+    plan.setHostsUsed((int) plan.getHosts().stream().filter(h -> h.getVms() > 0).count());
+    plan.setFragmentation(empty.fragmentation());
+    return plan;
+  }
+
+  // Tries to empty the least used hosts, moving their VMs (largest first) on the others with the same best fit
+  private List<PlacementMoveDTO> rebalanceHints() {
+    HostIndex trial = index.copy();
+    Map<Integer, List<Map.Entry<Long, Placement>>> byHost = new HashMap<>();
+    for (Map.Entry<Long, Placement> entry : placements.entrySet())
+      byHost.computeIfAbsent(entry.getValue().host, h -> new ArrayList<>()).add(entry);
+    List<Integer> candidates = new ArrayList<>(byHost.keySet());
+    candidates.sort(Comparator.comparingDouble(index::used));
+    List<PlacementMoveDTO> hints = new ArrayList<>();
+    for (int host : candidates) {
+      List<Map.Entry<Long, Placement>> vms = byHost.get(host);
+      if (hints.size() + vms.size() > maxHints)
+        break;
+      vms.sort((a, b) -> Double.compare(index.size(b.getValue().resources()), index.size(a.getValue().resources())));
+      HostIndex attempt = trial.copy();
+      attempt.exclude(host);
+      List<PlacementMoveDTO> moves = new ArrayList<>();
+      for (Map.Entry<Long, Placement> vm : vms) {
+        Placement p = vm.getValue();
+        int target = attempt.bestFit(p.vcpu, p.ram, p.disk);
+        if (target < 0) {
+          moves = null;
+          break;
+        }
+        attempt.allocate(target, p.vcpu, p.ram, p.disk);
+        moves.add(new PlacementMoveDTO(vm.getKey(), index.names[host], index.names[target]));
+      }
+      if (moves != null) { // the host can be emptied: the next candidates see the moves, and do not use this host
+        for (Map.Entry<Long, Placement> vm : vms)
+          attempt.free(host, vm.getValue().vcpu, vm.getValue().ram, vm.getValue().disk);
+        hints.addAll(moves);
+        trial = attempt;
+      }
+    }
+    return hints;
+  }
+
+  private static class Placement {
+    final int host;
+    final int vcpu;
+    final int ram;
+    final int disk;
+
+    Placement(int host, int vcpu, int ram, int disk) {
+      this.host = host;
+      this.vcpu = vcpu;
+      this.ram = ram;
+      this.disk = disk;
+    }
+
+    int[] resources() {
+      return new int[]{vcpu, ram, disk};
+    }
+  }
+
+  /**
+   * Capacities and free resources of the hosts, with the hosts sorted by free vcpu: key (free vcpu << 32 | host)
+   */
+  private static class HostIndex {
+    final String[] names;
+    final int[] vcpu;
+    final int[] ram;
+    final int[] disk;
+    final int[] freeVcpu;
+    final int[] freeRam;
+    final int[] freeDisk;
+    final int[] vms;
+    final long totalVcpu;
+    final long totalRam;
+    final long totalDisk;
+    final TreeSet<Long> byFreeVcpu = new TreeSet<>();
+
+    HostIndex(String[] specs) {
+      int n = specs.length;
+      names = new String[n];
+      vcpu = new int[n];
+      ram = new int[n];
+      disk = new int[n];
+      for (int h = 0; h < n; h++) {
+        String[] fields = specs[h].trim().split(":");
+        if (fields.length != 4)
+          throw new IllegalArgumentException("invalid host " + specs[h] + ", expected name:vcpu:ram:disk");
+        names[h] = fields[0];
+        vcpu[h] = Integer.parseInt(fields[1]);
+        ram[h] = Integer.parseInt(fields[2]);
+        disk[h] = Integer.parseInt(fields[3]);
+      }
+      freeVcpu = vcpu.clone();
+      freeRam = ram.clone();
+      freeDisk = disk.clone();
+      vms = new int[n];
+      totalVcpu = Arrays.stream(vcpu).asLongStream().sum();
+      totalRam = Arrays.stream(ram).asLongStream().sum();
+      totalDisk = Arrays.stream(disk).asLongStream().sum();
+      for (int h = 0; h < n; h++)
+        byFreeVcpu.add(key(h));
+    }
+
+    private HostIndex(HostIndex other) {
+      names = other.names;
+      vcpu = other.vcpu;
+      ram = other.ram;
+      disk = other.disk;
+      freeVcpu = other.freeVcpu.clone();
+      freeRam = other.freeRam.clone();
+      freeDisk = other.freeDisk.clone();
+      vms = other.vms.clone();
+      totalVcpu = other.totalVcpu;
+      totalRam = other.totalRam;
+      totalDisk = other.totalDisk;
+      byFreeVcpu.addAll(other.byFreeVcpu);
+    }
+
+    HostIndex copy() {
+      return new HostIndex(this);
+    }
+
+    private long key(int host) {
+      return (long) freeVcpu[host] << 32 | host;
+    }
+
+    // Host with the least free vcpu among the ones where the VM fits, -1 if none
+    int bestFit(int vcpu, int ram, int disk) {
+      for (long key : byFreeVcpu.tailSet((long) vcpu << 32)) {
+        int host = (int) key;
+        if (freeRam[host] >= ram && freeDisk[host] >= disk)
+          return host;
+      }
+      return -1;
+    }
+
+    void allocate(int host, int vcpu, int ram, int disk) {
+      byFreeVcpu.remove(key(host));
+      freeVcpu[host] -= vcpu;
+      freeRam[host] -= ram;
+      freeDisk[host] -= disk;
+      vms[host]++;
+      byFreeVcpu.add(key(host));
+    }
+
+    void free(int host, int vcpu, int ram, int disk) {
+      boolean indexed = byFreeVcpu.remove(key(host));
+      freeVcpu[host] += vcpu;
+      freeRam[host] += ram;
+      freeDisk[host] += disk;
+      vms[host]--;
+      if (indexed)
+        byFreeVcpu.add(key(host));
+    }
+
+    // A host being emptied does not receive VMs
+    void exclude(int host) {
+      byFreeVcpu.remove(key(host));
+    }
+
+    // Share of the whole pool: the largest of the three dimensions
+    double size(int[] resources) {
+      return Math.max((double) resources[0] / Math.max(1, totalVcpu),
+          Math.max((double) resources[1] / Math.max(1, totalRam), (double) resources[2] / Math.max(1, totalDisk)));
+    }
+
+    double used(int host) {
+      return 1 - Math.min((double) freeVcpu[host] / Math.max(1, vcpu[host]), (double) freeRam[host] / Math.max(1, ram[host]));
+    }
+
+    // 1 - hosts the load would need if perfectly packed / hosts in use
+    double fragmentation() {
+      long usedVcpu = totalVcpu - Arrays.stream(freeVcpu).asLongStream().sum();
+      long usedRam = totalRam - Arrays.stream(freeRam).asLongStream().sum();
+      long inUse = Arrays.stream(vms).filter(n -> n > 0).count();
+      if (inUse == 0)
+        return 0;
+      double needed = Math.ceil(Math.max((double) usedVcpu * names.length / Math.max(1, totalVcpu),
+          (double) usedRam * names.length / Math.max(1, totalRam)));
+      return Math.max(0, 1 - needed / inUse);
+    }
+
+    List<HostDTO> toDTOs() {
+      List<HostDTO> hosts = new ArrayList<>(names.length);
+      for (int h = 0; h < names.length; h++) {
+        HostDTO host = new HostDTO();
+        host.setName(names[h]);
+        host.setVcpu(vcpu[h]);
+        host.setRam(ram[h]);
+        host.setDisk(disk[h]);
+        host.setFreeVcpu(freeVcpu[h]);
+        host.setFreeRam(freeRam[h]);
+        host.setFreeDisk(freeDisk[h]);
+        host.setVms(vms[h]);
+        hosts.add(host);
+      }
+      return hosts;
+    }
+  }
+}
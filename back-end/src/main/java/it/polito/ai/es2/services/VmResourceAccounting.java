@@ -0,0 +1,137 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.repositories.CourseRepository;
+import it.polito.ai.es2.repositories.CourseUsage;
+import it.polito.ai.es2.repositories.TeamRepository;
+import it.polito.ai.es2.repositories.TeamUsage;
+import it.polito.ai.es2.services.exceptions.TeamNotFoundException;
+import it.polito.ai.es2.services.exceptions.VmException;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Team and course quotas: the usage of each team (vcpu, ram, disk, running and total VMs) is kept in the team row, the
+ * sum over the teams of a course in the course row. Both are changed with a single conditional update of the two rows,
+ * in the transaction of the VM operation. A check costs one statement, whatever the number of VMs and teams, and two
+ * concurrent operations cannot both take the last free resources: the second update waits for the row locks and then
+ * sees the new usage.
+ * <p>A reconciliation job recomputes the usage of the teams from the vm table, then of the courses from the teams, and
+ * repairs any drift (rows changed outside the services, counters introduced on an existing database).
+ */
+@Component
+@Log
+public class VmResourceAccounting {
+  @Autowired
+  TeamRepository teamRepository;
+  @Autowired
+  CourseRepository courseRepository;
+  @Autowired
+  JdbcTemplate jdbcTemplate;
+  @Autowired
+  TransactionTemplate transactionTemplate;
+
+  /**
+   * Takes (positive deltas) or gives back (negative deltas) resources of the team and of its course. Must run in the
+   * transaction that changes the VMs, so that usage and VMs are committed (or rolled back) together.
+   *
+   * @throws VmException if a limit of the team or of the course would be exceeded, nothing is changed
+   */
+  public void charge(Long teamId, int vcpu, int ram, int disk, int running, int total) {
+    if (vcpu == 0 && ram == 0 && disk == 0 && running == 0 && total == 0)
+      return;
+    if (teamRepository.addUsage(teamId, vcpu, ram, disk, running, total) > 0)
+      return;
+    TeamUsage usage = teamRepository.findUsageById(teamId).orElseThrow(() -> new TeamNotFoundException(teamId));
+    StringBuilder sb = new StringBuilder();
+    if (vcpu > 0 && usage.getUsedVcpu() + vcpu > usage.getMaxVcpu())
+      sb.append(usage.getUsedVcpu() + vcpu + " is bigger than team max vcpu " + usage.getMaxVcpu() + " \n");
+    if (disk > 0 && usage.getUsedDisk() + disk > usage.getMaxDisk())
+      sb.append(usage.getUsedDisk() + disk + " is bigger than team max disk " + usage.getMaxDisk() + " \n");
+    if (ram > 0 && usage.getUsedRam() + ram > usage.getMaxRam())
+      sb.append(usage.getUsedRam() + ram + " is bigger than team max ram " + usage.getMaxRam() + " \n");
+    if (running > 0 && usage.getRunningVm() + running > usage.getMaxRunningVm())
+      sb.append("Max running VM limit reached: " + usage.getRunningVm() + "/" + usage.getMaxRunningVm() + " \n");
+    if (total > 0 && usage.getTotVm() + total > usage.getMaxTotVm())
+      sb.append("Max VM limit reached: " + usage.getTotVm() + "/" + usage.getMaxTotVm() + " \n");
+    List<String> courseIds = jdbcTemplate.queryForList("SELECT course_id FROM team WHERE id = ?", String.class, teamId);
+    CourseUsage course = courseIds.isEmpty() ? null : courseRepository.findUsageById(courseIds.get(0)).orElse(null);
+    if (course != null) {
+      if (vcpu > 0 && course.getMaxVcpu() > 0 && course.getUsedVcpu() + vcpu > course.getMaxVcpu())
+        sb.append(course.getUsedVcpu() + vcpu + " is bigger than course max vcpu " + course.getMaxVcpu() + " \n");
+      if (disk > 0 && course.getMaxDisk() > 0 && course.getUsedDisk() + disk > course.getMaxDisk())
+        sb.append(course.getUsedDisk() + disk + " is bigger than course max disk " + course.getMaxDisk() + " \n");
+      if (ram > 0 && course.getMaxRam() > 0 && course.getUsedRam() + ram > course.getMaxRam())
+        sb.append(course.getUsedRam() + ram + " is bigger than course max ram " + course.getMaxRam() + " \n");
+      if (running > 0 && course.getMaxRunningVm() > 0 && course.getRunningVm() + running > course.getMaxRunningVm())
+        sb.append("Course max running VM limit reached: " + course.getRunningVm() + "/" + course.getMaxRunningVm() + " \n");
+      if (total > 0 && course.getMaxTotVm() > 0 && course.getTotVm() + total > course.getMaxTotVm())
+        sb.append("Course max VM limit reached: " + course.getTotVm() + "/" + course.getMaxTotVm() + " \n");
+    }
+    throw new VmException(sb.length() > 0 ? sb.toString().trim() : "team or course limits exceeded");
+  }
+
+  /**
+   * One short transaction per team: the team row is locked first, so the VM changes of the team are either committed
+   * (and counted) or wait for the end of the reconciliation. Then one per course, summing the repaired teams with the
+   * course row locked, which every charge of its teams also locks.
+   *
+   * @return number of teams and courses whose counters were repaired
+   */
+  @Scheduled(initialDelayString = "${myprop.vms.quota.reconcile-initial-delay-ms:30000}", fixedDelayString = "${myprop.vms.quota.reconcile-interval-ms:3600000}")
+  public int reconcile() {
+    int repaired = 0;
+    for (Long teamId : jdbcTemplate.queryForList("SELECT id FROM team", Long.class)) {
+      Boolean drift = transactionTemplate.execute(status -> {
+        List<Long> locked = jdbcTemplate.queryForList("SELECT id FROM team WHERE id = ? FOR UPDATE", Long.class, teamId);
+        if (locked.isEmpty())
+          return false; // deleted meanwhile
+        Map<String, Object> actual = jdbcTemplate.queryForMap("SELECT COALESCE(SUM(vcpu), 0) AS vcpu, COALESCE(SUM(ram), 0) AS ram, " +
+            "COALESCE(SUM(disk), 0) AS disk, COALESCE(SUM(CASE WHEN active = 1 THEN 1 ELSE 0 END), 0) AS running, COUNT(*) AS total " +
+            "FROM vm WHERE team_id = ?", teamId);
+        Object[] values = {actual.get("vcpu"), actual.get("ram"), actual.get("disk"), actual.get("running"), actual.get("total")};
+        int updated = jdbcTemplate.update("UPDATE team SET used_vcpu = ?, used_ram = ?, used_disk = ?, running_vm = ?, tot_vm = ? " +
+                "WHERE id = ? AND (used_vcpu <> ? OR used_ram <> ? OR used_disk <> ? OR running_vm <> ? OR tot_vm <> ?)",
+            values[0], values[1], values[2], values[3], values[4], teamId, values[0], values[1], values[2], values[3], values[4]);
+        if (updated > 0)
+          log.warning("Team " + teamId + " usage repaired: vcpu " + values[0] + ", ram " + values[1] + ", disk " + values[2]
+              + ", running " + values[3] + ", total " + values[4]);
+        return updated > 0;
+      });
+      if (Boolean.TRUE.equals(drift))
+        repaired++;
+    }
+    if (repaired > 0)
+      log.info("Team usage reconciliation: " + repaired + " teams repaired");
+    int courses = 0;
+    for (String courseId : jdbcTemplate.queryForList("SELECT id FROM course", String.class)) {
+      Boolean drift = transactionTemplate.execute(status -> {
+        List<String> locked = jdbcTemplate.queryForList("SELECT id FROM course WHERE id = ? FOR UPDATE", String.class, courseId);
+        if (locked.isEmpty())
+          return false;
+        Map<String, Object> actual = jdbcTemplate.queryForMap("SELECT COALESCE(SUM(used_vcpu), 0) AS vcpu, COALESCE(SUM(used_ram), 0) AS ram, " +
+            "COALESCE(SUM(used_disk), 0) AS disk, COALESCE(SUM(running_vm), 0) AS running, COALESCE(SUM(tot_vm), 0) AS total " +
+            "FROM team WHERE course_id = ?", courseId);
+        Object[] values = {actual.get("vcpu"), actual.get("ram"), actual.get("disk"), actual.get("running"), actual.get("total")};
+        int updated = jdbcTemplate.update("UPDATE course SET used_vcpu = ?, used_ram = ?, used_disk = ?, running_vm = ?, tot_vm = ? " +
+                "WHERE id = ? AND (used_vcpu <> ? OR used_ram <> ? OR used_disk <> ? OR running_vm <> ? OR tot_vm <> ?)",
+            values[0], values[1], values[2], values[3], values[4], courseId, values[0], values[1], values[2], values[3], values[4]);
+        if (updated > 0)
+          log.warning("Course " + courseId + " usage repaired: vcpu " + values[0] + ", ram " + values[1] + ", disk " + values[2]
+              + ", running " + values[3] + ", total " + values[4]);
+        return updated > 0;
+      });
+      if (Boolean.TRUE.equals(drift))
+        courses++;
+    }
+    if (courses > 0)
+      log.info("Course usage reconciliation: " + courses + " courses repaired");
+    return repaired + courses;
+  }
+}
@@ -0,0 +1,198 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.services.exceptions.ImageException;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Screenshot of a new VM: the base image with the creation time in the bottom right corner.
+ * <p>The base image is decoded once and kept as a raster, the glyphs of the timestamp (digits and separators) are
+ * rendered once as coverage masks. A screenshot is a copy of the base raster with the glyphs blended in, encoded to
+ * jpeg in memory. Each concurrent call works on its own canvas, taken from a small pool: only the timestamp strip is
+ * restored between two uses, and the jpeg writer is reused.
+ */
+@Component
+@Log
+public class VmScreenshotCompositor {
+  private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private static final String GLYPHS = "0123456789-: ";
+  private static final int COLOR = Color.GREEN.getRGB() & 0xFFFFFF;
+  @Value("${myprop.vms.screenshot:classpath:vm.jpeg}")
+  Resource baseImage;
+  private volatile Frame frame;
+
+  public byte[] render(LocalDateTime time) {
+    return render(time, Canvas::encode);
+  }
+
+  /**
+   * Same picture as {@link #render(LocalDateTime)}, not encoded: a new TYPE_INT_RGB image owned by the caller
+   */
+  public BufferedImage renderImage(LocalDateTime time) {
+    return render(time, Canvas::copy);
+  }
+
+  private <T> T render(LocalDateTime time, CanvasOutput<T> output) {
+    Frame frame = frame();
+    Canvas canvas = frame.canvases.poll();
+    // The pool is filled lazily: beyond its capacity a canvas serves one call and is not kept
+    boolean pooled = canvas != null || frame.created.getAndUpdate(n -> n < frame.poolSize ? n + 1 : n) < frame.poolSize;
+    if (canvas == null)
+      canvas = new Canvas(frame);
+    try {
+      canvas.stamp(time.format(TIMESTAMP));
+      return output.apply(canvas);
+    } catch (IOException e) {
+      e.printStackTrace();
+      throw new ImageException("VM screenshot encoding failed");
+    } finally {
+      if (pooled)
+        frame.canvases.offer(canvas);
+    }
+  }
+
+  private Frame frame() {
+    if (frame == null)
+      synchronized (this) {
+        if (frame == null) {
+          try (InputStream inputStream = baseImage.getInputStream()) {
+            BufferedImage image = ImageIO.read(inputStream);
+            if (image == null)
+              throw new IOException("unsupported format");
+            frame = new Frame(image);
+            log.info("VM screenshot base " + baseImage.getDescription() + " loaded: " + image.getWidth() + "x" + image.getHeight());
+          } catch (IOException e) {
+            e.printStackTrace();
+            throw new ImageException("VM screenshot base image not available");
+          }
+        }
+      }
+    return frame;
+  }
+
+  private interface CanvasOutput<T> {
+    T apply(Canvas canvas) throws IOException;
+  }
+
+  private static class Frame {
+    final int width;
+    final int height;
+    final int[] pixels; // TYPE_INT_RGB
+    final int lineHeight;
+    final int cellWidth;
+    final int[] advances = new int[128];
+    final byte[][] masks = new byte[128][]; // coverage, cellWidth x lineHeight, top at the top of the text line
+    final int poolSize = Runtime.getRuntime().availableProcessors();
+    final BlockingQueue<Canvas> canvases = new ArrayBlockingQueue<>(poolSize);
+    final AtomicInteger created = new AtomicInteger(); // pooled canvases, at most poolSize
+
+    Frame(BufferedImage image) {
+      width = image.getWidth();
+      height = image.getHeight();
+      BufferedImage rgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      Graphics2D graphics = rgb.createGraphics();
+      graphics.drawImage(image, 0, 0, null);
+      graphics.dispose();
+      pixels = ((DataBufferInt) rgb.getRaster().getDataBuffer()).getData();
+      Font font = new Font("Arial", Font.BOLD, 18);
+      FontMetrics metrics = rgb.getGraphics().getFontMetrics(font);
+      lineHeight = metrics.getHeight();
+      cellWidth = metrics.getMaxAdvance() > 0 ? metrics.getMaxAdvance() : 2 * font.getSize();
+      for (char c : GLYPHS.toCharArray()) {
+        BufferedImage glyph = new BufferedImage(cellWidth, lineHeight, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = glyph.createGraphics();
+        g.setFont(font);
+        g.setColor(Color.WHITE);
+        g.drawString(String.valueOf(c), 0, metrics.getAscent());
+        g.dispose();
+        advances[c] = metrics.charWidth(c);
+        masks[c] = ((DataBufferByte) glyph.getRaster().getDataBuffer()).getData();
+      }
+    }
+  }
+
+  private static class Canvas {
+    final Frame frame;
+    final BufferedImage image;
+    final int[] pixels;
+    final ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+    Canvas(Frame frame) {
+      this.frame = frame;
+      image = new BufferedImage(frame.width, frame.height, BufferedImage.TYPE_INT_RGB);
+      pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+      System.arraycopy(frame.pixels, 0, pixels, 0, pixels.length);
+    }
+
+    // Right aligned on the last text line of the image, as drawString with the same font
+    void stamp(String text) {
+      int top = Math.max(0, frame.height - frame.lineHeight);
+      System.arraycopy(frame.pixels, top * frame.width, pixels, top * frame.width, (frame.height - top) * frame.width);
+      int x = frame.width;
+      for (int i = 0; i < text.length(); i++)
+        x -= frame.advances[text.charAt(i)];
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        blit(frame.masks[c], x, frame.height - frame.lineHeight);
+        x += frame.advances[c];
+      }
+    }
+
+    private void blit(byte[] mask, int left, int top) {
+      for (int y = Math.max(0, -top); y < frame.lineHeight && top + y < frame.height; y++)
+        for (int x = Math.max(0, -left); x < frame.cellWidth && left + x < frame.width; x++) {
+          int alpha = mask[y * frame.cellWidth + x] & 0xFF;
+          if (alpha == 0)
+            continue;
+          int index = (top + y) * frame.width + left + x;
+          pixels[index] = alpha == 255 ? COLOR : blend(pixels[index], alpha);
+        }
+    }
+
+    private static int blend(int background, int alpha) {
+      int r = (((COLOR >> 16) & 0xFF) * alpha + ((background >> 16) & 0xFF) * (255 - alpha)) / 255;
+      int g = (((COLOR >> 8) & 0xFF) * alpha + ((background >> 8) & 0xFF) * (255 - alpha)) / 255;
+      int b = ((COLOR & 0xFF) * alpha + (background & 0xFF) * (255 - alpha)) / 255;
+      return (r << 16) | (g << 8) | b;
+    }
+
+    BufferedImage copy() {
+      BufferedImage copy = new BufferedImage(frame.width, frame.height, BufferedImage.TYPE_INT_RGB);
+      System.arraycopy(pixels, 0, ((DataBufferInt) copy.getRaster().getDataBuffer()).getData(), 0, pixels.length);
+      return copy;
+    }
+
+    // In memory: ImageIO.write would go through a cache file in the temp directory
+    byte[] encode() throws IOException {
+      outputStream.reset();
+      try (ImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(outputStream)) {
+        writer.setOutput(imageOutputStream);
+        writer.write(null, new IIOImage(image, null, null), writer.getDefaultWriteParam());
+      } finally {
+        writer.reset();
+      }
+      return outputStream.toByteArray();
+    }
+  }
+}
@@ -0,0 +1,200 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.dtos.VmDTO;
+import it.polito.ai.es2.entities.VM;
+import it.polito.ai.es2.repositories.VMRepository;
+import it.polito.ai.es2.repositories.VmStatus;
+import it.polito.ai.es2.services.exceptions.TeamNotFoundException;
+import it.polito.ai.es2.services.exceptions.VmException;
+import it.polito.ai.es2.services.exceptions.VmNotFoundException;
+import lombok.extern.java.Log;
+import org.modelmapper.ModelMapper;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+
+/**
+ * Start/stop requests (VM.active) are collected for myprop.vms.status.window-ms: the requests for the same VM in a
+ * window merge into its last desired state, and all the VMs of a window are applied in one transaction by a single
+ * flusher thread: one read of their status, running counters charged once per team (stops first, so a team that
+ * swaps VMs does not hit its limit), admission previewed for all the starts together, one update per resulting state.
+ * A charge refused to a team fails only the requests of that team.
+ * <p>Callers wait for the flush of their window (group commit) and get the outcome of the merged change, error
+ * included: the acknowledgement is what was committed, and a read after it (getTeamVms) sees it.
+ */
+@Component
+@Log
+public class VmStatusCoalescer {
+  @Autowired
+  VMRepository vmRepository;
+  @Autowired
+  VmResourceAccounting resourceAccounting;
+  @Autowired
+  VmAdmissionQueue admissionQueue;
+  @Autowired
+  VmLifecycleEngine lifecycleEngine;
+  @Autowired
+  TransactionTemplate transactionTemplate;
+  @Autowired
+  ModelMapper modelMapper;
+  @Value("${myprop.vms.status.window-ms:50}")
+  long windowMs;
+  @Value("${myprop.vms.status.max-batch:500}")
+  int maxBatch;
+  @Value("${myprop.vms.status.ack-timeout-ms:10000}")
+  long ackTimeoutMs;
+
+  private ScheduledThreadPoolExecutor flusher;
+  private Map<Long, Pending> pending = new HashMap<>(); // guarded by this
+  private long sequence; // guarded by this
+
+  @PostConstruct
+  public void init() {
+    flusher = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r, "vm-status-flusher");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  @PreDestroy
+  public void shutdown() {
+    flusher.shutdown();
+  }
+
+  /**
+   * Must not be called in a transaction: the caller waits for the flush
+   *
+   * @return the VM after the flush of the window, with the queue position if its start waits for admission
+   * @throws VmException          if the team limits do not allow the start
+   * @throws VmNotFoundException if the VM does not exist (any more)
+   */
+  public VmDTO submit(Long vmId, boolean active) {
+    Pending p;
+    synchronized (this) {
+      p = pending.computeIfAbsent(vmId, Pending::new);
+      p.active = active;
+      p.sequence = sequence++;
+      if (pending.size() == 1)
+        flusher.schedule(this::flush, windowMs, TimeUnit.MILLISECONDS);
+      else if (pending.size() >= maxBatch)
+        flusher.execute(this::flush);
+    }
+    try {
+      return p.result.get(ackTimeoutMs, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new VmException(e.getCause().toString());
+    } catch (TimeoutException e) {
+      throw new VmException("status change of VM " + vmId + " not acknowledged yet, it may still be applied");
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new VmException("interrupted");
+    }
+  }
+
+  // A window closed by time and then by size (or vice versa) is flushed once: the second run finds it empty
+  private void flush() {
+    Map<Long, Pending> batch;
+    synchronized (this) {
+      if (pending.isEmpty())
+        return;
+      batch = pending;
+      pending = new HashMap<>();
+    }
+    try {
+      Map<Long, VmDTO> results = transactionTemplate.execute(status -> apply(batch));
+      for (Pending p : batch.values())
+        if (!p.result.isDone())
+          p.result.complete(results.get(p.vmId));
+    } catch (RuntimeException e) {
+      log.warning("VM status flush of " + batch.size() + " VMs failed: " + e.getMessage());
+      for (Pending p : batch.values())
+        p.result.completeExceptionally(e);
+    }
+  }
+
+  private Map<Long, VmDTO> apply(Map<Long, Pending> batch) {
+    List<VmStatus> vms = vmRepository.findStatusByIdIn(batch.keySet()).stream()
+        .filter(vm -> vm.getTeamId() != null).collect(Collectors.toList());
+    Set<Long> found = vms.stream().map(VmStatus::getId).collect(Collectors.toSet());
+    for (Pending p : batch.values())
+      if (!found.contains(p.vmId))
+        p.result.completeExceptionally(new VmNotFoundException(p.vmId));
+    List<VmStatus> starts = new ArrayList<>();
+    Map<Long, List<Long>> stopsByTeam = new HashMap<>();
+    for (VmStatus vm : vms) {
+      boolean active = batch.get(vm.getId()).active;
+      if (vm.isActive() == active)
+        continue; // merged back to the current state, or already there
+      if (active)
+        starts.add(vm);
+      else
+        stopsByTeam.computeIfAbsent(vm.getTeamId(), team -> new ArrayList<>()).add(vm.getId());
+    }
+    Map<VM.State, List<Long>> updates = new EnumMap<>(VM.State.class);
+    List<Long> stops = new ArrayList<>();
+    stopsByTeam.forEach((team, ids) -> {
+      try {
+        resourceAccounting.charge(team, 0, 0, 0, -ids.size(), 0);
+      } catch (VmException | TeamNotFoundException e) { // only the stops of this team fail
+        ids.forEach(id -> batch.get(id).result.completeExceptionally(e));
+        return;
+      }
+      stops.addAll(ids);
+    });
+    if (!stops.isEmpty())
+      updates.put(VmLifecycleEngine.pendingState(false), stops);
+    List<VmStatus> charged = new ArrayList<>();
+    for (Map.Entry<Long, List<VmStatus>> team : starts.stream().collect(Collectors.groupingBy(VmStatus::getTeamId)).entrySet()) {
+      try {
+        resourceAccounting.charge(team.getKey(), 0, 0, 0, team.getValue().size(), 0);
+      } catch (VmException | TeamNotFoundException e) { // only the starts of this team are refused
+        team.getValue().forEach(vm -> batch.get(vm.getId()).result.completeExceptionally(e));
+        continue;
+      }
+      charged.addAll(team.getValue());
+    }
+    // In request order, after the stops: each preview sees the previous starts. The engine queues them after the commit
+    charged.sort(Comparator.comparingLong(vm -> batch.get(vm.getId()).sequence));
+    Map<Long, VmAdmissionQueue.Ticket> tickets = admissionQueue.preview(charged, stops);
+    for (VmStatus vm : charged)
+      updates.computeIfAbsent(tickets.get(vm.getId()).isAdmitted() ? VmLifecycleEngine.pendingState(true) : VM.State.QUEUED,
+          state -> new ArrayList<>()).add(vm.getId());
+    List<Long> changed = new ArrayList<>();
+    updates.forEach((state, ids) -> {
+      vmRepository.updateActive(ids, state != VmLifecycleEngine.pendingState(false), state);
+      changed.addAll(ids);
+    });
+    if (!changed.isEmpty())
+      lifecycleEngine.converge(changed);
+    Map<Long, VmDTO> results = new HashMap<>();
+    for (VM vm : vmRepository.findAllById(found)) {
+      VmDTO vmDTO = modelMapper.map(vm, VmDTO.class);
+      VmAdmissionQueue.Ticket ticket = tickets.get(vm.getId());
+      if (ticket != null && !ticket.isAdmitted()) {
+        vmDTO.setQueuePosition(ticket.getPosition());
+        vmDTO.setQueueEtaMs(ticket.getEtaMs());
+      }
+      results.put(vm.getId(), vmDTO);
+    }
+    return results;
+  }
+
+  private static class Pending {
+    final Long vmId;
+    volatile boolean active;
+    volatile long sequence; // of the last request, to preview the admission in request order
+    final CompletableFuture<VmDTO> result = new CompletableFuture<>();
+
+    Pending(Long vmId) {
+      this.vmId = vmId;
+    }
+  }
+}
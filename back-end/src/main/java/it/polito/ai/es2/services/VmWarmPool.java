@@ -0,0 +1,229 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.dtos.ImageDTO;
+import it.polito.ai.es2.entities.*;
+import it.polito.ai.es2.repositories.CourseRepository;
+import it.polito.ai.es2.repositories.ImageRepository;
+import it.polito.ai.es2.repositories.VMRepository;
+import it.polito.ai.es2.repositories.VmDiskLayerRepository;
+import it.polito.ai.es2.services.interfaces.ImageService;
+import lombok.extern.java.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.security.authentication.AnonymousAuthenticationToken;
+import org.springframework.security.concurrent.DelegatingSecurityContextRunnable;
+import org.springframework.security.core.authority.AuthorityUtils;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.annotation.PostConstruct;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pre-built VM shells, per course VM model: rows without team and creator, with screenshot and base disk layer already
+ * saved. createVm claims one with a conditional update (team still null) and only binds it to team, creator and
+ * resources; if the pool is empty the shell is built on the request thread, as before.
+ * <p>Every refill the demand (creations) of each model since the previous refill is smoothed into a rate, and the pool
+ * is sized to cover myprop.vms.pool.horizon-ms of it, between min-size and max-size. Shells are built in batches,
+ * one short transaction each; extra shells (disabled courses, demand gone) are deleted. Shells are not on the backend:
+ * the lifecycle engine ignores them until they are claimed.
+ */
+@Component
+@Log
+public class VmWarmPool {
+  @Autowired
+  VMRepository vmRepository;
+  @Autowired
+  VmDiskLayerRepository diskLayerRepository;
+  @Autowired
+  CourseRepository courseRepository;
+  @Autowired
+  ImageService imageService;
+  @Autowired
+  ImageRepository imageRepository;
+  @Autowired
+  VmScreenshotCompositor screenshotCompositor;
+  @Autowired
+  TransactionTemplate transactionTemplate;
+  @Autowired
+  JdbcTemplate jdbcTemplate;
+  @Value("${myprop.vms.pool.enabled:true}")
+  boolean enabled;
+  @Value("${myprop.vms.pool.min-size:2}")
+  int minSize;
+  @Value("${myprop.vms.pool.max-size:50}")
+  int maxSize;
+  @Value("${myprop.vms.pool.horizon-ms:120000}")
+  long horizonMs;
+  @Value("${myprop.vms.pool.smoothing:0.3}")
+  double smoothing; // weight of the last interval in the rate
+  @Value("${myprop.vms.pool.build-batch:20}")
+  int buildBatch;
+  @Value("${myprop.vms.pool.claim-candidates:16}")
+  int claimCandidates;
+
+  private final Map<String, LongAdder> demand = new ConcurrentHashMap<>();
+  private final Map<String, Double> rates = new ConcurrentHashMap<>(); // creations per second, refill thread only
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private long lastRefill = System.nanoTime();
+
+  // Shells need a nullable vm.team_id: older schemas are migrated by resources/migrations/warm-pool-vm-team-nullable.sql
+  @PostConstruct
+  public void init() {
+    if (!enabled)
+      return;
+    try {
+      List<String> nullable = jdbcTemplate.queryForList("SELECT is_nullable FROM information_schema.columns " +
+          "WHERE table_schema = DATABASE() AND table_name = 'vm' AND column_name = 'team_id'", String.class);
+      if (nullable.contains("NO")) {
+        enabled = false;
+        log.warning("Warm pool disabled: vm.team_id is not nullable, run migrations/warm-pool-vm-team-nullable.sql");
+      }
+    } catch (RuntimeException e) {
+      enabled = false;
+      log.warning("Warm pool disabled, vm.team_id not checked: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Takes a shell of the model and binds it, in the transaction of the caller. Builds one if the pool is empty.
+   *
+   * @return the VM, CREATING and not active, not yet added to the in memory collections of team and creator
+   */
+  public VM claim(String vmModelPath, Team team, Student creator, int vcpu, int ram, int disk) {
+    String model = model(vmModelPath);
+    demand.computeIfAbsent(model, m -> new LongAdder()).increment();
+    if (enabled) {
+      List<Long> candidates = vmRepository.findPoolShells(model, PageRequest.of(0, claimCandidates));
+      // Concurrent claims start from different candidates: the loser of a race waits for one row lock, then moves on
+      int start = candidates.isEmpty() ? 0 : ThreadLocalRandom.current().nextInt(candidates.size());
+      for (int i = 0; i < candidates.size(); i++) {
+        Long id = candidates.get((start + i) % candidates.size());
+        if (vmRepository.claimShell(id, team, creator, vcpu, ram, disk, VM.State.CREATING) > 0) {
+          hits.incrementAndGet();
+          return vmRepository.findById(id).orElseThrow();
+        }
+      }
+      misses.incrementAndGet();
+    }
+    VM vm = newShell(model);
+    vm.setPoolModel(null);
+    vm.setVcpu(vcpu);
+    vm.setRam(ram);
+    vm.setDisk(disk);
+    vm.addSetCreator(creator);
+    vm.addSetTeam(team);
+    return vmRepository.save(vm);
+  }
+
+  @Scheduled(initialDelayString = "${myprop.vms.pool.initial-delay-ms:20000}", fixedDelayString = "${myprop.vms.pool.refill-interval-ms:5000}")
+  public void refill() {
+    if (!enabled)
+      return;
+    long now = System.nanoTime();
+    double seconds = Math.max(0.001, (now - lastRefill) / 1e9);
+    lastRefill = now;
+    Map<String, Long> sizes = new HashMap<>();
+    for (Object[] row : vmRepository.countPoolShells())
+      sizes.put((String) row[0], (Long) row[1]);
+    Set<String> active = new HashSet<>();
+    for (String path : courseRepository.findEnabledVmModelPaths())
+      active.add(model(path));
+    Set<String> models = new HashSet<>(active);
+    models.addAll(sizes.keySet());
+    models.addAll(demand.keySet());
+    for (String model : models) {
+      LongAdder created = demand.get(model);
+      double rate = (created == null ? 0 : created.sumThenReset()) / seconds;
+      Double previous = rates.get(model);
+      rate = previous == null ? rate : smoothing * rate + (1 - smoothing) * previous;
+      rates.put(model, rate);
+      int target = active.contains(model) ? (int) Math.min(maxSize, Math.max(minSize, Math.ceil(rate * horizonMs / 1000.0))) : 0;
+      long size = sizes.getOrDefault(model, 0L);
+      try {
+        if (size < target)
+          build(model, (int) Math.min(target - size, buildBatch));
+        else if (size > target)
+          shrink(model, (int) (size - target));
+      } catch (RuntimeException e) {
+        log.warning("Warm pool refill of model '" + model + "' interrupted: " + e.getMessage());
+      }
+      if (target == 0 && size == 0)
+        rates.remove(model);
+    }
+  }
+
+  public long getHits() {
+    return hits.get();
+  }
+
+  public long getMisses() {
+    return misses.get();
+  }
+
+  // No user here: the image service is called as an anonymous one
+  private void build(String model, int count) {
+    SecurityContext context = SecurityContextHolder.createEmptyContext();
+    context.setAuthentication(new AnonymousAuthenticationToken("vm-warm-pool", "vm-warm-pool",
+        AuthorityUtils.createAuthorityList("ROLE_ANONYMOUS")));
+    new DelegatingSecurityContextRunnable(() -> {
+      for (int i = 0; i < count; i++)
+        transactionTemplate.executeWithoutResult(status -> vmRepository.save(newShell(model)));
+    }, context).run();
+    log.info("Warm pool of model '" + model + "': " + count + " shells built, rate " + String.format("%.3f", rates.get(model)) + "/s");
+  }
+
+  private void shrink(String model, int count) {
+    Integer deleted = transactionTemplate.execute(status -> {
+      List<Long> shells = vmRepository.findPoolShells(model, PageRequest.of(0, count));
+      return shells.isEmpty() ? 0 : vmRepository.deletePoolShells(shells);
+    });
+    log.info("Warm pool of model '" + model + "': " + deleted + " shells deleted");
+  }
+
+  private VM newShell(String model) {
+    VM vm = new VM();
+    vm.setActive(false);
+    vm.setPoolModel(model);
+    vm.setState(VM.State.CREATING);
+    vm.setStateChangedDate(Timestamp.valueOf(LocalDateTime.now()));
+    VmDiskLayer layer = new VmDiskLayer();
+    layer.setCreatedDate(Timestamp.valueOf(LocalDateTime.now()));
+    vm.setDiskLayer(diskLayerRepository.save(layer));
+    vm.addSetImage(newScreenshot());
+    return vm;
+  }
+
+  private Image newScreenshot() {
+    ImageDTO imageDTO = null;
+    String name = "vm.jpeg";
+    String originalFileName = "vm.jpeg";
+    String contentType = "image/jpeg";
+    byte[] content = screenshotCompositor.render(LocalDateTime.now());
+    MockMultipartFile multipartFile = new MockMultipartFile(name, originalFileName, contentType, content);
+    imageDTO = imageService.uploadImage(multipartFile);
+    if (imageDTO == null || imageDTO.getId() == null)
+      throw new RuntimeException("Critical server error: upload failed silently)");
+    Image image = imageRepository.findById(imageDTO.getId()).orElse(null);
+    if (image == null)
+      throw new RuntimeException("Critical server error: image was not saved)");
+    return image;
+  }
+
+  private static String model(String vmModelPath) {
+    return vmModelPath == null ? "" : vmModelPath.trim();
+  }
+}
@@ -1,14 +1,49 @@
 package it.polito.ai.es2.services.interfaces;
 
+import it.polito.ai.es2.dtos.ImageBatchDTO;
+import it.polito.ai.es2.dtos.ImageCacheStatsDTO;
 import it.polito.ai.es2.dtos.ImageDTO;
+import it.polito.ai.es2.dtos.ImageGcStatsDTO;
+import it.polito.ai.es2.dtos.ImageStorageStatsDTO;
+import it.polito.ai.es2.dtos.ImageUploadDTO;
 import org.springframework.web.multipart.MultipartFile;
 
+import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Positive;
+import javax.validation.constraints.PositiveOrZero;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
 
 public interface ImageService {
   ImageDTO uploadImage(@NotNull MultipartFile file);
 
-  ImageDTO getImage(@NotNull Long imageId);
+  ImageUploadDTO initUpload(@NotBlank String name, @NotBlank String type, @Positive long size);
+
+  ImageUploadDTO writeUploadChunk(@NotBlank String uploadId, @PositiveOrZero long offset, @NotNull InputStream content);
+
+  ImageUploadDTO getUpload(@NotBlank String uploadId);
+
+  ImageDTO commitUpload(@NotBlank String uploadId);
+
+  void abortUpload(@NotBlank String uploadId);
+
+  ImageDTO getImage(@NotNull ImageDTO imageInfo);
 
   byte[] getBytesImage(@NotNull Long imageId);
+
+  ImageDTO getImageInfo(@NotNull Long imageId);
+
+  ImageBatchDTO getImagesInfo(@NotNull List<Long> imageIds);
+
+  long writeImage(@NotNull Long imageId, long offset, long length, @NotNull OutputStream outputStream);
+
+  Long resolveThumbnail(@NotNull Long imageId, int size);
+
+  ImageCacheStatsDTO getCacheStats();
+
+  ImageGcStatsDTO getGcStats();
+
+  ImageStorageStatsDTO getStorageStats();
 }
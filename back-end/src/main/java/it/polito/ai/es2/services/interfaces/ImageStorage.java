@@ -0,0 +1,41 @@
+package it.polito.ai.es2.services.interfaces;
+
+import it.polito.ai.es2.entities.ImageBlob;
+import it.polito.ai.es2.repositories.ImageBlobLocation;
+import it.polito.ai.es2.repositories.ImageCustomRepository.ContentConsumer;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * Storage backend of the (compressed) content of {@link ImageBlob}. The backend used for new blobs is chosen with
+ * the property myprop.images.storage, existing blobs are always read from the backend recorded in their row.
+ */
+public interface ImageStorage {
+  ImageBlob.Storage getType();
+
+  /**
+   * Stores the content of a new blob and records its location in the (not yet saved) entity
+   */
+  void write(ImageBlob blob, byte[] content);
+
+  /**
+   * Same as {@link #write(ImageBlob, byte[])} for content staged in a file, copied without loading it in the heap.
+   * The backend may save the entity itself.
+   */
+  void write(ImageBlob blob, Path content) throws IOException;
+
+  /**
+   * The stream is only valid inside the consumer
+   */
+  void read(ImageBlobLocation location, ContentConsumer consumer);
+
+  /**
+   * Copies count stored bytes starting at position to the target, without going through the heap when the backend
+   * allows it
+   *
+   * @return number of bytes transferred
+   */
+  long transferTo(ImageBlobLocation location, long position, long count, WritableByteChannel target) throws IOException;
+}
@@ -1,25 +1,67 @@
 package it.polito.ai.es2.services.interfaces;
 
+import it.polito.ai.es2.dtos.AdmissionStatsDTO;
 import it.polito.ai.es2.dtos.AssignmentDTO;
+import it.polito.ai.es2.dtos.CourseUsageDTO;
 import it.polito.ai.es2.dtos.ImplementationDTO;
+import it.polito.ai.es2.dtos.TeamMetricsDTO;
+import it.polito.ai.es2.dtos.VmMetricsDTO;
+import it.polito.ai.es2.dtos.PlacementPlanDTO;
+import it.polito.ai.es2.dtos.PlacementStatusDTO;
+import it.polito.ai.es2.dtos.VmBulkRequestDTO;
 import it.polito.ai.es2.dtos.VmDTO;
+import it.polito.ai.es2.dtos.VmDemandDTO;
+import it.polito.ai.es2.dtos.VmOperationResultDTO;
+import it.polito.ai.es2.dtos.VmSnapshotDTO;
 import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
 import javax.validation.Valid;
+import javax.validation.constraints.NotBlank;
 import javax.validation.constraints.NotNull;
 import java.util.List;
 
 public interface VLService {
-  void createVm(@Valid VmDTO vmDTO);
+  VmDTO createVm(@Valid VmDTO vmDTO);
 
   List<VmDTO> getTeamVms(@NotNull Long teamId);
 
-  void changeStatusVm(@NotNull Long vmId, boolean newStatus);
+  VmDTO changeStatusVm(@NotNull Long vmId, boolean newStatus);
 
   void editVm(@Valid VmDTO vmDTO);
 
   void deleteVm(@NotNull Long vmId);
 
+  List<VmOperationResultDTO> bulkVms(@Valid VmBulkRequestDTO request);
+
+  List<VmSnapshotDTO> getVmSnapshots(@NotNull Long vmId);
+
+  VmSnapshotDTO snapshotVm(@NotNull Long vmId, @NotBlank String name);
+
+  VmDTO restoreVmSnapshot(@NotNull Long vmId, @NotNull Long snapshotId);
+
+  void deleteVmSnapshot(@NotNull Long vmId, @NotNull Long snapshotId);
+
+  VmDTO cloneVm(@NotNull Long vmId, Long snapshotId);
+
+  SseEmitter streamConsole(@NotNull Long vmId, Integer fps);
+
+  void touchVm(@NotNull Long vmId);
+
+  VmMetricsDTO getVmMetrics(@NotNull Long vmId, @NotNull VmMetricsDTO.Resolution resolution, Long from, Long to);
+
+  TeamMetricsDTO getTeamMetrics(@NotNull Long teamId, @NotNull VmMetricsDTO.Resolution resolution, Long from, Long to);
+
+  List<TeamMetricsDTO> getCourseMetrics(@NotNull String courseId, @NotNull VmMetricsDTO.Resolution resolution, Long from, Long to);
+
+  CourseUsageDTO getCourseUsage(@NotNull String courseId);
+
+  AdmissionStatsDTO getAdmissionStats();
+
+  PlacementStatusDTO getPlacement();
+
+  PlacementPlanDTO simulatePlacement(@NotNull List<@Valid VmDemandDTO> demand);
+
   @PreAuthorize("hasRole('PROFESSOR')") List<AssignmentDTO> getAllAssignments(@NotNull String courseId);
 
   void updateImplementation(ImplementationDTO implementationDTO);
@@ -0,0 +1,54 @@
+package it.polito.ai.es2.services.interfaces;
+
+import it.polito.ai.es2.entities.VM;
+
+import java.awt.image.BufferedImage;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Hypervisor running the VMs. The backend is chosen with the property myprop.vms.backend.
+ * <p>Calls block until the operation is completed on the hypervisor (or failed, with a VmException): they are made
+ * only by the workers of the lifecycle engine, never by request threads.
+ */
+public interface VmBackend {
+  /**
+   * @param diskLayerId writable overlay of the VM (VmDiskLayer), on top of its immutable parents; null for a VM with
+   *                    a flat disk
+   */
+  void create(Long vmId, int vcpu, int ram, int disk, Long diskLayerId);
+
+  /**
+   * @param diskLayerId current overlay: it changes while the VM is stopped when a snapshot is taken or restored
+   */
+  void start(Long vmId, Long diskLayerId);
+
+  void stop(Long vmId);
+
+  void destroy(Long vmId);
+
+  /**
+   * @return actual state, null if the VM does not exist on the hypervisor
+   */
+  VM.State getState(Long vmId);
+
+  Set<Long> listVms();
+
+  /**
+   * Same VMs as {@link #listVms()}, without copying them: for the periodic sampling of the usage
+   */
+  void forEachVm(Consumer<Long> action);
+
+  /**
+   * @return current console screen, a new image the caller owns; null if the VM is not running
+   */
+  BufferedImage captureConsole(Long vmId);
+
+  /**
+   * Current resource usage, written in usage: [0] vcpu used (fractional), [1] ram used. Called for thousands of VMs
+   * every few seconds: must not allocate.
+   *
+   * @return false if the VM is not running (usage untouched)
+   */
+  boolean readUsage(Long vmId, double[] usage);
+}
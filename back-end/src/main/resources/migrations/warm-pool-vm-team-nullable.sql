@@ -0,0 +1,6 @@
+-- Warm pool of VM shells (VmWarmPool): shells are vm rows without a team until they are claimed.
+-- Databases whose schema was created by Hibernate before VM.team became optional still have team_id NOT NULL,
+-- and ddl-auto=update does not relax it. Run once on such databases, with the server stopped:
+--   docker exec -i <container_id> mysql -uroot -proot virtuallabs < warm-pool-vm-team-nullable.sql
+-- Until then the warm pool stays disabled (a warning is logged at startup) and VMs are built on request.
+ALTER TABLE vm MODIFY team_id BIGINT NULL;
@@ -0,0 +1,138 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.dtos.ImageUploadDTO;
+import it.polito.ai.es2.services.exceptions.ImageException;
+import it.polito.ai.es2.services.exceptions.ImageNotFoundException;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ImageUploadStagingTests {
+  @TempDir
+  Path directory;
+  private ImageUploadStaging staging;
+
+  @BeforeEach
+  void setUp() {
+    staging = new ImageUploadStaging();
+    staging.directory = directory.toString();
+    staging.maxSize = 100;
+    staging.expireMinutes = 60;
+    staging.maxOpenPerOwner = 2;
+    staging.maxBytesPerOwner = 150;
+    staging.maxOpen = 3;
+    staging.maxBytes = 1000;
+  }
+
+  @Test
+  void tracksTheMissingRanges() throws IOException {
+    ImageUploadStaging.Upload upload = staging.create("s1", "a.txt", "text/plain", 10);
+    assertArrayEquals(new long[]{0, 9}, staging.status(upload).getMissing().get(0));
+    write(upload, 4, "456");
+    ImageUploadDTO status = staging.status(upload);
+    assertEquals(3, status.getReceived());
+    assertEquals(2, status.getMissing().size());
+    assertArrayEquals(new long[]{0, 3}, status.getMissing().get(0));
+    assertArrayEquals(new long[]{7, 9}, status.getMissing().get(1));
+    write(upload, 2, "2345"); // overlaps the received range: merged
+    write(upload, 7, "789");
+    status = staging.status(upload);
+    assertEquals(8, status.getReceived());
+    assertEquals(1, status.getMissing().size());
+    assertArrayEquals(new long[]{0, 1}, status.getMissing().get(0));
+  }
+
+  @Test
+  void commitReturnsTheCompleteFile() throws IOException {
+    ImageUploadStaging.Upload upload = staging.create("s1", "a.txt", "text/plain", 10);
+    write(upload, 5, "56789");
+    assertThrows(ImageException.class, () -> staging.beginCommit(upload));
+    write(upload, 0, "01234");
+    Path file = staging.beginCommit(upload);
+    assertEquals("0123456789", Files.readString(file));
+    assertThrows(ImageException.class, () -> write(upload, 0, "x")); // no chunks while committing
+    assertThrows(ImageException.class, () -> staging.beginCommit(upload));
+    staging.remove(upload);
+    assertFalse(Files.exists(file));
+    assertThrows(ImageNotFoundException.class, () -> staging.get(upload.getId(), "s1"));
+  }
+
+  @Test
+  void failedCommitCanBeRetried() throws IOException {
+    ImageUploadStaging.Upload upload = staging.create("s1", "a.txt", "text/plain", 3);
+    write(upload, 0, "abc");
+    staging.beginCommit(upload);
+    staging.cancelCommit(upload);
+    assertEquals("abc", Files.readString(staging.beginCommit(upload)));
+  }
+
+  @Test
+  void chunkBeyondTheDeclaredSizeIsRefused() {
+    ImageUploadStaging.Upload upload = staging.create("s1", "a.txt", "text/plain", 4);
+    assertThrows(ImageException.class, () -> write(upload, 2, "abc"));
+    assertThrows(ImageException.class, () -> write(upload, 4, "a"));
+    assertThrows(ImageException.class, () -> staging.create("s1", "b.txt", "text/plain", 101));
+  }
+
+  @Test
+  void uploadsOfOtherOwnersAreNotVisible() {
+    ImageUploadStaging.Upload upload = staging.create("s1", "a.txt", "text/plain", 4);
+    assertSame(upload, staging.get(upload.getId(), "s1"));
+    assertThrows(ImageNotFoundException.class, () -> staging.get(upload.getId(), "s2"));
+  }
+
+  @Test
+  void openUploadsAreCapped() {
+    staging.create("s1", "a", "text/plain", 100);
+    assertThrows(ImageException.class, () -> staging.create("s1", "b", "text/plain", 60)); // bytes per owner
+    staging.create("s1", "b", "text/plain", 50);
+    assertThrows(ImageException.class, () -> staging.create("s1", "c", "text/plain", 1)); // uploads per owner
+    staging.create("s2", "d", "text/plain", 1);
+    assertThrows(ImageException.class, () -> staging.create("s3", "e", "text/plain", 1)); // uploads in total
+  }
+
+  @Test
+  void abortWaitsForTheCommitInProgress() throws Exception {
+    ImageUploadStaging.Upload upload = staging.create("s1", "a.txt", "text/plain", 3);
+    write(upload, 0, "abc");
+    staging.beginCommit(upload);
+    Thread abort = new Thread(() -> staging.abort(upload));
+    abort.start();
+    abort.join(200);
+    assertTrue(abort.isAlive());
+    assertSame(upload, staging.get(upload.getId(), "s1"));
+    staging.cancelCommit(upload); // rolled back: the abort goes on
+    abort.join(5000);
+    assertFalse(abort.isAlive());
+    assertThrows(ImageNotFoundException.class, () -> staging.get(upload.getId(), "s1"));
+  }
+
+  @Test
+  void abortAfterACommitFindsNothing() throws IOException {
+    ImageUploadStaging.Upload upload = staging.create("s1", "a.txt", "text/plain", 3);
+    write(upload, 0, "abc");
+    staging.beginCommit(upload);
+    staging.remove(upload);
+    assertThrows(ImageNotFoundException.class, () -> staging.abort(upload));
+  }
+
+  @Test
+  void expiredUploadsArePurged() {
+    ImageUploadStaging.Upload upload = staging.create("s1", "a.txt", "text/plain", 3);
+    staging.expireMinutes = -1;
+    staging.purgeExpired();
+    assertThrows(ImageNotFoundException.class, () -> staging.get(upload.getId(), "s1"));
+  }
+
+  private void write(ImageUploadStaging.Upload upload, long offset, String content) throws IOException {
+    staging.write(upload, offset, new ByteArrayInputStream(content.getBytes(StandardCharsets.US_ASCII)));
+  }
+}
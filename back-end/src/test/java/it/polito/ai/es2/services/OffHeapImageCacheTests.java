@@ -0,0 +1,178 @@
+package it.polito.ai.es2.services;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapImageCacheTests {
+  private static final int PAGE = 16;
+  private OffHeapImageCache cache;
+
+  @BeforeEach
+  void setUp() {
+    cache = new OffHeapImageCache();
+    cache.capacity = 4 * PAGE;
+    cache.pageSize = PAGE;
+    cache.slabSize = 2 * PAGE;
+    cache.maxEntrySize = 4 * PAGE;
+    cache.init();
+  }
+
+  @Test
+  void servesTheFilledContent() throws IOException {
+    byte[] content = content(1, 40);
+    assertEquals(-1, cache.writeTo(1L, 0, Long.MAX_VALUE, new ByteArrayOutputStream()));
+    assertTrue(fill(1L, content));
+    assertArrayEquals(content, read(1L, 0, Long.MAX_VALUE));
+    assertArrayEquals(Arrays.copyOfRange(content, 10, 30), read(1L, 10, 20)); // range across pages
+    assertEquals(1, cache.getStats().getEntries());
+    assertEquals(3L * PAGE, cache.getStats().getUsedBytes());
+  }
+
+  @Test
+  void incompleteFillIsNotPublished() throws IOException {
+    OffHeapImageCache.Filler filler = cache.beginFill(1L, 40);
+    filler.tee(new ByteArrayOutputStream()).write(content(1, 20));
+    filler.commit();
+    assertEquals(-1, cache.writeTo(1L, 0, Long.MAX_VALUE, new ByteArrayOutputStream()));
+    assertEquals(0, cache.getStats().getUsedBytes());
+  }
+
+  @Test
+  void tooBigOrAlreadyFillingIsNotAdmitted() {
+    assertNull(cache.beginFill(1L, 5 * PAGE));
+    OffHeapImageCache.Filler filler = cache.beginFill(2L, PAGE);
+    assertNotNull(filler);
+    assertNull(cache.beginFill(2L, PAGE));
+    filler.abort();
+    assertNotNull(cache.beginFill(2L, PAGE));
+  }
+
+  @Test
+  void colderImageDoesNotEvictAHotOne() throws IOException {
+    request(1L, 3);
+    assertTrue(fill(1L, content(1, 4 * PAGE)));
+    request(2L, 1);
+    assertNull(cache.beginFill(2L, PAGE)); // admission filter
+    assertEquals(1, cache.getStats().getRejections());
+    assertNotNull(read(1L, 0, Long.MAX_VALUE));
+  }
+
+  @Test
+  void hotterImageEvictsTheLeastRecentlyUsed() throws IOException {
+    request(1L, 1);
+    assertTrue(fill(1L, content(1, 2 * PAGE)));
+    request(2L, 1);
+    assertTrue(fill(2L, content(2, 2 * PAGE)));
+    read(1L, 0, Long.MAX_VALUE); // 2 becomes the least recently used
+    request(3L, 5);
+    assertTrue(fill(3L, content(3, 2 * PAGE)));
+    assertNull(read(2L, 0, Long.MAX_VALUE));
+    assertNotNull(read(1L, 0, Long.MAX_VALUE));
+    assertEquals(1, cache.getStats().getEvictions());
+  }
+
+  @Test
+  void pinnedEntryIsNotEvicted() throws IOException {
+    request(1L, 1);
+    assertTrue(fill(1L, content(1, 4 * PAGE)));
+    request(2L, 10);
+    Object[] fillDuringRead = new Object[1];
+    cache.writeTo(1L, 0, Long.MAX_VALUE, whileReading(() -> fillDuringRead[0] = cache.beginFill(2L, PAGE)));
+    assertNull(fillDuringRead[0]);
+    assertNotNull(cache.beginFill(2L, PAGE)); // unpinned: evicted now
+  }
+
+  @Test
+  void invalidatedEntryKeepsItsPagesUntilTheLastReader() throws IOException {
+    byte[] content = content(1, 4 * PAGE);
+    request(1L, 1);
+    assertTrue(fill(1L, content));
+    request(2L, 10);
+    Object[] fillDuringRead = new Object[1];
+    ByteArrayOutputStream received = new ByteArrayOutputStream();
+    OutputStream reader = whileReading(() -> {
+      cache.invalidate(1L);
+      fillDuringRead[0] = cache.beginFill(2L, PAGE);
+    });
+    cache.writeTo(1L, 0, Long.MAX_VALUE, new OutputStream() {
+      @Override
+      public void write(int b) {
+        received.write(b);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        reader.write(b, off, len);
+        received.write(b, off, len);
+      }
+    });
+    assertNull(fillDuringRead[0]); // no page free while the reader holds them
+    assertArrayEquals(content, received.toByteArray());
+    assertEquals(-1, cache.writeTo(1L, 0, Long.MAX_VALUE, new ByteArrayOutputStream()));
+    assertNotNull(cache.beginFill(2L, PAGE));
+    assertEquals(1, cache.getStats().getInvalidations());
+  }
+
+  @Test
+  void invalidateCancelsAFillInProgress() throws IOException {
+    byte[] content = content(1, PAGE);
+    OffHeapImageCache.Filler filler = cache.beginFill(1L, content.length);
+    filler.tee(new ByteArrayOutputStream()).write(content);
+    cache.invalidate(1L);
+    filler.commit();
+    assertEquals(-1, cache.writeTo(1L, 0, Long.MAX_VALUE, new ByteArrayOutputStream()));
+  }
+
+  private void request(Long imageId, int times) throws IOException {
+    for (int i = 0; i < times; i++)
+      cache.writeTo(imageId, 0, Long.MAX_VALUE, new ByteArrayOutputStream());
+  }
+
+  private boolean fill(Long imageId, byte[] content) throws IOException {
+    OffHeapImageCache.Filler filler = cache.beginFill(imageId, content.length);
+    if (filler == null)
+      return false;
+    filler.tee(new ByteArrayOutputStream()).write(content);
+    filler.commit();
+    return true;
+  }
+
+  private byte[] read(Long imageId, long offset, long length) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    return cache.writeTo(imageId, offset, length, outputStream) < 0 ? null : outputStream.toByteArray();
+  }
+
+  // Runs the action once, at the first write of the reader: the entry being read is pinned
+  private static OutputStream whileReading(Runnable action) {
+    return new OutputStream() {
+      private boolean done;
+
+      @Override
+      public void write(int b) {
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        if (!done) {
+          done = true;
+          action.run();
+        }
+      }
+    };
+  }
+
+  private static byte[] content(int seed, int length) {
+    byte[] content = new byte[length];
+    for (int i = 0; i < length; i++)
+      content[i] = (byte) (seed * 31 + i);
+    return content;
+  }
+}
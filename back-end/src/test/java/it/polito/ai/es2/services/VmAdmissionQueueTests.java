@@ -0,0 +1,171 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.entities.VM;
+import it.polito.ai.es2.repositories.VmStatus;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VmAdmissionQueueTests {
+  private VmAdmissionQueue queue;
+
+  @BeforeEach
+  void setUp() {
+    queue = new VmAdmissionQueue();
+    queue.courseConcurrency = 1;
+    queue.quantum = 1;
+    queue.timeoutMs = 60000;
+  }
+
+  @Test
+  void admitsUpToTheCourseConcurrency() {
+    queue.courseConcurrency = 2;
+    assertTrue(queue.enqueue(1L, 10L, "c", 1).isAdmitted());
+    assertTrue(queue.enqueue(2L, 10L, "c", 1).isAdmitted());
+    VmAdmissionQueue.Ticket third = queue.enqueue(3L, 10L, "c", 1);
+    assertFalse(third.isAdmitted());
+    assertEquals(1, third.getPosition());
+    assertTrue(queue.enqueue(4L, 20L, "other", 1).isAdmitted()); // courses do not share slots
+  }
+
+  @Test
+  void enqueueIsIdempotent() {
+    queue.enqueue(1L, 10L, "c", 1);
+    assertEquals(1, queue.enqueue(2L, 10L, "c", 1).getPosition());
+    assertEquals(1, queue.enqueue(2L, 10L, "c", 1).getPosition());
+    assertEquals(1, queue.getStats().getQueued());
+  }
+
+  @Test
+  void teamsAreServedInRoundRobin() {
+    queue.enqueue(1L, 10L, "c", 1); // admitted
+    queue.enqueue(2L, 10L, "c", 1);
+    queue.enqueue(3L, 10L, "c", 1);
+    queue.enqueue(4L, 20L, "c", 1);
+    assertEquals(List.of(2L), queue.release(1L));
+    assertEquals(List.of(4L), queue.release(2L)); // the other team before the third VM of the first one
+    assertEquals(List.of(3L), queue.release(4L));
+    assertEquals(List.of(), queue.release(3L));
+    assertEquals(0, queue.getStats().getActive());
+  }
+
+  @Test
+  void costIsTheVcpuOfTheVm() {
+    queue.quantum = 4;
+    queue.enqueue(1L, 30L, "c", 1); // admitted
+    queue.enqueue(2L, 10L, "c", 8);
+    queue.enqueue(3L, 20L, "c", 1);
+    queue.enqueue(4L, 20L, "c", 1);
+    // the 8 vcpu VM needs two rounds of quantum: the small VMs of the other team go first
+    assertEquals(List.of(3L), queue.release(1L));
+    assertEquals(List.of(4L), queue.release(3L));
+    assertEquals(List.of(2L), queue.release(4L));
+  }
+
+  @Test
+  void releaseOfAQueuedVmGivesUpItsPlace() {
+    queue.enqueue(1L, 10L, "c", 1);
+    queue.enqueue(2L, 10L, "c", 1);
+    queue.enqueue(3L, 20L, "c", 1);
+    assertEquals(List.of(), queue.release(2L));
+    assertFalse(queue.isQueued(2L));
+    assertEquals(1, queue.enqueue(3L, 20L, "c", 1).getPosition());
+    assertEquals(List.of(3L), queue.release(1L));
+  }
+
+  @Test
+  void previewSeesThePreviousStartsWithoutQueueing() {
+    queue.courseConcurrency = 2;
+    queue.enqueue(1L, 10L, "c", 1); // admitted
+    Map<Long, VmAdmissionQueue.Ticket> tickets = queue.preview(List.of(vm(2L, 10L), vm(3L, 10L), vm(4L, 10L)), List.of());
+    assertTrue(tickets.get(2L).isAdmitted());
+    assertFalse(tickets.get(3L).isAdmitted());
+    assertEquals(1, tickets.get(3L).getPosition());
+    assertEquals(2, tickets.get(4L).getPosition());
+    assertFalse(queue.isQueued(3L));
+    assertFalse(queue.isAdmitted(2L));
+    assertEquals(1, queue.getStats().getActive());
+    assertEquals(0, queue.getStats().getQueued());
+  }
+
+  @Test
+  void previewCountsTheSlotsOfTheStoppedVms() {
+    queue.courseConcurrency = 2;
+    queue.enqueue(1L, 10L, "c", 1); // admitted
+    Map<Long, VmAdmissionQueue.Ticket> tickets = queue.preview(List.of(vm(2L, 10L), vm(3L, 10L), vm(4L, 10L)), List.of(1L));
+    assertTrue(tickets.get(2L).isAdmitted());
+    assertTrue(tickets.get(3L).isAdmitted());
+    assertEquals(1, tickets.get(4L).getPosition());
+    assertTrue(queue.isAdmitted(1L));
+  }
+
+  @Test
+  void previewOfAVmAlreadyQueuedKeepsItsTicket() {
+    queue.enqueue(1L, 10L, "c", 1);
+    queue.enqueue(2L, 10L, "c", 1);
+    queue.enqueue(3L, 20L, "c", 1);
+    Map<Long, VmAdmissionQueue.Ticket> tickets = queue.preview(List.of(vm(3L, 20L), vm(4L, 30L)), List.of());
+    assertEquals(2, tickets.get(3L).getPosition());
+    assertEquals(3, tickets.get(4L).getPosition());
+    assertEquals(2, queue.getStats().getQueued());
+  }
+
+  @Test
+  void expireFreesTheSlotsNeverReleased() throws InterruptedException {
+    queue.timeoutMs = 1;
+    queue.enqueue(1L, 10L, "c", 1);
+    queue.enqueue(2L, 10L, "c", 1);
+    Thread.sleep(5);
+    assertEquals(List.of(2L), queue.expire());
+    assertEquals(1, queue.getStats().getTimedOut());
+  }
+
+  private static VmStatus vm(Long id, Long teamId) {
+    return new VmStatus() {
+      public Long getId() {
+        return id;
+      }
+
+      public boolean isActive() {
+        return true;
+      }
+
+      public int getVcpu() {
+        return 1;
+      }
+
+      public int getRam() {
+        return 1;
+      }
+
+      public int getDisk() {
+        return 1;
+      }
+
+      public VM.State getState() {
+        return null;
+      }
+
+      public Timestamp getStateChangedDate() {
+        return null;
+      }
+
+      public Long getTeamId() {
+        return teamId;
+      }
+
+      public String getCourseId() {
+        return "c";
+      }
+
+      public Long getDiskLayerId() {
+        return null;
+      }
+    };
+  }
+}
@@ -0,0 +1,99 @@
+package it.polito.ai.es2.services;
+
+import it.polito.ai.es2.dtos.HostDTO;
+import it.polito.ai.es2.dtos.PlacementPlanDTO;
+import it.polito.ai.es2.dtos.VmDemandDTO;
+import it.polito.ai.es2.services.exceptions.VmException;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VmPlacementSchedulerTests {
+
+  @Test
+  void placesOnTheHostWithTheLeastFreeVcpuThatFits() {
+    VmPlacementScheduler scheduler = scheduler("big:8:64:100", "small:4:64:100");
+    assertEquals("small", scheduler.place(1L, 4, 8, 10));
+    assertEquals("big", scheduler.place(2L, 2, 8, 10)); // small is full
+    assertEquals("big", scheduler.place(3L, 6, 8, 10));
+    assertThrows(VmException.class, () -> scheduler.place(4L, 1, 8, 10));
+  }
+
+  @Test
+  void bestFitChecksRamAndDisk() {
+    VmPlacementScheduler scheduler = scheduler("big:8:64:100", "small:4:8:100");
+    assertEquals("big", scheduler.place(1L, 2, 16, 10));
+    assertEquals("small", scheduler.place(2L, 2, 8, 10));
+    assertEquals("big", scheduler.place(3L, 1, 1, 10)); // small has less free vcpu, but no ram left
+    assertThrows(VmException.class, () -> scheduler.place(4L, 1, 0, 200));
+  }
+
+  @Test
+  void placeIsIdempotentAndReleaseFreesTheHost() {
+    VmPlacementScheduler scheduler = scheduler("only:4:16:100");
+    assertEquals("only", scheduler.place(1L, 4, 16, 100));
+    assertEquals("only", scheduler.place(1L, 4, 16, 100));
+    assertEquals(1, scheduler.getStatus().getPlacedVms());
+    assertThrows(VmException.class, () -> scheduler.place(2L, 1, 1, 1));
+    scheduler.release(1L);
+    assertNull(scheduler.getHost(1L));
+    assertEquals("only", scheduler.place(2L, 4, 16, 100));
+  }
+
+  @Test
+  void simulationPacksLargestFirst() {
+    VmPlacementScheduler scheduler = scheduler("h1:8:64:100", "h2:8:64:100");
+    // in arrival order, first fit would spread the small VMs and leave no host for the last big one
+    PlacementPlanDTO plan = scheduler.simulate(List.of(demand(4, 1), demand(2, 6)));
+    assertEquals(6, plan.getRequested());
+    assertEquals(6, plan.getPlaced());
+    assertEquals(0, plan.getRejected());
+    assertEquals(2, plan.getHostsUsed());
+    assertEquals(0, plan.getHosts().stream().mapToInt(HostDTO::getFreeVcpu).sum());
+  }
+
+  @Test
+  void simulationReportsWhatDoesNotFit() {
+    VmPlacementScheduler scheduler = scheduler("h1:8:64:100");
+    PlacementPlanDTO plan = scheduler.simulate(List.of(demand(3, 4)));
+    assertEquals(2, plan.getPlaced());
+    assertEquals(1, plan.getRejected());
+  }
+
+  @Test
+  void simulationDoesNotTouchThePlacements() {
+    VmPlacementScheduler scheduler = scheduler("h1:8:64:100");
+    scheduler.place(1L, 8, 8, 10);
+    assertEquals(1, scheduler.simulate(List.of(demand(1, 8))).getPlaced());
+    assertEquals(1, scheduler.getStatus().getPlacedVms());
+    assertEquals(0, scheduler.getStatus().getHosts().get(0).getFreeVcpu());
+  }
+
+  @Test
+  void simulationIsCapped() {
+    VmPlacementScheduler scheduler = scheduler("h1:8:64:100");
+    scheduler.maxSimulatedVms = 10;
+    assertThrows(VmException.class, () -> scheduler.simulate(List.of(demand(6, 1), demand(5, 1))));
+  }
+
+  private static VmPlacementScheduler scheduler(String... hosts) {
+    VmPlacementScheduler scheduler = new VmPlacementScheduler();
+    scheduler.hostSpecs = hosts;
+    scheduler.rebalanceThreshold = 0.5;
+    scheduler.maxHints = 20;
+    scheduler.maxSimulatedVms = 10000;
+    scheduler.init();
+    return scheduler;
+  }
+
+  private static VmDemandDTO demand(int count, int vcpu) {
+    VmDemandDTO demand = new VmDemandDTO();
+    demand.setCount(count);
+    demand.setVcpu(vcpu);
+    demand.setRam(1);
+    demand.setDisk(1);
+    return demand;
+  }
+}